@@ -4,6 +4,19 @@
 pushd . > /dev/null
 cd "$(dirname "$0")"
 
+# Splits the arguments of a command: Options (e.g. -Dnlc.endpoint=...) are
+# passed to the JVM, the other arguments to the program
+splitArgs() {
+    JVM_OPTS=()
+    ARGS=()
+    for arg in "$@"; do
+        case $arg in
+            -*) JVM_OPTS+=("$arg") ;;
+            *) ARGS+=("$arg") ;;
+        esac
+    done
+}
+
 case $1 in
 
 	nightly)
@@ -12,31 +25,56 @@ case $1 in
     ;;
 
     extract)
-    java -classpath "./target/MasterThesisKSA.jar" -Xmx4G -XX:+UseParallelGC -XX:-UseGCOverheadLimit -DentityExpansionLimit=0 -DtotalEntitySizeLimit=0 -Djdk.xml.totalEntitySizeLimit=0 net.auberson.scherer.masterthesis.Extract
+    shift
+    splitArgs "$@"
+    java -classpath "./target/MasterThesisKSA.jar" -Xmx4G -XX:+UseParallelGC -XX:-UseGCOverheadLimit -DentityExpansionLimit=0 -DtotalEntitySizeLimit=0 -Djdk.xml.totalEntitySizeLimit=0 "${JVM_OPTS[@]}" net.auberson.scherer.masterthesis.Extract "${ARGS[@]}"
+    ;;
+
+    shuffle)
+    shift
+    splitArgs "$@"
+    java -classpath "./target/MasterThesisKSA.jar" -Xmx4G "${JVM_OPTS[@]}" net.auberson.scherer.masterthesis.Shuffle "${ARGS[@]}"
     ;;
 
     learningcurve)
     shift
-    java -classpath "./target/MasterThesisKSA.jar" net.auberson.scherer.masterthesis.ComputeLearningCurve $@
+    splitArgs "$@"
+    java -classpath "./target/MasterThesisKSA.jar" "${JVM_OPTS[@]}" net.auberson.scherer.masterthesis.ComputeLearningCurve "${ARGS[@]}"
     ;;
 
     experiment1)
     shift
-    java -classpath "./target/MasterThesisKSA.jar" net.auberson.scherer.masterthesis.Experiment1 $@
+    splitArgs "$@"
+    java -classpath "./target/MasterThesisKSA.jar" "${JVM_OPTS[@]}" net.auberson.scherer.masterthesis.Experiment1 "${ARGS[@]}"
     ;;
 
     experiment2)
     shift
-    java -classpath "./target/MasterThesisKSA.jar" net.auberson.scherer.masterthesis.Experiment2 $@
+    splitArgs "$@"
+    java -classpath "./target/MasterThesisKSA.jar" "${JVM_OPTS[@]}" net.auberson.scherer.masterthesis.Experiment2 "${ARGS[@]}"
+    ;;
+
+    mocknlc)
+    shift
+    splitArgs "$@"
+    java -classpath "./target/MasterThesisKSA.jar" "${JVM_OPTS[@]}" net.auberson.scherer.masterthesis.util.MockNLCServer "${ARGS[@]}"
     ;;
 
     *)    # unknown command
     echo "USAGE:                                                                         "
+    echo "Options given to a command (-D<option>=<value>) are passed to the JVM, "
+    echo "wherever they appear, e.g. $0 experiment1 -Dsampler.seed=42 <categories>"
     echo "- Extract Dataset: $0 extract"
+    echo "    E.g. $0 extract -Dextract.threads=8"
     echo "    Expects the unpacked StackOverflow archive in ./data/raw (i.e. a "
     echo "    subdirectory named 'stackoverflow' containing a number of 7z files). "
     echo "    Generates many dataset CSVs in ./data/intermediate (one CSV per class,"
     echo "    and a CSV containing the dataset sizes)."
+    echo "- Shuffle Dataset: $0 shuffle [<categories>]"
+    echo "    Writes a shuffled copy of the dataset CSVs in ./data/intermediate (all "
+    echo "    classes if none are given). Run with -Dsampler.shuffled=true, the "
+    echo "    experiments then read samples sequentially from the shuffled copies, "
+    echo "    and never use the same sample twice until the next shuffle."
     echo "- Compute Learning Curve: $0 learningcurve <categories>"
     echo "    E.g. $0 learningcurve electronics gaming security travel cooking"
     echo "    Trains a classifier for the given categories (the corresponding CSV in "
@@ -51,6 +89,12 @@ case $1 in
     echo "    Runs the second experiment, where the last class will not be used for
     echo "    initial training, storing the data files in ./data/experiment2 and the
     echo "    reports in ./reports/experiment2 "
+    echo "- Start a mock NLC server: $0 mocknlc [-Dmock.<option>=<value>...]"
+    echo "    E.g. $0 mocknlc -Dmock.latency=500 -Dmock.throttleRate=0.05"
+    echo "    Serves the NLC API locally, with injected latency and faults (see "
+    echo "    Project.java). Run the experiments with the -Dnlc.endpoint it prints"
+    echo "    to benchmark them without the IBM Cloud, e.g. "
+    echo "    $0 experiment1 -Dnlc.endpoint=<endpoint> <categories>"
     ;;
 esac
 
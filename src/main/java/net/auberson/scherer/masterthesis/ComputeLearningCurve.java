@@ -2,9 +2,22 @@ package net.auberson.scherer.masterthesis;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import net.auberson.scherer.masterthesis.util.BatchClassifier;
 import net.auberson.scherer.masterthesis.util.Project;
@@ -14,58 +27,171 @@ import net.auberson.scherer.masterthesis.util.Sampler;
  * 'Compute Learning Curve' executable: Computes a learning curve, generates a
  * chart. <br>
  * Expects dataset CSVs in ./data/intermediate (one CSV per class, and a CSV
- * containing the dataset sizes).
+ * containing the dataset sizes). <br>
+ * The steps of the curve are independent: Up to
+ * <code>-Dcurve.parallelism</code> sample sizes are trained and evaluated at
+ * the same time, each with a classifier of its own. The results are appended
+ * to the learning-curve CSV in the order of the sample sizes. <br>
+ * With <code>-Dcurve.nested=true</code>, each class is sampled once: The
+ * training sets are the first samples of it (each one contains the previous
+ * one), and the same held-out test set is used for every sample size.
  */
 public class ComputeLearningCurve {
 
 	private static final int TEST_SET_SIZE = 200;
 	public static final File LEARNING_CURVE_REPORTS_DIR = new File("./reports/learning-curve");
 
+	// Evaluates the trained classifiers, one step per thread
+	private static final ExecutorService EVALUATION_EXECUTOR = Executors.newFixedThreadPool(
+			Project.LEARNING_CURVE_PARALLELISM,
+			new ThreadFactoryBuilder().setNameFormat("learning-curve-%d").setDaemon(true).build());
+
 	public static void main(String[] args) throws IOException {
 		if (args.length < 1) {
 			System.err.println("Please specify the classes for which to generate the learning curve.");
 			System.exit(-1);
 		}
 
-		int classCount = args.length;
+		final int classCount = args.length;
 		Collection<String> classNames = Arrays.asList(args);
 		Map<String, Integer> sampleCount = Sampler.getSampleCount(classNames);
 		int minSampleCount = getMin(sampleCount);
+		int stepSize = 5;// computeStepSize(minSampleCount); TODO
 
+		if (Project.LEARNING_CURVE_NESTED) {
+			// The test set is held out of the samples
+			for (String className : classNames) {
+				if (sampleCount.get(className) < TEST_SET_SIZE + stepSize) {
+					System.err.println("The class " + className + " has only " + sampleCount.get(className)
+							+ " samples, a nested learning curve needs at least " + (TEST_SET_SIZE + stepSize)
+							+ " per class (" + TEST_SET_SIZE + " test samples, and " + stepSize + " training samples)");
+					System.exit(-1);
+				}
+			}
+			minSampleCount -= TEST_SET_SIZE;
+		}
 		if (minSampleCount * classCount > Project.MAX_SAMPLES_PER_TRAINING) {
 			// Respect the Watson NLC's limit:
 			minSampleCount = Project.MAX_SAMPLES_PER_TRAINING / classCount;
 		}
-		int stepSize = 5;// computeStepSize(minSampleCount); TODO
+		LEARNING_CURVE_REPORTS_DIR.mkdirs();
+		File results = new File(LEARNING_CURVE_REPORTS_DIR, getResultsFileName(classNames));
+		System.out.println("Results will be appended to " + results.getPath());
+
+		// Nested mode: Sample every class once, and write the test set once
+		Map<String, String[]> samples = null;
+		final File nestedTestSet;
+		if (Project.LEARNING_CURVE_NESTED) {
+			int lastSampleSize = minSampleCount - minSampleCount % stepSize;
+			System.out.println("Sampling " + lastSampleSize + " training and " + TEST_SET_SIZE
+					+ " test samples per class");
+			samples = Sampler.sampleShuffled(TEST_SET_SIZE + lastSampleSize, classNames, sampleCount);
+			nestedTestSet = File.createTempFile("testset-", ".csv");
+			Sampler.writeSamples(samples, 0, TEST_SET_SIZE, nestedTestSet);
+		} else {
+			nestedTestSet = null;
+		}
+
+		// Classifier names are unique to this run, so that concurrent runs don't
+		// delete each other's classifiers
+		String runId = Long.toHexString(System.currentTimeMillis());
+		final Semaphore stepSlots = new Semaphore(Project.LEARNING_CURVE_PARALLELISM);
+		LinkedList<Step> steps = new LinkedList<Step>();
 
 		for (int sampleSize = stepSize; sampleSize <= minSampleCount; sampleSize = sampleSize + stepSize) {
+			stepSlots.acquireUninterruptibly();
+			appendCompletedSteps(steps, results, false);
 			System.out.println("\nCalculating accuracy using sample size " + sampleSize);
 
-			File trainingSet = File.createTempFile("trainingset" + sampleSize + "-", ".csv");
-			File testSet = File.createTempFile("testset" + sampleSize + "-", ".csv");
-			File results = new File(LEARNING_CURVE_REPORTS_DIR, getResultsFileName(classNames));
+			// The samples are drawn one step after the other, in order, so that they
+			// are reproducible with -Dsampler.seed
+			final File trainingSet = File.createTempFile("trainingset" + sampleSize + "-", ".csv");
+			final File testSet;
+			final File stepResults = File.createTempFile("results" + sampleSize + "-", ".csv");
 			System.out.println("Temporary directory is " + trainingSet.getParent());
-			System.out.println("Results will be appended to " + results.getPath());
-
-			Sampler.sample(sampleSize, classNames, sampleCount, trainingSet);
-			Sampler.sample(TEST_SET_SIZE, classNames, sampleCount, testSet);
+			if (nestedTestSet != null) {
+				Sampler.writeSamples(samples, TEST_SET_SIZE, TEST_SET_SIZE + sampleSize, trainingSet);
+				testSet = nestedTestSet;
+			} else {
+				testSet = File.createTempFile("testset" + sampleSize + "-", ".csv");
+				Sampler.sample(sampleSize, classNames, sampleCount, trainingSet);
+				Sampler.sample(TEST_SET_SIZE, classNames, sampleCount, testSet);
+			}
 
 			System.out.println("Training Classifier for Sample Size " + sampleSize);
-			BatchClassifier classifier = new BatchClassifier("LearningCurveTestClassifier", "en", trainingSet);
-			System.out.println("Trained " + classifier);
+			final int size = sampleSize;
+			CompletableFuture<File> evaluated = BatchClassifier
+					.trainAsync("LearningCurve-" + runId + "-" + sampleSize, "en", trainingSet)
+					.thenApplyAsync(new Function<BatchClassifier, File>() {
+						public File apply(BatchClassifier classifier) {
+							System.out.println("Trained " + classifier + " for Sample Size " + size);
+							try {
+								classifier.evaluateAccuracy(trainingSet, size * classCount, "training", stepResults);
+								classifier.evaluateAccuracy(testSet, size * classCount, "validation", stepResults);
+								return stepResults;
+							} catch (IOException e) {
+								throw new UncheckedIOException(e);
+							} finally {
+								// Trained on a set drawn for this step only: It won't be reused
+								classifier.delete();
+								System.out.println("Deleted Classifier " + classifier);
+							}
+						}
+					}, EVALUATION_EXECUTOR).whenComplete(new BiConsumer<File, Throwable>() {
+						public void accept(File stepResults, Throwable failure) {
+							trainingSet.delete();
+							if (testSet != nestedTestSet) {
+								testSet.delete();
+							}
+							stepSlots.release();
+						}
+					});
+			steps.add(new Step(sampleSize, evaluated, stepResults));
+		}
+		appendCompletedSteps(steps, results, true);
+		if (nestedTestSet != null) {
+			nestedTestSet.delete();
+		}
+	}
 
+	/**
+	 * Appends the results of the first steps to the learning-curve CSV, as long
+	 * as they are complete
+	 *
+	 * @param wait
+	 *            true to wait for all steps
+	 */
+	private static void appendCompletedSteps(LinkedList<Step> steps, File results, boolean wait) throws IOException {
+		while (!steps.isEmpty() && (wait || steps.getFirst().evaluated.isDone())) {
+			Step step = steps.removeFirst();
 			try {
-				System.out.println("Processing training set");
-				classifier.evaluateAccuracy(trainingSet, sampleSize * classCount, "training", results);
-				System.out.println("Processing test set");
-				classifier.evaluateAccuracy(testSet, sampleSize * classCount, "validation", results);
+				step.evaluated.join();
+				Files.write(results.toPath(), Files.readAllBytes(step.results.toPath()), StandardOpenOption.CREATE,
+						StandardOpenOption.APPEND);
+				System.out.println("Appended the results of sample size " + step.sampleSize + " to "
+						+ results.getPath());
+			} catch (CompletionException e) {
+				System.err.println("Sample size " + step.sampleSize + " failed, its results are missing: "
+						+ e.getCause().toString());
+				e.getCause().printStackTrace();
 			} finally {
-				classifier.delete();
-				System.out.println("Deleted Classifier " + classifier);
+				step.results.delete();
 			}
+		}
+	}
 
-			trainingSet.delete();
-			testSet.delete();
+	/**
+	 * A sample size being trained and evaluated
+	 */
+	private static class Step {
+		final int sampleSize;
+		final CompletableFuture<File> evaluated;
+		final File results;
+
+		Step(int sampleSize, CompletableFuture<File> evaluated, File results) {
+			this.sampleSize = sampleSize;
+			this.evaluated = evaluated;
+			this.results = results;
 		}
 	}
 
@@ -74,6 +200,9 @@ public class ComputeLearningCurve {
 		for (String className : classNames) {
 			builder.append('-').append(className);
 		}
+		if (Project.LEARNING_CURVE_NESTED) {
+			builder.append("-nested");
+		}
 		return builder.append(".csv").toString();
 	}
 
@@ -1,12 +1,13 @@
 package net.auberson.scherer.masterthesis;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 
 import net.auberson.scherer.masterthesis.model.ClassifierResult;
 import net.auberson.scherer.masterthesis.util.BatchClassifier;
-import net.auberson.scherer.masterthesis.util.IOUtil;
-import net.auberson.scherer.masterthesis.util.Sampler;
+import net.auberson.scherer.masterthesis.util.CorpusStore;
+import net.auberson.scherer.masterthesis.util.Dataset;
 
 /**
  * Executable for second experiment
@@ -49,21 +50,24 @@ public class Experiment2 extends ExperimentBase implements Runnable {
 		int classCountExceptLast = classCount - 1;
 		List<String> classNamesExceptLast = classNames.subList(0, classCountExceptLast);
 
+		// Load the data sets once, and draw all training and test sets from memory
+		CorpusStore corpus = new CorpusStore(classNames, sampleCount);
+		Dataset[] datasets = corpus.sample(new int[] { TRAINING_SET_SIZE, TEST_SET_SIZE }, classNamesExceptLast);
+
 		File trainingSet = getEmptyFile(DATA_DIR, "Iteration", "0", "Training");
 		System.out.println("Creating training set in " + trainingSet.getPath());
+		datasets[0].write(trainingSet);
 
 		File testSet = getEmptyFile(DATA_DIR, "Iteration", "0", "Test");
 		System.out.println("Creating test set in " + testSet.getPath());
-
-		Sampler.sample(new int[] { TRAINING_SET_SIZE, TEST_SET_SIZE }, classNamesExceptLast, sampleCount, trainingSet,
-				testSet);
+		datasets[1].write(testSet);
 
 		System.out.println("Training Classifier with " + TRAINING_SET_SIZE + " samples per class");
 		BatchClassifier classifier = trainClassifier(trainingSet, "Ex2", "Iteration0");
 
-		File output = getEmptyFile(DATA_DIR, "Iteration0Output");
-		System.out.println("Classifying test set into " + output.getPath());
-		classifier.classify(testSet, output);
+		File outputFile = getEmptyFile(DATA_DIR, "Iteration0Output");
+		System.out.println("Classifying test set into " + outputFile.getPath());
+		List<ClassifierResult> output = classifier.classify(datasets[1], outputFile);
 
 		System.out.println("Calculating Confusion Matrices");
 		outputConfMatrix(DATA_DIR, output, CONFIDENCE_THRESHOLD, 0);
@@ -78,14 +82,15 @@ public class Experiment2 extends ExperimentBase implements Runnable {
 
 		testSet = getEmptyFile(DATA_DIR, "Iteration0aTest");
 		System.out.println("Creating test set in " + testSet.getPath());
-		Sampler.sample(TEST_SET_SIZE, classNames, sampleCount, testSet);
+		Dataset testDataset = corpus.sample(TEST_SET_SIZE, classNames);
+		testDataset.write(testSet);
 
-		output = getEmptyFile(DATA_DIR, "Iteration0aOutput");
-		System.out.println("Classifying test set into " + output.getPath());
-		classifier.classify(testSet, output);
+		outputFile = getEmptyFile(DATA_DIR, "Iteration0aOutput");
+		System.out.println("Classifying test set into " + outputFile.getPath());
+		output = classifier.classify(testDataset, outputFile);
 
-		System.out.println("Deleting Classifier " + classifier.getName());
-		classifier.delete();
+		System.out.println("Releasing Classifier " + classifier.getName());
+		classifier.release();
 
 		System.out.println("Calculating Confusion Matrices");
 		outputConfMatrix(DATA_DIR, output, CONFIDENCE_THRESHOLD, "0a");
@@ -93,8 +98,9 @@ public class Experiment2 extends ExperimentBase implements Runnable {
 		System.out.println("Updating statistics files");
 		updateStats(REPORTS_DIR, output, CONFIDENCE_THRESHOLD, "0a", 0);
 		
-		File previousReviewFile = null;
-		
+		// All samples reviewed so far, most recent first
+		List<ClassifierResult> allReviewedEntries = new ArrayList<ClassifierResult>();
+
 		// Retrain a number of times, using the classes with the least confidence
 		for (int i = 1; i <= ITERATIONS; i++) {
 			System.out.println();
@@ -103,59 +109,61 @@ public class Experiment2 extends ExperimentBase implements Runnable {
 			// This list simulates the entries that would have been manually reviewed:
 			List<ClassifierResult> reviewedEntries = getSamplesUnderThreshold(output, CONFIDENCE_THRESHOLD);
 			System.out.println(reviewedEntries.size() + " samples were reviewed this iteration.");
+			allReviewedEntries.addAll(0, reviewedEntries);
 
 			File reviewFile = getEmptyFile(DATA_DIR, "Iteration", Integer.toString(i), "Review");
 			System.out.println("Creating review file in " + reviewFile.getPath());
-			outputClassifierResult(reviewedEntries, reviewFile);
-			IOUtil.copyFile(previousReviewFile, reviewFile, true);
-			previousReviewFile = reviewFile;
+			outputClassifierResult(allReviewedEntries, reviewFile);
 			
-			updateReviewStats(reviewFile, REPORTS_DIR, i);
+			updateReviewStats(allReviewedEntries, REPORTS_DIR, i);
 			updateConfidenceStats(output, REPORTS_DIR, i);
 			
 			// Create training set missing last class
 			trainingSet = getEmptyFile(DATA_DIR, "Iteration", Integer.toString(i), "Training");
 			System.out.println("Creating training set in " + trainingSet.getPath());
-			Sampler.sample(TRAINING_SET_SIZE, classNamesExceptLast, sampleCount, trainingSet);
+			Dataset trainingDataset = corpus.sample(TRAINING_SET_SIZE, classNamesExceptLast);
+			trainingDataset.write(trainingSet);
 
 			// Create test set including last class
 			testSet = getEmptyFile(DATA_DIR, "Iteration", Integer.toString(i), "Test");
 			System.out.println("Creating test set in " + testSet.getPath());
-			Sampler.sample(TEST_SET_SIZE, classNames, sampleCount, testSet);
+			testDataset = corpus.sample(TEST_SET_SIZE, classNames);
+			testDataset.write(testSet);
 
 			// The only examples of the last class known for training are the ones discovered
 			// through review:
 			File trainingSetMerged = getEmptyFile(DATA_DIR, "Iteration", Integer.toString(i), "TrainingMerged");
 			System.out.println("Merging Review file and training set in " + trainingSet.getPath());
-			mergeDataset(trainingSetMerged, TRAINING_SET_SIZE, reviewFile, trainingSet);
+			mergeDataset(trainingSetMerged, TRAINING_SET_SIZE, allReviewedEntries, trainingDataset);
 
-			output = trainAndClassify(trainingSetMerged, testSet, reviewedEntries.size(), i);
+			output = trainAndClassify(trainingSetMerged, testDataset, reviewedEntries.size(), i);
 		}
 
 	}
 
 	/**
 	 * Trains a classifier, evaluates the test set, updates statistics files, and
-	 * returns the files containing the results from the test set evaluation.
+	 * returns the results from the test set evaluation.
 	 */
-	private File trainAndClassify(File trainingSet, File testSet, int reviewedItemsCount, Integer iter) {
+	private List<ClassifierResult> trainAndClassify(File trainingSet, Dataset testSet, int reviewedItemsCount,
+			Integer iter) {
 		System.out.println("Training Classifier with " + TRAINING_SET_SIZE + " samples per class");
 		BatchClassifier classifier = trainClassifier(trainingSet, "Ex1", "Iteration" + iter.toString());
 
 		File output = getEmptyFile(DATA_DIR, "Iteration", iter.toString(), "Output");
 		System.out.println("Classifying test set into " + output.getPath());
-		classifier.classify(testSet, output);
+		List<ClassifierResult> results = classifier.classify(testSet, output);
 
 		System.out.println("Calculating Confusion Matrices");
-		outputConfMatrix(DATA_DIR, output, CONFIDENCE_THRESHOLD, iter);
+		outputConfMatrix(DATA_DIR, results, CONFIDENCE_THRESHOLD, iter);
 		
 		System.out.println("Updating statistics files");
-		updateStats(REPORTS_DIR, output, CONFIDENCE_THRESHOLD, iter, reviewedItemsCount);
+		updateStats(REPORTS_DIR, results, CONFIDENCE_THRESHOLD, iter, reviewedItemsCount);
 
-		System.out.println("Deleting Classifier " + classifier.getName());
-		classifier.delete();
+		System.out.println("Releasing Classifier " + classifier.getName());
+		classifier.release();
 
-		return output;
+		return results;
 	}
 
 }
@@ -25,6 +25,7 @@ import net.auberson.scherer.masterthesis.model.IncrementableInt;
 import net.auberson.scherer.masterthesis.model.StatisticsCounter;
 import net.auberson.scherer.masterthesis.model.StatisticsResults;
 import net.auberson.scherer.masterthesis.util.BatchClassifier;
+import net.auberson.scherer.masterthesis.util.Dataset;
 import net.auberson.scherer.masterthesis.util.IOUtil;
 import net.auberson.scherer.masterthesis.util.Sampler;
 
@@ -74,10 +75,15 @@ public class ExperimentBase {
 	/**
 	 * Returns a file in the specified directory consisting of the prefix provided,
 	 * followed by the class names, all in kebap-case. If a file of that name
-	 * exists, it is deleted. In any case, an empty file is returned
+	 * exists, it is deleted. In any case, an empty file is returned, unless the
+	 * file holds the results of an interrupted classification, to be resumed
 	 */
 	protected File getEmptyFile(File directory, String... prefixes) {
 		File file = new File(directory, getFileName(prefixes));
+		if (BatchClassifier.hasProgress(file)) {
+			// Kept for the BatchClassifier to resume classifying into it
+			return file;
+		}
 		try {
 			file.delete();
 			file.getParentFile().mkdirs();
@@ -153,7 +159,19 @@ public class ExperimentBase {
 		}
 	}
 
-	protected void mergeDataset(File outputFile, int dataSetSize, File... sources) {
+	/**
+	 * Writes the reviewed samples, followed by the samples of a training set, to
+	 * a file, until the given number of samples is reached for each class.
+	 */
+	protected void mergeDataset(File outputFile, int dataSetSize, List<? extends Element> reviewed,
+			Dataset trainingSet) {
+		List<Iterable<? extends Element>> elements = new ArrayList<Iterable<? extends Element>>(2);
+		elements.add(reviewed);
+		elements.add(trainingSet);
+		mergeDataset(outputFile, dataSetSize, elements);
+	}
+
+	private void mergeDataset(File outputFile, int dataSetSize, List<Iterable<? extends Element>> sources) {
 		final Map<String, IncrementableInt> counters = new HashMap<String, IncrementableInt>();
 
 		PrintWriter out = IOUtil.getWriter(outputFile);
@@ -164,17 +182,15 @@ public class ExperimentBase {
 		}
 
 		// Copy entry for entry until the dataSetSize for each entry is reached
-		for (File source : sources) {
-			CSVParser inputCsv = IOUtil.openCSV(source);
-			for (CSVRecord csvRecord : inputCsv) {
-				final String classLabel = csvRecord.get(1).trim();
+		for (Iterable<? extends Element> source : sources) {
+			for (Element element : source) {
+				final String classLabel = element.getClassLabel();
 				if (counters.get(classLabel).lessThan(dataSetSize)) {
-					out.print("\"" + csvRecord.get(0) + "\", ");
+					out.print("\"" + element.getText() + "\", ");
 					out.println(classLabel);
 					counters.get(classLabel).inc();
 				}
 			}
-			IOUtil.close(inputCsv);
 		}
 
 		IOUtil.close(out);
@@ -204,21 +220,12 @@ public class ExperimentBase {
 	}
 
 	/**
-	 * From a Results CSV file, retrieve the entries with a confidence below a
+	 * From a list of results, retrieve the entries with a confidence below a
 	 * certain threshold
-	 * 
-	 * @param results
-	 *            File object pointing to the results file
-	 * @param n
-	 *            number of entries to return
-	 * @return the N results with the lowest confidence
 	 */
-	protected List<ClassifierResult> getSamplesUnderThreshold(File results, double threshold) {
-		CSVParser inputCsv = IOUtil.openCSV(results);
-
+	protected List<ClassifierResult> getSamplesUnderThreshold(List<ClassifierResult> results, double threshold) {
 		List<ClassifierResult> resultList = new ArrayList<ClassifierResult>();
-		for (CSVRecord csvRecord : inputCsv) {
-			ClassifierResult result = new ClassifierResult(csvRecord);
+		for (ClassifierResult result : results) {
 			if (result.getConfidence().doubleValue() < threshold) {
 				resultList.add(result);
 			}
@@ -227,6 +234,20 @@ public class ExperimentBase {
 		// If we need a list sorted by confidence, do this:
 		// resultList.sort(ClassifierResult.COMPARATOR);
 
+		return resultList;
+	}
+
+	/**
+	 * Reads a Results CSV file: First column is the text, second is the actual
+	 * class, third the detected class, and fourth the confidence.
+	 */
+	protected List<ClassifierResult> readResults(File results) {
+		CSVParser inputCsv = IOUtil.openCSV(results);
+		List<ClassifierResult> resultList = new ArrayList<ClassifierResult>();
+		for (CSVRecord csvRecord : inputCsv) {
+			resultList.add(new ClassifierResult(csvRecord.get(0), csvRecord.get(1).trim(), csvRecord.get(2).trim(),
+					Double.parseDouble(csvRecord.get(3).trim())));
+		}
 		IOUtil.close(inputCsv);
 		return resultList;
 	}
@@ -267,19 +288,15 @@ public class ExperimentBase {
 	}
 
 	/**
-	 * Calculate a confusion matrix for the specified results CSV, another for
-	 * 
-	 * @param results
-	 * @param confMatrix
+	 * Calculate a confusion matrix for the specified results, another for the
+	 * results under the confidence threshold, and another for those over it
 	 */
-	protected void outputConfMatrix(File outputDir, File results, double threshold, Object iter) {
+	protected void outputConfMatrix(File outputDir, List<ClassifierResult> results, double threshold, Object iter) {
 		String threshPercent = Long.toString(Math.round(threshold * 100));
 		File outputFile = getEmptyFile(outputDir, "Iteration", iter.toString(), "ConfMtx");
 		File outputUnder = getEmptyFile(outputDir, "Iteration", iter.toString(), "ConfMtxUnder", threshPercent);
 		File outputOver = getEmptyFile(outputDir, "Iteration", iter.toString(), "ConfMtxOver", threshPercent);
 
-		CSVParser inputCsv = IOUtil.openCSV(results);
-
 		HashMap<String, Integer> headers = new HashMap<String, Integer>();
 		for (int i = 0; i < classCount; i++) {
 			final String classLabel = classNames.get(i);
@@ -289,10 +306,10 @@ public class ExperimentBase {
 		int[][] matrixUnder = new int[classCount][classCount];
 		int[][] matrixOver = new int[classCount][classCount];
 
-		for (CSVRecord csvRecord : inputCsv) {
-			final int actualClass = headers.get(csvRecord.get(1).trim()).intValue();
-			final int detectedClass = headers.get(csvRecord.get(2).trim()).intValue();
-			final double confidence = Double.parseDouble(csvRecord.get(3).trim());
+		for (ClassifierResult result : results) {
+			final int actualClass = headers.get(result.getClassLabel()).intValue();
+			final int detectedClass = headers.get(result.getDetectedClassLabel()).intValue();
+			final double confidence = result.getConfidence().doubleValue();
 
 			matrix[detectedClass][actualClass]++;
 			if (confidence < threshold) {
@@ -328,16 +345,11 @@ public class ExperimentBase {
 	}
 
 	/**
-	 * Updates global and class-specific statistics files
-	 * 
-	 * @param trainingSetSize
-	 * @param iter
-	 * @param reviewedItemsCount
-	 * @param testSetSize
+	 * Updates global and class-specific statistics files from a list of results
 	 */
-	protected void updateStats(File outputDir, File results, double threshold, Object iter, int reviewedItemsCount) {
+	protected void updateStats(File outputDir, List<ClassifierResult> results, double threshold, Object iter,
+			int reviewedItemsCount) {
 		outputDir.getParentFile().mkdirs();
-		CSVParser inputCsv = IOUtil.openCSV(results);
 
 		String threshPercent = Long.toString(Math.round(threshold * 100));
 
@@ -352,10 +364,10 @@ public class ExperimentBase {
 		}
 
 		// Iterate through all result records, and update the counters
-		for (CSVRecord csvRecord : inputCsv) {
-			final String actualClass = csvRecord.get(1).trim();
-			final String detectedClass = csvRecord.get(2).trim();
-			final double confidence = Double.parseDouble(csvRecord.get(3).trim());
+		for (ClassifierResult result : results) {
+			final String actualClass = result.getClassLabel();
+			final String detectedClass = result.getDetectedClassLabel();
+			final double confidence = result.getConfidence().doubleValue();
 
 			// Update each statistics object
 			for (StatisticsCounter counter : counters) {
@@ -372,7 +384,6 @@ public class ExperimentBase {
 			}
 
 		}
-		IOUtil.close(inputCsv);
 
 		// Calculate statistics and update the stats files
 		computeResultsAndOutput(outputDir, iter, reviewedItemsCount, counters);
@@ -427,14 +438,9 @@ public class ExperimentBase {
 	}
 
 	/**
-	 * Updates global and class-specific statistics files
-	 * 
-	 * @param trainingSetSize
-	 * @param iter
-	 * @param reviewedItemsCount
-	 * @param testSetSize
+	 * Updates the review statistics file from a list of reviewed samples
 	 */
-	protected void updateReviewStats(File reviewFile, File outputDir, Object iter) {
+	protected void updateReviewStats(List<? extends Element> reviewed, File outputDir, Object iter) {
 		final Map<String, IncrementableInt> counters = new HashMap<String, IncrementableInt>();
 		outputDir.getParentFile().mkdirs();
 
@@ -443,11 +449,9 @@ public class ExperimentBase {
 			counters.put(className, new IncrementableInt());
 		}
 
-		CSVParser inputCsv = IOUtil.openCSV(reviewFile);
-		for (CSVRecord csvRecord : inputCsv) {
-			counters.get(csvRecord.get(1).trim()).inc();
+		for (Element element : reviewed) {
+			counters.get(element.getClassLabel()).inc();
 		}
-		IOUtil.close(inputCsv);
 
 		// Update global statistics file
 		File file = new File(outputDir, getFileName("Review"));
@@ -486,18 +490,23 @@ public class ExperimentBase {
 	 * @param testSetSize
 	 */
 	protected void updateConfidenceStats(File outputFile, File outputDir, Object iter) {
+		updateConfidenceStats(readResults(outputFile), outputDir, iter);
+	}
+
+	/**
+	 * Updates Confidence Stats file from a list of results
+	 */
+	protected void updateConfidenceStats(List<ClassifierResult> results, File outputDir, Object iter) {
 		outputDir.getParentFile().mkdirs();
 
 		// Fill an Apache Commons Math object with all confidence values for the first class
 		DescriptiveStatistics stats = new DescriptiveStatistics();
 		Frequency freq = new Frequency();
-		CSVParser inputCsv = IOUtil.openCSV(outputFile);
-		for (CSVRecord csvRecord : inputCsv) {
-			double confidence = Double.parseDouble(csvRecord.get(3).trim());
+		for (ClassifierResult result : results) {
+			double confidence = result.getConfidence().doubleValue();
 			stats.addValue(confidence);
 			freq.addValue(Double.valueOf(confidence));
 		}
-		IOUtil.close(inputCsv);
 
 		// Update global statistics file
 		File file = new File(outputDir, getFileName("Confidence"));
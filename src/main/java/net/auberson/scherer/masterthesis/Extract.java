@@ -1,22 +1,37 @@
 package net.auberson.scherer.masterthesis;
 
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.PrintWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
-import java.util.Date;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
-import org.apache.commons.lang3.StringEscapeUtils;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
-import com.google.common.base.CharMatcher;
-import com.google.gson.internal.bind.util.ISO8601Utils;
-
+import net.auberson.scherer.masterthesis.util.ArchiveItemInputStream;
+import net.auberson.scherer.masterthesis.util.DatasetWriter;
+import net.auberson.scherer.masterthesis.util.ExtractionManifest;
+import net.auberson.scherer.masterthesis.util.PostsXmlScanner;
 import net.auberson.scherer.masterthesis.util.Project;
+import net.auberson.scherer.masterthesis.util.TextNormalizer;
 import net.sf.sevenzipjbinding.ExtractOperationResult;
+import net.sf.sevenzipjbinding.IInArchive;
 import net.sf.sevenzipjbinding.SevenZip;
 import net.sf.sevenzipjbinding.impl.RandomAccessFileInStream;
 import net.sf.sevenzipjbinding.impl.RandomAccessFileOutStream;
@@ -30,125 +45,235 @@ import net.sf.sevenzipjbinding.simple.ISimpleInArchiveItem;
  * dataset CSVs in ./data/intermediate (one CSV per class, and a CSV containing
  * the dataset sizes).
  */
-public class Extract {
+public class Extract implements Callable<Long> {
 	// private static final DocumentBuilderFactory dbFactory =
 	// DocumentBuilderFactory.newInstance();
 	private static final SAXParserFactory factory = SAXParserFactory.newInstance();
-	private static long datasetCount;
-	private static long datasetCountTotal;
+	// Number of body characters decoded by the byte-level scanner before looking
+	// for a cut point. Tags and entities make the cleaned-up text a lot shorter.
+	private static final int BODY_DECODE_LIMIT = 4096;
+
+	private final File archiveFile;
+	private final String siteName;
+	private final ExtractionManifest manifest;
+	private final TextNormalizer normalizer = new TextNormalizer();
+	private long datasetCount;
 
 	/**
 	 * Executable Java Program. Processes all files in data/raw into files in
-	 * data/intermediate
+	 * data/intermediate. <br>
+	 * Archives are processed in parallel by <code>-Dextract.threads</code>
+	 * workers (by default, one per core). Archives that were already extracted,
+	 * and haven't changed since, are skipped unless
+	 * <code>-Dextract.full=true</code> is specified.
 	 * 
 	 * @param args
 	 * @throws Exception
 	 */
 	public static void main(String[] args) throws Exception {
-		Project.DATAFILE_COUNT.delete();
-		PrintWriter countOut = new PrintWriter(Project.DATAFILE_COUNT);
+		if (Project.EXTRACT_FULL) {
+			Project.DATAFILE_COUNT.delete();
+			ExtractionManifest.MANIFEST_FILE.delete();
+		}
+		ExtractionManifest manifest = new ExtractionManifest();
 
-		System.out.println("Extracting data set from archive...");
+		System.out.println("Extracting data set from archive using " + Project.EXTRACT_THREADS + " worker(s)...");
 
+		// Start with the largest archives, so that the longest jobs don't end up
+		// running alone at the end
+		List<File> archives = new ArrayList<File>();
 		for (File file : Project.STACKEXCHANGE_RAW_DATA_DIR.listFiles()) {
 			if (file.getName().endsWith("7z")) {
-				extractArchiveContents(file, countOut);
+				archives.add(file);
+			}
+		}
+		Collections.sort(archives, new Comparator<File>() {
+			public int compare(File o1, File o2) {
+				return Long.compare(o2.length(), o1.length());
+			}
+		});
+
+		long datasetCountTotal = 0;
+		ExecutorService workers = Executors.newFixedThreadPool(Project.EXTRACT_THREADS);
+		List<Future<Long>> results = new ArrayList<Future<Long>>(archives.size());
+		for (File file : archives) {
+			Extract worker = new Extract(file, manifest);
+			if (worker.isIgnored()) {
+				continue;
+			}
+			if (manifest.isUpToDate(file, worker.siteName)) {
+				System.out.println("Skipping " + worker.siteName + ", already extracted");
+				datasetCountTotal += manifest.getCount(worker.siteName);
+				continue;
 			}
+			results.add(workers.submit(worker));
+		}
+		workers.shutdown();
+
+		for (Future<Long> result : results) {
+			datasetCountTotal += result.get().longValue();
 		}
 
-		countOut.close();
 		System.out.println("Extracted data set from archive, " + datasetCountTotal + " elements written in total");
 	}
 
 	/**
-	 * Processes a single 7zip file: If the 7zip file contains a file called
-	 * "Posts.xml", that file is passed to parsePostsXml.
+	 * Creates a worker for a single 7zip file
 	 * 
-	 * @param file
+	 * @param archiveFile
 	 *            a 7zip file
-	 * @param countOut
-	 * @throws Exception
+	 * @param manifest
+	 *            the manifest in which to record the number of samples extracted,
+	 *            shared between all workers
+	 */
+	public Extract(File archiveFile, ExtractionManifest manifest) {
+		this.archiveFile = archiveFile;
+		this.siteName = archiveFile.getName().replaceAll(".stackexchange|.com|.7z", "");
+		this.manifest = manifest;
+	}
+
+	/**
+	 * @return true if the site name contains a board stopword (e.g. meta)
 	 */
-	private static void extractArchiveContents(File file, PrintWriter countOut) throws Exception {
-		String siteName = file.getName().replaceAll(".stackexchange|.com|.7z", "");
+	public boolean isIgnored() {
 		for (String ignoredBoard : Project.ignoredBoards) {
 			if (siteName.contains(ignoredBoard)) {
-				// Abort processing if site name contains a board stopword (e.g. meta)
-				return;
+				return true;
 			}
 		}
+		return false;
+	}
+
+	/**
+	 * Processes this worker's 7zip file
+	 * 
+	 * @return the number of samples extracted
+	 */
+	public Long call() throws Exception {
+		extractArchiveContents();
+		return Long.valueOf(datasetCount);
+	}
+
+	/**
+	 * Processes a single 7zip file: If the 7zip file contains a file called
+	 * "Posts.xml", that file is passed to parsePostsXml.
+	 * 
+	 * @throws Exception
+	 */
+	private void extractArchiveContents() throws Exception {
+		if (isIgnored()) {
+			// Abort processing if site name contains a board stopword (e.g. meta)
+			return;
+		}
 
-		RandomAccessFileInStream inputStream = new RandomAccessFileInStream(new RandomAccessFile(file, "r"));
-		ISimpleInArchive archive = SevenZip.openInArchive(null, inputStream).getSimpleInterface();
-		int fileCount = archive.getNumberOfItems();
-		for (int i = 0; i < fileCount; i++) {
-			ISimpleInArchiveItem archiveItem = archive.getArchiveItem(i);
-			if (archiveItem.getPath().equals("Posts.xml")) {
-				parsePostsXml(archiveItem, siteName, countOut);
+		String hash = ExtractionManifest.hash(archiveFile);
+		RandomAccessFile randomAccessFile = new RandomAccessFile(archiveFile, "r");
+		IInArchive inArchive = SevenZip.openInArchive(null, new RandomAccessFileInStream(randomAccessFile));
+		try {
+			ISimpleInArchive archive = inArchive.getSimpleInterface();
+			int fileCount = archive.getNumberOfItems();
+			for (int i = 0; i < fileCount; i++) {
+				ISimpleInArchiveItem archiveItem = archive.getArchiveItem(i);
+				if (archiveItem.getPath().equals("Posts.xml") && parsePostsXml(archiveItem)) {
+					manifest.update(archiveFile, siteName, hash, datasetCount);
+				}
 			}
+		} finally {
+			inArchive.close();
+			randomAccessFile.close();
 		}
 	}
 
 	/**
-	 * Processes a single Posts.xml entry in a 7zip file: Extract it to a temporary
-	 * location, and parse the XML contents. Pass the results to processPosts.
+	 * Processes a single Posts.xml entry in a 7zip file: Decompress it, and parse
+	 * the XML contents. Pass the results to processPosts. <br>
+	 * By default, the entry is streamed straight from the decompressor into the
+	 * parser. If streaming is disabled, the entry is extracted to a temporary
+	 * location first.
 	 * 
 	 * @param archiveItem
 	 *            a 7zip entry in a 7zip file
-	 * @param siteName
-	 *            the name of the original 7zip file, without the extension (e.g.
-	 *            cooking.stackexchange.com)
-	 * @param countOut
-	 *            the file to which to write the number of samples extracted once a
-	 *            dataset file has been created
+	 * @return true if the entry was processed successfully
 	 * @throws Exception
 	 */
-	private static void parsePostsXml(ISimpleInArchiveItem archiveItem, final String siteName, PrintWriter countOut)
-			throws Exception {
+	private boolean parsePostsXml(ISimpleInArchiveItem archiveItem) throws Exception {
 		long archiveSize = archiveItem.getSize().longValue();
 		if (archiveSize <= 0) {
 			System.out.println("Warning: Archive size is " + archiveSize + ": " + siteName);
-			return;
+			return false;
 		}
 
-		// Create a temporary file. This is created on this computer's default temp
-		// directory automatically
-		File tempFile = File.createTempFile("temp", ".xml");
+		File tempFile = null;
+		InputStream xmlIn;
+		if (Project.EXTRACT_STREAMING) {
+			// Decompress on a background thread, through a bounded in-memory buffer
+			xmlIn = new ArchiveItemInputStream(archiveItem, Project.EXTRACT_STREAMING_BUFFER_SIZE);
+		} else {
+			// Create a temporary file. This is created on this computer's default temp
+			// directory automatically
+			tempFile = File.createTempFile("temp", ".xml");
 
-		// Extract posts.xml to the temporary file
-		RandomAccessFile randomAccessFile = new RandomAccessFile(tempFile, "rw");
-		ExtractOperationResult result = archiveItem.extractSlow(new RandomAccessFileOutStream(randomAccessFile));
-		randomAccessFile.close();
-		if (!result.equals(ExtractOperationResult.OK)) {
-			System.err.println("Error: 7z Extract result is " + result.name());
-			return;
+			// Extract posts.xml to the temporary file
+			RandomAccessFile randomAccessFile = new RandomAccessFile(tempFile, "rw");
+			ExtractOperationResult result = archiveItem.extractSlow(new RandomAccessFileOutStream(randomAccessFile));
+			randomAccessFile.close();
+			if (!result.equals(ExtractOperationResult.OK)) {
+				System.err.println("Error: 7z Extract result is " + result.name());
+				tempFile.delete();
+				return false;
+			}
+			xmlIn = new BufferedInputStream(new FileInputStream(tempFile));
 		}
 
-		// Create a CSV file where the filtered content will be output
+		// Create a CSV file where the filtered content will be output, and its index.
+		// They are only moved in place once complete.
 		File datasetFile = Project.getDataFile(siteName);
-		datasetFile.delete();
-		final PrintWriter datasetOut = new PrintWriter(datasetFile);
-
-		// Parse the temporary file
-		factory.newSAXParser().parse(tempFile, new DefaultHandler() {
-			@Override
-			public void startElement(String uri, String localName, String qName, Attributes attributes)
-					throws SAXException {
-				processXmlRow(qName, attributes, siteName, datasetOut);
-			}
-		});
+		File partialFile = new File(datasetFile.getPath() + ".part");
+		File indexFile = Project.getIndexFile(siteName);
+		File partialIndexFile = new File(indexFile.getPath() + ".part");
+		final DatasetWriter datasetOut = new DatasetWriter(partialFile, partialIndexFile);
 
-		// Delete the temporary file
-		tempFile.delete();
+		// Parse the XML contents, either with the byte-level scanner or with SAX
+		try {
+			if (Project.EXTRACT_FAST_SCAN) {
+				new PostsXmlScanner(xmlIn).scan(new PostsXmlScanner.QuestionHandler() {
+					public void question(PostsXmlScanner.Row row) throws IOException {
+						processQuestion(row, datasetOut);
+					}
+				});
+			} else {
+				// The parser factory itself isn't thread-safe
+				SAXParser parser;
+				synchronized (factory) {
+					parser = factory.newSAXParser();
+				}
+				parser.parse(xmlIn, new DefaultHandler() {
+					@Override
+					public void startElement(String uri, String localName, String qName, Attributes attributes)
+							throws SAXException {
+						try {
+							processXmlRow(qName, attributes, datasetOut);
+						} catch (IOException e) {
+							throw new SAXException(e);
+						}
+					}
+				});
+			}
+		} finally {
+			xmlIn.close();
+			// Delete the temporary file, if any
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+		}
 
-		// Write out the number of samples, close the output file
-		countOut.println(siteName + ", " + datasetCount + ", " + ISO8601Utils.format(new Date()));
-		countOut.flush();
-		datasetCountTotal = datasetCountTotal + datasetCount;
-		datasetCount = 0;
+		// Close the output files, and move them in place
 		datasetOut.close();
+		Files.move(partialIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Files.move(partialFile.toPath(), datasetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
 
 		System.out.println("Processed " + siteName);
+		return true;
 	}
 
 	/**
@@ -160,13 +285,10 @@ public class Extract {
 	 *            the name of the XML tag
 	 * @param attributes
 	 *            the XML attributes in this tag
-	 * @param siteName
-	 *            the name of the original 7zip file, without the extension (e.g.
-	 *            cooking.stackexchange.com)
 	 * @param datasetOut
 	 *            the output file to which to write dataset items
 	 */
-	private static void processXmlRow(String tagName, Attributes attributes, String siteName, PrintWriter datasetOut) {
+	private void processXmlRow(String tagName, Attributes attributes, DatasetWriter datasetOut) throws IOException {
 		if (tagName.equalsIgnoreCase("row")) {
 			String type = attributes.getValue("PostTypeId");
 			// See the list of post types at:
@@ -175,7 +297,7 @@ public class Extract {
 				// Only process Questions, type 1. Ignore answers, tags, etc...
 				String title = attributes.getValue("Title");
 				String body = attributes.getValue("Body");
-				processPost(title, body, siteName, datasetOut);
+				processPost(title, body, datasetOut);
 			}
 		}
 	}
@@ -188,64 +310,77 @@ public class Extract {
 	 *            The post's title in HTML
 	 * @param body
 	 *            The post's body in HTML
-	 * @param siteName
-	 *            the name of the original 7zip file, without the extension (e.g.
-	 *            cooking.stackexchange.com)
 	 * @param datasetOut
 	 *            the output file to which to write dataset items
 	 */
-	private static void processPost(String title, String body, String siteName, PrintWriter datasetOut) {
-		String text = cleanupInput(title) + " \\r " + cleanupInput(body);
-
-		if (text.length() > 1024) {
-			int cutAt = -1;
-
-			// Find the next end-of-sentence punctuation mark, until it's past 1023 chars.
-			int dotPosition = Project.NLC_SENTENCE_END.indexIn(text);
-			if (dotPosition != -1) {
-				while (dotPosition < 1023 && dotPosition != -1) {
-					cutAt = dotPosition;
-					dotPosition = Project.NLC_SENTENCE_END.indexIn(text, cutAt + 1);
-				}
-			} else {
-				// No end-of-sentence mark found? Search for whitespace instead.
-				int spacePosition = CharMatcher.whitespace().indexIn(text);
-				while (spacePosition < 1023 && spacePosition != -1) {
-					cutAt = spacePosition;
-					spacePosition = CharMatcher.whitespace().indexIn(text, cutAt + 1);
-				}
-			}
+	private void processPost(String title, String body, DatasetWriter datasetOut) throws IOException {
+		normalize(title, body);
+		writePost(datasetOut);
+	}
 
-			// No whitespace found either? Cut at 1024 chars.
-			if (cutAt == -1) {
-				cutAt = 1023;
-			}
+	/**
+	 * Processes a single question found by the byte-level scanner. Only the first
+	 * few KB of the body are decoded: If the cleaned-up text is already long
+	 * enough to know where it will be cut, the rest of the body cannot change the
+	 * result. Otherwise, the whole body is decoded after all.
+	 * 
+	 * @param row
+	 *            a question row of the Posts.xml file
+	 * @param datasetOut
+	 *            the output file to which to write dataset items
+	 */
+	private void processQuestion(PostsXmlScanner.Row row, DatasetWriter datasetOut) throws IOException {
+		String title = row.getTitle();
+		String body = row.getBody(BODY_DECODE_LIMIT + 1);
 
-			text = text.substring(0, cutAt + 1);
+		if (body != null && body.length() > BODY_DECODE_LIMIT) {
+			normalize(title, getSafePrefix(body));
+			if (normalizer.isComplete()) {
+				writePost(datasetOut);
+				return;
+			}
+			body = row.getBody();
 		}
 
-		// Save the result to our output file.
-		datasetOut.println("\"" + text + "\", " + siteName);
-		datasetCount++;
+		processPost(title, body, datasetOut);
 	}
 
 	/**
-	 * Clean up a line of text as expected by the Natural Language Classifier
-	 * 
-	 * @param text
-	 * @return
+	 * Cleans up the title and the body of a post into the normalizer's buffer
 	 */
-	private static String cleanupInput(String text) {
-		// First, remove HTML tags, and replace them by whitespace
-		text = Project.HTML_TAGS_REGEXP.matcher(text).replaceAll(" ");
-		// Then, remove HTML entities (e.g. '&amp;' becomes '&')
-		text = StringEscapeUtils.unescapeHtml4(text);
-		// Then, replace any whitespace by a standard whitespace
-		// https://github.com/google/guava/wiki/StringsExplained
-		text = CharMatcher.whitespace().trimAndCollapseFrom(text, ' ');
-		// Then, remove the remaining special characters
-		text = Project.NLC_FORMAT.retainFrom(text);
-
-		return text;
+	private void normalize(String title, String body) {
+		normalizer.reset();
+		normalizer.append(title);
+		normalizer.appendRaw(" \\r ");
+		normalizer.append(body);
+	}
+
+	/**
+	 * Shortens a partially decoded HTML body so that it doesn't end in the middle
+	 * of a tag or an entity. The cleaned-up result is then a prefix of the
+	 * cleaned-up full body.
+	 */
+	private static String getSafePrefix(String body) {
+		int tagEnd = body.lastIndexOf('>');
+		int openTag = body.indexOf('<', tagEnd + 1);
+		if (openTag != -1) {
+			// Cut before a tag that may only be closed further on
+			return body.substring(0, openTag);
+		}
+		int entity = body.lastIndexOf('&');
+		if (entity != -1 && body.indexOf(';', entity) == -1) {
+			// Cut before an entity that may only be terminated further on
+			return body.substring(0, entity);
+		}
+		return body;
+	}
+
+	/**
+	 * Saves the post in the normalizer's buffer to the output file, with the board
+	 * name as a class.
+	 */
+	private void writePost(DatasetWriter datasetOut) throws IOException {
+		datasetOut.write(normalizer.getBuffer(), normalizer.getLength(), siteName);
+		datasetCount++;
 	}
 }
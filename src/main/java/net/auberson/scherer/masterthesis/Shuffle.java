@@ -0,0 +1,308 @@
+package net.auberson.scherer.masterthesis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import net.auberson.scherer.masterthesis.util.ByteLineReader;
+import net.auberson.scherer.masterthesis.util.IOUtil;
+import net.auberson.scherer.masterthesis.util.Project;
+
+/**
+ * 'Shuffle' executable: Writes a randomly permuted copy of each class's data
+ * file, so that the Sampler can hand out samples with a sequential read (see
+ * <code>-Dsampler.shuffled</code>). <br>
+ * Each record is given a random key. The data file is read in chunks of
+ * <code>-Dshuffle.chunkSize</code> bytes, each chunk is sorted by key in
+ * memory and written to a temporary run file, and the runs are then merged by
+ * key. This works for data files larger than the heap. <br>
+ * Writing a new permutation resets the class's cursor.
+ */
+public class Shuffle {
+
+	private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(Project.DATA_CHARSET);
+
+	private final String className;
+	private final Random rng = Project.SAMPLER_SEED == null ? new Random() : new Random(Project.SAMPLER_SEED);
+
+	// The current chunk: Records are stored one after the other in the arena
+	private byte[] arena;
+	private int arenaLength = 0;
+	private int[] offsets = new int[1024];
+	private int[] lengths = new int[1024];
+	private long[] keys = new long[1024];
+	private int recordCount = 0;
+
+	/**
+	 * Executable Java Program. Shuffles the data files of the given classes, or of
+	 * all classes listed in the count file if none are given.
+	 *
+	 * @param args
+	 *            the names of the classes to shuffle
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		List<String> classNames = new ArrayList<String>(Arrays.asList(args));
+		if (classNames.isEmpty()) {
+			if (!Project.DATAFILE_COUNT.exists()) {
+				System.err.println(
+						Project.DATAFILE_COUNT.getName() + " missing. Please run the Extract step first to fix this.");
+				System.exit(-1);
+			}
+			CSVParser entries = IOUtil.openCSV(Project.DATAFILE_COUNT);
+			for (CSVRecord entry : entries) {
+				classNames.add(entry.get(0).trim());
+			}
+			IOUtil.close(entries);
+		}
+
+		for (String className : classNames) {
+			File dataFile = Project.getDataFile(className);
+			if (!dataFile.exists()) {
+				System.err.println("Dataset not found for class: " + className);
+				System.exit(-1);
+			}
+			long count = new Shuffle(className).shuffle();
+			System.out.println("Shuffled " + count + " samples for class '" + className + "'");
+		}
+	}
+
+	public Shuffle(String className) {
+		this.className = className;
+	}
+
+	/**
+	 * Writes the shuffled copy of this class's data file
+	 *
+	 * @return the number of records shuffled
+	 */
+	public long shuffle() throws IOException {
+		File dataFile = Project.getDataFile(className);
+		File shuffledFile = Project.getShuffledDataFile(className);
+		File partFile = new File(shuffledFile.getPath() + ".part");
+		arena = new byte[(int) Math.min(Math.min(Project.SHUFFLE_CHUNK_SIZE, Integer.MAX_VALUE - 8),
+				dataFile.length() + 1)];
+
+		List<File> runs = new ArrayList<File>();
+		long totalCount = 0;
+		ByteLineReader reader = new ByteLineReader(new FileInputStream(dataFile));
+		try {
+			boolean hasMore = reader.next();
+			while (hasMore) {
+				// Fill a chunk
+				while (hasMore && add(reader.getBuffer(), reader.getLength())) {
+					hasMore = reader.next();
+				}
+				sortChunk();
+				totalCount += recordCount;
+
+				if (!hasMore && runs.isEmpty()) {
+					// The whole file fits into a single chunk
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(partFile), 64 * 1024);
+					writeChunk(out, null);
+					out.close();
+				} else {
+					File run = File.createTempFile("shuffle-" + className + "-", ".run", Project.INTERMEDIATE_DATA_DIR);
+					run.deleteOnExit();
+					DataOutputStream out = new DataOutputStream(
+							new BufferedOutputStream(new FileOutputStream(run), 64 * 1024));
+					writeChunk(out, out);
+					out.close();
+					runs.add(run);
+				}
+				arenaLength = 0;
+				recordCount = 0;
+			}
+		} finally {
+			reader.close();
+		}
+
+		if (!runs.isEmpty()) {
+			merge(runs, partFile);
+		} else if (totalCount == 0) {
+			// Empty data file
+			new FileOutputStream(partFile).close();
+		}
+
+		Files.move(partFile.toPath(), shuffledFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		Project.getCursorFile(className).delete();
+		return totalCount;
+	}
+
+	/**
+	 * Adds a record to the current chunk, with a random key
+	 *
+	 * @return false if the chunk is full. The record must then be added again to
+	 *         the next chunk.
+	 */
+	private boolean add(byte[] line, int length) {
+		if (arenaLength + length > arena.length) {
+			if (recordCount > 0) {
+				return false;
+			}
+			// A single record larger than a chunk
+			arena = new byte[length];
+		}
+		if (recordCount == keys.length) {
+			offsets = Arrays.copyOf(offsets, recordCount * 2);
+			lengths = Arrays.copyOf(lengths, recordCount * 2);
+			keys = Arrays.copyOf(keys, recordCount * 2);
+		}
+		System.arraycopy(line, 0, arena, arenaLength, length);
+		offsets[recordCount] = arenaLength;
+		lengths[recordCount] = length;
+		keys[recordCount] = rng.nextLong();
+		arenaLength += length;
+		recordCount++;
+		return true;
+	}
+
+	/**
+	 * Sorts the records of the current chunk by key
+	 */
+	private void sortChunk() {
+		Integer[] order = new Integer[recordCount];
+		for (int i = 0; i < recordCount; i++) {
+			order[i] = i;
+		}
+		final long[] chunkKeys = keys;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				return Long.compare(chunkKeys[o1], chunkKeys[o2]);
+			}
+		});
+
+		int[] sortedOffsets = new int[offsets.length];
+		int[] sortedLengths = new int[lengths.length];
+		long[] sortedKeys = new long[keys.length];
+		for (int i = 0; i < recordCount; i++) {
+			sortedOffsets[i] = offsets[order[i]];
+			sortedLengths[i] = lengths[order[i]];
+			sortedKeys[i] = keys[order[i]];
+		}
+		offsets = sortedOffsets;
+		lengths = sortedLengths;
+		keys = sortedKeys;
+	}
+
+	/**
+	 * Writes the records of the current chunk, in order
+	 *
+	 * @param out
+	 *            the output
+	 * @param runOut
+	 *            the output, if writing a run file (with keys and record lengths),
+	 *            or null if writing the shuffled data file directly
+	 */
+	private void writeChunk(OutputStream out, DataOutputStream runOut) throws IOException {
+		for (int i = 0; i < recordCount; i++) {
+			if (runOut != null) {
+				runOut.writeLong(keys[i]);
+				runOut.writeInt(lengths[i]);
+				runOut.write(arena, offsets[i], lengths[i]);
+			} else {
+				out.write(arena, offsets[i], lengths[i]);
+				out.write(LINE_SEPARATOR);
+			}
+		}
+	}
+
+	/**
+	 * Merges the sorted run files by key into the shuffled data file, then deletes
+	 * them.
+	 */
+	private void merge(List<File> runs, File target) throws IOException {
+		arena = null;
+		PriorityQueue<Run> queue = new PriorityQueue<Run>(runs.size(), new Comparator<Run>() {
+			public int compare(Run o1, Run o2) {
+				return Long.compare(o1.key, o2.key);
+			}
+		});
+		for (File file : runs) {
+			Run run = new Run(file);
+			if (run.next()) {
+				queue.add(run);
+			} else {
+				run.close();
+			}
+		}
+
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(target), 64 * 1024);
+		try {
+			while (!queue.isEmpty()) {
+				Run run = queue.poll();
+				out.write(run.record, 0, run.length);
+				out.write(LINE_SEPARATOR);
+				if (run.next()) {
+					queue.add(run);
+				} else {
+					run.close();
+				}
+			}
+		} finally {
+			out.close();
+			for (Run run : queue) {
+				run.close();
+			}
+		}
+	}
+
+	/**
+	 * A run file being merged, positioned on its current record
+	 */
+	private static class Run {
+		private final File file;
+		private final DataInputStream in;
+		long key;
+		byte[] record = new byte[4096];
+		int length;
+
+		Run(File file) throws IOException {
+			this.file = file;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		}
+
+		/**
+		 * Reads the next record of the run
+		 *
+		 * @return false if the end of the run has been reached
+		 */
+		boolean next() throws IOException {
+			try {
+				key = in.readLong();
+			} catch (EOFException e) {
+				return false;
+			}
+			length = in.readInt();
+			if (record.length < length) {
+				record = new byte[length];
+			}
+			in.readFully(record, 0, length);
+			return true;
+		}
+
+		void close() throws IOException {
+			in.close();
+			file.delete();
+		}
+	}
+}
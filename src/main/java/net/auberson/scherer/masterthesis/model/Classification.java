@@ -0,0 +1,69 @@
+package net.auberson.scherer.masterthesis.model;
+
+/**
+ * The classes detected by a classifier for a text, most likely first, with
+ * their confidence
+ *
+ */
+public class Classification {
+
+	final String text;
+	final String[] classNames;
+	final double[] confidences;
+
+	public Classification(String text, String[] classNames, double[] confidences) {
+		if (classNames.length != confidences.length) {
+			throw new IllegalArgumentException("Expected one confidence per class");
+		}
+		this.text = text;
+		this.classNames = classNames;
+		this.confidences = confidences;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * @return the number of classes detected
+	 */
+	public int getClassCount() {
+		return classNames.length;
+	}
+
+	/**
+	 * @return the classes detected, most likely first. Not to be modified.
+	 */
+	public String[] getClassNames() {
+		return classNames;
+	}
+
+	/**
+	 * @return the confidence of each class. Not to be modified.
+	 */
+	public double[] getConfidences() {
+		return confidences;
+	}
+
+	public String getClassName(int index) {
+		return classNames[index];
+	}
+
+	public double getConfidence(int index) {
+		return confidences[index];
+	}
+
+	/**
+	 * @return the most likely class
+	 */
+	public String getTopClass() {
+		return classNames[0];
+	}
+
+	/**
+	 * @return the confidence of the most likely class
+	 */
+	public double getTopConfidence() {
+		return confidences[0];
+	}
+}
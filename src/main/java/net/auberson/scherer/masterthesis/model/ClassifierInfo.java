@@ -0,0 +1,53 @@
+package net.auberson.scherer.masterthesis.model;
+
+/**
+ * A classifier known to a classifier backend: Its id, its name, and its
+ * status (e.g. "Training", "Available", "Failed")
+ *
+ */
+public class ClassifierInfo {
+
+	public static final String STATUS_TRAINING = "Training";
+	public static final String STATUS_AVAILABLE = "Available";
+
+	final String classifierId;
+	final String name;
+	final String status;
+
+	public ClassifierInfo(String classifierId, String name, String status) {
+		this.classifierId = classifierId;
+		this.name = name;
+		this.status = status;
+	}
+
+	public String getClassifierId() {
+		return classifierId;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return true if the classifier is still being trained
+	 */
+	public boolean isTraining() {
+		return STATUS_TRAINING.equals(status);
+	}
+
+	/**
+	 * @return true if the classifier is trained, and can classify texts
+	 */
+	public boolean isAvailable() {
+		return STATUS_AVAILABLE.equals(status);
+	}
+
+	@Override
+	public String toString() {
+		return "Classifier " + classifierId + " (name=" + name + ", status=" + status + ")";
+	}
+}
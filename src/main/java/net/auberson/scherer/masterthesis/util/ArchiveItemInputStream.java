@@ -0,0 +1,166 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.sf.sevenzipjbinding.ExtractOperationResult;
+import net.sf.sevenzipjbinding.ISequentialOutStream;
+import net.sf.sevenzipjbinding.SevenZipException;
+import net.sf.sevenzipjbinding.simple.ISimpleInArchiveItem;
+
+/**
+ * An InputStream that reads the contents of a 7zip entry while it is being
+ * decompressed. <br>
+ * The entry is extracted on a background thread into a bounded in-memory ring
+ * buffer, from which this stream is read. The decompressor blocks whenever the
+ * buffer is full, so memory usage does not depend on the size of the entry,
+ * and nothing is written to disk.
+ */
+public class ArchiveItemInputStream extends InputStream {
+
+	private final byte[] ring;
+	private final Thread extractor;
+
+	// Guarded by 'this'
+	private int readPos = 0;
+	private int available = 0;
+	private boolean finished = false;
+	private boolean closed = false;
+	private IOException failure = null;
+
+	/**
+	 * Starts extracting the given 7zip entry on a background thread.
+	 *
+	 * @param archiveItem
+	 *            a 7zip entry in a 7zip file
+	 * @param bufferSize
+	 *            the size of the ring buffer, in bytes
+	 */
+	public ArchiveItemInputStream(final ISimpleInArchiveItem archiveItem, int bufferSize) {
+		this.ring = new byte[bufferSize];
+		this.extractor = new Thread(new Runnable() {
+			public void run() {
+				extract(archiveItem);
+			}
+		}, "7z-extract");
+		this.extractor.setDaemon(true);
+		this.extractor.start();
+	}
+
+	/**
+	 * Background thread: Decompresses the entry into the ring buffer, then
+	 * signals the end of the stream (or the error that occured) to the reader.
+	 */
+	private void extract(ISimpleInArchiveItem archiveItem) {
+		IOException error = null;
+		try {
+			ExtractOperationResult result = archiveItem.extractSlow(new ISequentialOutStream() {
+				public int write(byte[] data) throws SevenZipException {
+					put(data);
+					return data.length;
+				}
+			});
+			if (!result.equals(ExtractOperationResult.OK)) {
+				error = new IOException("7z Extract result is " + result.name());
+			}
+		} catch (SevenZipException e) {
+			error = e;
+		} catch (RuntimeException e) {
+			error = new IOException("7z Extract failed", e);
+		}
+
+		synchronized (this) {
+			finished = true;
+			failure = error;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Copies decompressed data into the ring buffer, blocking while it is full.
+	 */
+	private synchronized void put(byte[] data) throws SevenZipException {
+		int offset = 0;
+		while (offset < data.length) {
+			while (available == ring.length && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SevenZipException("Extraction interrupted", e);
+				}
+			}
+			if (closed) {
+				// The reader has given up: abort decompression
+				throw new SevenZipException("Stream closed by reader");
+			}
+
+			int writePos = (readPos + available) % ring.length;
+			int length = Math.min(data.length - offset, Math.min(ring.length - available, ring.length - writePos));
+			System.arraycopy(data, offset, ring, writePos, length);
+			offset += length;
+			available += length;
+			notifyAll();
+		}
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (available == 0) {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (finished) {
+				if (failure != null) {
+					throw failure;
+				}
+				return -1;
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the 7z extractor", e);
+			}
+		}
+
+		int length = Math.min(len, Math.min(available, ring.length - readPos));
+		System.arraycopy(ring, readPos, b, off, length);
+		readPos = (readPos + length) % ring.length;
+		available -= length;
+		notifyAll();
+		return length;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] single = new byte[1];
+		return read(single, 0, 1) == -1 ? -1 : (single[0] & 0xFF);
+	}
+
+	@Override
+	public synchronized int available() {
+		return available;
+	}
+
+	/**
+	 * Closes the stream. If the entry hasn't been fully read, decompression is
+	 * aborted. Waits for the background thread to finish, since the 7zip archive
+	 * may not be used concurrently.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			extractor.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
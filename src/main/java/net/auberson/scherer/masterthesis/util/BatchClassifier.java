@@ -6,38 +6,78 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 
-import com.ibm.watson.developer_cloud.natural_language_classifier.v1.NaturalLanguageClassifier;
-import com.ibm.watson.developer_cloud.natural_language_classifier.v1.model.ClassificationCollection;
-import com.ibm.watson.developer_cloud.natural_language_classifier.v1.model.ClassifiedClass;
-import com.ibm.watson.developer_cloud.natural_language_classifier.v1.model.Classifier;
-import com.ibm.watson.developer_cloud.natural_language_classifier.v1.model.ClassifierList;
-import com.ibm.watson.developer_cloud.natural_language_classifier.v1.model.ClassifyCollectionOptions;
-import com.ibm.watson.developer_cloud.natural_language_classifier.v1.model.ClassifyInput;
-import com.ibm.watson.developer_cloud.natural_language_classifier.v1.model.CollectionItem;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ibm.watson.developer_cloud.service.exception.ServiceResponseException;
 
-import okhttp3.internal.http2.ConnectionShutdownException;
+import net.auberson.scherer.masterthesis.model.Classification;
+import net.auberson.scherer.masterthesis.model.ClassifierInfo;
+import net.auberson.scherer.masterthesis.model.ClassifierResult;
+import net.auberson.scherer.masterthesis.model.Element;
+import net.auberson.scherer.masterthesis.model.IncrementableInt;
 
 /**
  * A utility that allows the classifier to be called on large files. <br>
  * This class will group together samples in Batches, and call the classifier
- * once per batch, then merge the results.
+ * once per batch, then merge the results. <br>
+ * The classifiers are trained and run by the backend selected with
+ * <code>-Dnlc.backend</code> (see <code>ClassifierBackend</code>).
  *
  */
 public class BatchClassifier {
-	private static final int NUM_RETRIES = 5;
-	private NaturalLanguageClassifier svc;
-	private Classifier classifier;
+	// Trains and runs the classifiers
+	private static final ClassifierBackend BACKEND = createBackend(Project.NLC_BACKEND);
+	// Calls the classifier for several batches at a time
+	private static final ExecutorService BATCH_EXECUTOR = Executors.newFixedThreadPool(Project.NLC_CONCURRENCY,
+			new ThreadFactoryBuilder().setNameFormat("nlc-classify-%d").setDaemon(true).build());
+	// Sizes the batches of all classifiers, as they share the same service
+	private static final BatchSizer BATCH_SIZER = new BatchSizer();
+	// Results of the texts already classified, loaded on first use
+	private static ResultCache resultCache;
+	// Guards the dead-letter file within this process, the file lock across
+	// processes
+	private static final Object DEAD_LETTER_LOCK = new Object();
+	// Uploads training sets for trainAsync
+	private static final ExecutorService TRAINING_EXECUTOR = Executors.newCachedThreadPool(
+			new ThreadFactoryBuilder().setNameFormat("nlc-training-%d").setDaemon(true).build());
+	// Polls all classifiers being trained
+	private static final ScheduledExecutorService TRAINING_POLLER = Executors.newScheduledThreadPool(2,
+			new ThreadFactoryBuilder().setNameFormat("nlc-training-poller-%d").setDaemon(true).build());
+	// Classifiers being trained by this process, by training set
+	private static final Map<String, CompletableFuture<ClassifierInfo>> PENDING_TRAININGS = new HashMap<String, CompletableFuture<ClassifierInfo>>();
+	// Classifiers trained so far, by training set
+	private static final ClassifierRegistry REGISTRY = new ClassifierRegistry(
+			Project.getClassifierRegistry(BACKEND.getName()));
+	private ClassifierInfo classifier;
+	// Identifies the classifier in the result cache
+	private String cacheKey;
+	// Identifies the training set in the registry, if the classifier was trained
+	// (or reused) by this object
+	private String trainingSetKey;
 
 	/**
 	 * Creates a BatchClassifier by retrieving it using the given ClassifierId
@@ -45,66 +85,304 @@ public class BatchClassifier {
 	 * @param classifierId
 	 */
 	public BatchClassifier(String classifierId) {
-		int retries = NUM_RETRIES;
-		while (true) {
-			try {
-				this.classifier = getService().getClassifier(classifierId).execute();
-				break;
-			} catch (RuntimeException e) {
-				if (e.getCause() instanceof ConnectionShutdownException) {
-					svc = null;
-				}
-				System.err.println(e.toString());
-				if (--retries == 0) {
-					throw e;
-				}
-			}
+		this.classifier = BACKEND.get(classifierId);
+		if (classifier == null) {
+			throw new IllegalArgumentException("Classifier " + classifierId + " doesn't exist");
 		}
+		this.cacheKey = classifierId;
 	}
 
 	/**
 	 * Creates a BatchClassifier by creating a new classifier from scratch and
-	 * training it.
+	 * training it. <br>
+	 * If a classifier was trained on the same training set before, and still
+	 * exists, it is reused instead (see <code>ClassifierRegistry</code>). The
+	 * classifier should be released once no longer needed.
 	 * 
 	 * @param trainingSet
 	 * @throws FileNotFoundException
 	 */
 	public BatchClassifier(String name, String language, File trainingSet) throws FileNotFoundException {
-		String classifierId = getClassifierId(name);
-		if (classifierId != null) {
-			System.out.println("Deleting previously existing Classifier " + classifierId);
-			delete(classifierId);
+		if (!trainingSet.isFile()) {
+			throw new FileNotFoundException(trainingSet.getAbsolutePath());
 		}
+		try {
+			train(name, language, trainingSet).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			} else if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw e;
+		}
+	}
 
-		long timerStart = System.currentTimeMillis();
-		Classifier newClassifier = createClassifier(name, language, trainingSet);
-		while (newClassifier.getStatus().equals("Training")) {
-			try {
-				Thread.sleep(60000);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+	private BatchClassifier() {
+	}
+
+	/**
+	 * @return the backend named by <code>-Dnlc.backend</code>
+	 */
+	private static ClassifierBackend createBackend(String name) {
+		if (name.equals("watson")) {
+			return new WatsonBackend();
+		} else if (name.equals("local")) {
+			return new LocalBackend();
+		}
+		try {
+			return Class.forName(name).asSubclass(ClassifierBackend.class).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			System.err.println("Unknown classifier backend '" + name + "', expected watson, local, or the name of a "
+					+ ClassifierBackend.class.getSimpleName() + " implementation");
+			e.printStackTrace();
+			System.exit(-1);
+			return null;
+		}
+	}
+
+	/**
+	 * Creates a BatchClassifier like <code>BatchClassifier(name, language,
+	 * trainingSet)</code>, without blocking the calling thread: The training set
+	 * is uploaded on a background thread, and the classifier is then polled until
+	 * trained. Several classifiers can be trained at the same time.
+	 *
+	 * @param trainingSet
+	 * @return a future completed with the trained BatchClassifier, or
+	 *         exceptionally if the training set doesn't exist or training failed
+	 */
+	public static CompletableFuture<BatchClassifier> trainAsync(final String name, final String language,
+			final File trainingSet) {
+		final CompletableFuture<BatchClassifier> trained = new CompletableFuture<BatchClassifier>();
+		if (!trainingSet.isFile()) {
+			trained.completeExceptionally(new FileNotFoundException(trainingSet.getAbsolutePath()));
+			return trained;
+		}
+		TRAINING_EXECUTOR.execute(new Runnable() {
+			public void run() {
+				try {
+					new BatchClassifier().train(name, language, trainingSet)
+							.whenComplete(new BiConsumer<BatchClassifier, Throwable>() {
+								public void accept(BatchClassifier classifier, Throwable failure) {
+									if (failure != null) {
+										trained.completeExceptionally(
+												failure instanceof CompletionException ? failure.getCause() : failure);
+									} else {
+										trained.complete(classifier);
+									}
+								}
+							});
+				} catch (Throwable e) {
+					trained.completeExceptionally(e);
+				}
+			}
+		});
+		return trained;
+	}
+
+	/**
+	 * Sets up this object with a classifier trained on the training set: The
+	 * classifier registered for the training set if still available, the one
+	 * being trained for it by this process, or a new one.
+	 *
+	 * @return a future completed with this object once the classifier is trained
+	 */
+	private CompletableFuture<BatchClassifier> train(final String name, final String language,
+			final File trainingSet) {
+		this.trainingSetKey = getTrainingSetKey(language, trainingSet);
+		this.cacheKey = trainingSetKey;
+
+		// Only train one classifier per training set at a time
+		final CompletableFuture<ClassifierInfo> pending;
+		final CompletableFuture<ClassifierInfo> training = new CompletableFuture<ClassifierInfo>();
+		synchronized (PENDING_TRAININGS) {
+			pending = PENDING_TRAININGS.get(trainingSetKey);
+			if (pending == null) {
+				PENDING_TRAININGS.put(trainingSetKey, training);
 			}
-			newClassifier = updateClassifier(newClassifier);
 		}
-		System.out.println("Classifier trained in " + ((System.currentTimeMillis() - timerStart) / 60000) + " Minutes");
-		this.classifier = newClassifier;
+		if (pending != null) {
+			System.out.println("Waiting for the Classifier being trained on identical data");
+			return pending.thenApply(new Function<ClassifierInfo, BatchClassifier>() {
+				public BatchClassifier apply(ClassifierInfo trained) {
+					return use(trained);
+				}
+			});
+		}
+
+		CompletableFuture<ClassifierInfo> trained;
+		try {
+			trained = findOrCreateClassifier(name, language, trainingSet);
+		} catch (RuntimeException e) {
+			trained = new CompletableFuture<ClassifierInfo>();
+			trained.completeExceptionally(e);
+		}
+		return trained.whenComplete(new BiConsumer<ClassifierInfo, Throwable>() {
+			public void accept(ClassifierInfo classifier, Throwable failure) {
+				synchronized (PENDING_TRAININGS) {
+					PENDING_TRAININGS.remove(trainingSetKey);
+				}
+				if (failure != null) {
+					training.completeExceptionally(failure);
+				} else {
+					training.complete(classifier);
+				}
+			}
+		}).thenApply(new Function<ClassifierInfo, BatchClassifier>() {
+			public BatchClassifier apply(ClassifierInfo trained) {
+				// The registry was updated when the classifier was created or found
+				classifier = trained;
+				return BatchClassifier.this;
+			}
+		});
+	}
+
+	/**
+	 * Uses a classifier trained by another BatchClassifier of this process
+	 */
+	private BatchClassifier use(ClassifierInfo trained) {
+		REGISTRY.acquire(trainingSetKey, trained.getClassifierId(), trained.getName());
+		this.classifier = trained;
+		return this;
 	}
 
-	private NaturalLanguageClassifier getService() {
-		// Not thread-safe!
-		if (svc != null) {
-			return svc;
+	/**
+	 * @return a future completed with the classifier registered for the training
+	 *         set, if still available, or else with a new classifier, once trained
+	 */
+	private CompletableFuture<ClassifierInfo> findOrCreateClassifier(final String name, final String language,
+			final File trainingSet) {
+		final String registeredId = REGISTRY.lookup(trainingSetKey);
+		if (registeredId == null) {
+			return createAndTrainClassifier(name, language, trainingSet);
+		}
+		final ClassifierInfo registered = BACKEND.get(registeredId);
+		if (registered == null) {
+			System.out.println("Classifier " + registeredId + " trained on identical data doesn't exist anymore");
+			REGISTRY.remove(registeredId);
+			return createAndTrainClassifier(name, language, trainingSet);
 		}
 
-		// Programmatically suppress the HTTP logging
-		Logger.getLogger("com.ibm.watson.developer_cloud.util.HttpLogging").setLevel(Level.WARNING);
-		
-		// Initialize Watson NLC
-		NLCProperties nlcProps = new NLCProperties();
-		svc = new NaturalLanguageClassifier();
-		svc.setUsernameAndPassword(nlcProps.getUsername(), nlcProps.getPassword());
+		// Possibly still being trained, e.g. by another run
+		REGISTRY.acquire(trainingSetKey, registeredId, registered.getName());
+		return awaitTraining(registered)
+				.thenComposeAsync(new Function<ClassifierInfo, CompletionStage<ClassifierInfo>>() {
+					public CompletionStage<ClassifierInfo> apply(ClassifierInfo trained) {
+						if (trained.isAvailable()) {
+							System.out.println("Reusing Classifier " + registeredId + " trained on identical data");
+							return CompletableFuture.completedFuture(trained);
+						}
+						System.out.println("Classifier " + registeredId + " trained on identical data is not available");
+						REGISTRY.remove(registeredId);
+						BACKEND.delete(registeredId);
+						return createAndTrainClassifier(name, language, trainingSet);
+					}
+				}, TRAINING_EXECUTOR);
+	}
 
-		return svc;
+	/**
+	 * Uploads the training set, and registers the new classifier right away
+	 *
+	 * @return a future completed with the new classifier, once trained
+	 */
+	private CompletableFuture<ClassifierInfo> createAndTrainClassifier(String name, String language,
+			File trainingSet) {
+		for (String classifierId : getClassifierIds(name)) {
+			if (!REGISTRY.contains(classifierId)) {
+				System.out.println("Deleting previously existing Classifier " + classifierId);
+				BACKEND.delete(classifierId);
+			}
+		}
+		deleteExpiredClassifiers();
+
+		// The account trains a limited number of classifiers at a time
+		final NLCQuota.TrainingSlot trainingSlot = BACKEND.isRemote() ? NLCQuota.acquireTrainingSlot() : null;
+		final long timerStart = System.currentTimeMillis();
+		ClassifierInfo newClassifier;
+		try {
+			newClassifier = BACKEND.train(name, language, trainingSet);
+		} catch (RuntimeException e) {
+			release(trainingSlot);
+			throw e;
+		}
+		REGISTRY.acquire(trainingSetKey, newClassifier.getClassifierId(), name);
+		return awaitTraining(newClassifier).whenComplete(new BiConsumer<ClassifierInfo, Throwable>() {
+			public void accept(ClassifierInfo trained, Throwable e) {
+				release(trainingSlot);
+			}
+		}).thenApply(new Function<ClassifierInfo, ClassifierInfo>() {
+			public ClassifierInfo apply(ClassifierInfo trained) {
+				if (!trained.isAvailable()) {
+					REGISTRY.remove(trained.getClassifierId());
+					BACKEND.delete(trained.getClassifierId());
+					throw new IllegalStateException("Classifier " + trained.getClassifierId()
+							+ " could not be trained, its status is " + trained.getStatus());
+				}
+				long trainingTime = System.currentTimeMillis() - timerStart;
+				if (BACKEND.isRemote()) {
+					// From the upload until the classifier is available
+					CallStats.get("training").record(trainingTime * 1000);
+				}
+				System.out.println("Classifier " + trained.getClassifierId() + " trained in " + (trainingTime / 1000)
+						+ " Seconds");
+				return trained;
+			}
+		});
+	}
+
+	private static void release(NLCQuota.TrainingSlot trainingSlot) {
+		if (trainingSlot != null) {
+			trainingSlot.release();
+		}
+	}
+
+	/**
+	 * Polls a classifier on the shared scheduler until its training is over:
+	 * Every <code>-Dnlc.pollInterval</code> ms at first, then less and less
+	 * often, up to every <code>-Dnlc.maxPollInterval</code> ms.
+	 *
+	 * @return a future completed with the classifier, once no longer training
+	 */
+	private CompletableFuture<ClassifierInfo> awaitTraining(ClassifierInfo newClassifier) {
+		CompletableFuture<ClassifierInfo> trained = new CompletableFuture<ClassifierInfo>();
+		poll(newClassifier, 0, trained);
+		return trained;
+	}
+
+	private void poll(final ClassifierInfo newClassifier, final int pollCount,
+			final CompletableFuture<ClassifierInfo> trained) {
+		if (!newClassifier.isTraining()) {
+			trained.complete(newClassifier);
+			return;
+		}
+		long interval = (long) Math.min(Project.NLC_MAX_POLL_INTERVAL,
+				Project.NLC_POLL_INTERVAL * Math.pow(1.5, pollCount));
+		TRAINING_POLLER.schedule(new Runnable() {
+			public void run() {
+				try {
+					poll(updateClassifier(newClassifier), pollCount + 1, trained);
+				} catch (Throwable e) {
+					trained.completeExceptionally(e);
+				}
+			}
+		}, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return a key identifying the classifiers trained on the same training set:
+	 *         The language, and the fingerprint of the file
+	 */
+	private static String getTrainingSetKey(String language, File trainingSet) {
+		try {
+			return language + "-"
+					+ Hashing.farmHashFingerprint64().hashBytes(Files.readAllBytes(trainingSet.toPath())).toString();
+		} catch (IOException e) {
+			System.err.println("A disk error occured trying to read the training set at "
+					+ trainingSet.getAbsolutePath());
+			e.printStackTrace();
+			System.exit(-1);
+			return null;
+		}
 	}
 
 	/**
@@ -113,69 +391,271 @@ public class BatchClassifier {
 	 * The results written to the file are in the following format: <br>
 	 * sample text, expected class, detected class 1, confidence 1, detected class
 	 * 2, confidence 2, etc... <br>
+	 * <br>
+	 * If a previous run with the same classifier and input was interrupted, it is
+	 * resumed from its last checkpoint (see <code>ClassifyJournal</code>).
 	 * 
 	 * @param input
 	 *            a File pointing to a CSV with at least 2 columns: Text and Class
-	 * @param sampleSize
-	 *            the number of samples in the File passed
 	 * @param output
 	 *            a file to which the results will be appended
+	 * @return the results, with the most likely class detected for each sample
 	 */
-	public void classify(File input, File output) {
-
-		// Parse the CSV file
-		Iterator<CSVRecord> inputCsv = null;
+	public List<ClassifierResult> classify(File input, File output) {
+		// Parse the CSV file, while the samples are being classified
+		CSVParser inputCsv = null;
+		String inputFingerprint = null;
 		try {
-			inputCsv = CSVFormat.DEFAULT.parse(new FileReader(input)).iterator();
+			inputFingerprint = com.google.common.io.Files.asByteSource(input)
+					.hash(Hashing.farmHashFingerprint64()).toString();
+			inputCsv = CSVFormat.DEFAULT.parse(new FileReader(input));
 		} catch (IOException e) {
 			System.err.println("A error occured trying to read CSV file at " + input.getAbsolutePath());
 			e.printStackTrace();
 			System.exit(-1);
 		}
-
-		// Open the output file for appending ("true")
-		PrintWriter out = null;
 		try {
-			out = new PrintWriter(new FileWriter(output, true));
-		} catch (IOException e) {
-			System.err.println("Unable to open the output file at " + input.getAbsolutePath());
-			e.printStackTrace();
-			System.exit(-1);
+			return classify(readElements(inputCsv), output, inputFingerprint);
+		} finally {
+			IOUtil.close(inputCsv);
 		}
+	}
 
-		// Call the classifier in batches, append the result to output file
-		Batch batch = new Batch(classifier);
+	/**
+	 * Classify the contents of a data set held in memory, write the results to a
+	 * CSV file (see <code>classify(File, File)</code>).
+	 * 
+	 * @param input
+	 *            the samples to classify
+	 * @param output
+	 *            a file to which the results will be appended
+	 * @return the results, with the most likely class detected for each sample
+	 */
+	public List<ClassifierResult> classify(Iterable<Element> input, File output) {
+		Hasher inputHasher = Hashing.farmHashFingerprint64().newHasher();
+		for (Element element : input) {
+			inputHasher.putUnencodedChars(element.getText()).putByte((byte) 0)
+					.putUnencodedChars(String.valueOf(element.getClassLabel())).putByte((byte) 0);
+		}
+		return classify(input.iterator(), output, inputHasher.hash().toString());
+	}
 
-		while (inputCsv.hasNext()) {
-			CSVRecord csvRecord = inputCsv.next();
-			batch.add(csvRecord.get(0), csvRecord.get(1).trim());
+	/**
+	 * Classifies the samples, recording the progress in a journal, then replays
+	 * the batches of this run written to the dead-letter file, once
+	 *
+	 * @param inputFingerprint
+	 *            identifies the input in the journal
+	 */
+	private List<ClassifierResult> classify(Iterator<? extends Element> input, File output,
+			String inputFingerprint) {
+		final ClassifyJournal journal = ClassifyJournal.open(output, classifier.getClassifierId(), inputFingerprint);
+		List<ClassifierResult> classifierResults = journal.readResumedResults();
+		for (long skipped = 0; skipped < journal.getResumedSamples() && input.hasNext(); skipped++) {
+			input.next();
+		}
 
-			if (batch.isFull() || !inputCsv.hasNext()) {
+		try {
+			classify(input, journal.openOutput(), classifierResults, new ClassifyPipeline.ProgressHandler() {
+				public void done(Batch batch, boolean failed) {
+					if (failed) {
+						journal.batchFailed(batch.texts);
+					}
+					journal.batchDone(batch.count);
+				}
+			});
+		} finally {
+			// If interrupted, the next run resumes from here
+			journal.close();
+		}
+
+		// Give the failed batches another chance, now that the others are done. The
+		// journal knows those of the run resumed as well.
+		List<String> failedTexts = journal.getFailedTexts();
+		if (!failedTexts.isEmpty()) {
+			classifierResults.addAll(replayDeadLetters(output, failedTexts));
+		}
+		journal.delete();
+		return classifierResults;
+	}
 
-				ClassificationCollection results = classifyBatch(batch);
+	/**
+	 * Classifies the samples, and appends the results to the output file
+	 *
+	 * @param out
+	 *            the output file, closed once all samples are classified
+	 * @param classifierResults
+	 *            receives the results, with the most likely class detected for
+	 *            each sample
+	 * @param progress
+	 *            is told about each batch once it is done, or null
+	 * @return the batches that couldn't be classified
+	 */
+	private List<Batch> classify(Iterator<? extends Element> input, PrintWriter out,
+			final List<ClassifierResult> classifierResults, ClassifyPipeline.ProgressHandler progress) {
+		// Call the classifier in batches, append the result to output file
+		final PrintWriter resultsOut = out;
+		List<Batch> failedBatches = classify(input, new ClassifyPipeline.ResultHandler() {
+			public void handle(Batch batch, List<Classification> results) {
+				for (int sample = 0; sample < results.size(); sample++) {
+					Classification result = results.get(sample);
+					String expected = batch.expectedClasses.get(sample);
 
-				for (CollectionItem result : results.getCollection()) {
 					// Output the original text (in quotes)...
-					out.print("\"" + result.getText() + "\", ");
+					resultsOut.print("\"" + result.getText() + "\", ");
 					// ...the expected value...
-					out.print(batch.expectedValues.get(result.getText()));
+					resultsOut.print(expected);
 
-					for (ClassifiedClass classification : result.getClasses()) {
+					for (int i = 0; i < result.getClassCount(); i++) {
 						// ...the detected class (most likely first)...
-						out.print(", " + classification.getClassName());
+						resultsOut.print(", " + result.getClassName(i));
 						// ...and the confidence
-						out.print(", " + classification.getConfidence());
+						resultsOut.print(", " + result.getConfidence(i));
 					}
 
-					out.println();
+					resultsOut.println();
+
+					classifierResults.add(new ClassifierResult(result.getText(), expected, result.getTopClass(),
+							result.getTopConfidence()));
 				}
+			}
+		}, progress);
+		return failedBatches;
+	}
 
-				batch = new Batch(classifier);
+	/**
+	 * @return true if a run classifying into the output was interrupted, and
+	 *         can be resumed (see <code>classify(File, File)</code>)
+	 */
+	public static boolean hasProgress(File output) {
+		return ClassifyJournal.getFile(output).exists();
+	}
+
+	/**
+	 * Classifies the samples of this classifier found in the dead-letter file
+	 * (see <code>-Dnlc.retries</code>), and removes them from it. Samples that
+	 * fail again are written back to the dead-letter file.
+	 *
+	 * @param output
+	 *            a file to which the results will be appended (see
+	 *            <code>classify(File, File)</code>)
+	 * @return the results, with the most likely class detected for each sample
+	 */
+	public List<ClassifierResult> replayDeadLetters(File output) {
+		return replayDeadLetters(output, null);
+	}
+
+	/**
+	 * @param texts
+	 *            the texts of the samples to replay, a text once per sample, or
+	 *            null to replay all samples of this classifier
+	 */
+	private List<ClassifierResult> replayDeadLetters(File output, List<String> texts) {
+		// Number of samples to replay, by text
+		Map<String, Integer> remaining = null;
+		if (texts != null) {
+			remaining = new HashMap<String, Integer>();
+			for (String text : texts) {
+				Integer count = remaining.get(text);
+				remaining.put(text, count == null ? 1 : count + 1);
+			}
+		}
+		List<Element> deadLetters = new ArrayList<Element>();
+		synchronized (DEAD_LETTER_LOCK) {
+			File deadLetterFile = Project.NLC_DEAD_LETTER_FILE;
+			if (!deadLetterFile.exists()) {
+				return new ArrayList<ClassifierResult>();
+			}
+			File partFile = new File(deadLetterFile.getPath() + ".part");
+			RandomAccessFile lock = IOUtil.lock(getDeadLetterLockFile());
+			try {
+				CSVParser deadLetterCsv = IOUtil.openCSV(deadLetterFile);
+				PrintWriter others = IOUtil.getWriter(partFile);
+				for (CSVRecord deadLetter : deadLetterCsv) {
+					String classifierId = deadLetter.get(2).trim();
+					if (classifierId.equals(classifier.getClassifierId())
+							&& (texts == null || remaining.containsKey(deadLetter.get(0)))) {
+						Integer count = texts == null ? null : remaining.get(deadLetter.get(0));
+						if (count == null || count > 0) {
+							deadLetters.add(new Element(deadLetter.get(0), deadLetter.get(1).trim()));
+						}
+						// Else the sample failed again after the last checkpoint of an
+						// interrupted run, and was classified again: It is only replayed once
+						if (count != null) {
+							remaining.put(deadLetter.get(0), count - 1);
+						}
+					} else {
+						// Other dead letters are kept
+						others.println("\"" + deadLetter.get(0) + "\", " + deadLetter.get(1).trim() + ", " + classifierId);
+					}
+				}
+				IOUtil.close(deadLetterCsv);
+				IOUtil.close(others);
+				Files.move(partFile.toPath(), deadLetterFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				System.err.println("A disk error occured trying to update the dead-letter file at "
+						+ deadLetterFile.getAbsolutePath());
+				e.printStackTrace();
+				System.exit(-1);
+			} finally {
+				IOUtil.close(lock);
 			}
 		}
 
+		if (deadLetters.isEmpty()) {
+			return new ArrayList<ClassifierResult>();
+		}
+		System.out.println("Replaying " + deadLetters.size() + " samples from the dead-letter file");
+		// Open the output file for appending ("true")
+		PrintWriter out = null;
+		try {
+			out = new PrintWriter(new FileWriter(output, true));
+		} catch (IOException e) {
+			System.err.println("Unable to open the output file at " + output.getAbsolutePath());
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		List<ClassifierResult> classifierResults = new ArrayList<ClassifierResult>();
+		classify(deadLetters.iterator(), out, classifierResults, null);
 		// Close the output file, writing everything to disk
 		out.close();
+		return classifierResults;
+	}
+
+	/**
+	 * Appends the samples of a batch that couldn't be classified to the
+	 * dead-letter file
+	 */
+	private void writeDeadLetters(Batch batch) {
+		synchronized (DEAD_LETTER_LOCK) {
+			File deadLetterFile = Project.NLC_DEAD_LETTER_FILE;
+			RandomAccessFile lock = IOUtil.lock(getDeadLetterLockFile());
+			try {
+				PrintWriter out = new PrintWriter(new FileWriter(deadLetterFile, true));
+				for (int i = 0; i < batch.count; i++) {
+					out.println("\"" + batch.texts.get(i) + "\", " + batch.expectedClasses.get(i) + ", "
+							+ classifier.getClassifierId());
+				}
+				out.close();
+			} catch (IOException e) {
+				System.err.println("Unable to write to the dead-letter file at " + deadLetterFile.getAbsolutePath());
+				e.printStackTrace();
+				System.exit(-1);
+			} finally {
+				IOUtil.close(lock);
+			}
+		}
+		System.err.println(batch.count + " samples couldn't be classified, and were written to "
+				+ Project.NLC_DEAD_LETTER_FILE.getPath());
+	}
+
+	/**
+	 * @return the file locked while the dead-letter file is written, as it is
+	 *         replaced when replayed
+	 */
+	private static File getDeadLetterLockFile() {
+		return new File(Project.NLC_DEAD_LETTER_FILE.getPath() + ".lock");
 	}
 
 	/**
@@ -198,37 +678,30 @@ public class BatchClassifier {
 			throws FileNotFoundException, IOException {
 		CSVParser inputCsv = CSVFormat.DEFAULT.parse(new FileReader(input));
 
-		Batch currentBatch = new Batch(classifier);
-		List<Batch> allBatches = new ArrayList<Batch>(sampleSize / Project.MAX_SAMPLES_PER_CLASSIFICATION_REQUEST + 1);
-		allBatches.add(currentBatch);
-
-		// Batch samples
-		for (CSVRecord csvRecord : inputCsv) {
-			if (currentBatch.isFull()) {
-				currentBatch = new Batch(classifier);
-				allBatches.add(currentBatch);
-			}
-			currentBatch.add(csvRecord.get(0), csvRecord.get(1).trim());
-		}
-
-		// Process each batch sequentially
-		int processed = 0;
-		int correct = 0;
-		int incorrect = 0;
-
-		for (Batch batch : allBatches) {
-			ClassificationCollection results = classifyBatch(batch);
-			for (CollectionItem result : results.getCollection()) {
-				String expected = batch.expectedValues.get(result.getText());
-				String returned = result.getTopClass();
-				processed++;
-				if (expected.equals(returned)) {
-					correct++;
-				} else {
-					incorrect++;
+		// Parse the CSV file, and process the batches, several at a time
+		final IncrementableInt processedCount = new IncrementableInt();
+		final IncrementableInt correctCount = new IncrementableInt();
+		final IncrementableInt incorrectCount = new IncrementableInt();
+
+		classify(readElements(inputCsv), new ClassifyPipeline.ResultHandler() {
+			public void handle(Batch batch, List<Classification> results) {
+				for (int i = 0; i < results.size(); i++) {
+					Classification result = results.get(i);
+					String expected = batch.expectedClasses.get(i);
+					String returned = result.getTopClass();
+					processedCount.inc();
+					if (expected.equals(returned)) {
+						correctCount.inc();
+					} else {
+						incorrectCount.inc();
+					}
 				}
 			}
-		}
+		}, null);
+		inputCsv.close();
+		int processed = processedCount.get();
+		int correct = correctCount.get();
+		int incorrect = incorrectCount.get();
 
 		PrintWriter out = new PrintWriter(new FileWriter(output, true));
 		out.println(sampleSize + ", " + label + ", " + processed + ", " + correct + ", " + incorrect);
@@ -237,145 +710,235 @@ public class BatchClassifier {
 		System.out.println("samplesize, label, processed, correct, incorrect, accuracy:");
 		System.out.println(sampleSize + ", " + label + ", " + processed + ", " + correct + ", " + incorrect + ", "
 				+ (100 * correct / processed) + "%");
+	}
 
-		inputCsv.close();
+	/**
+	 * Classifies the samples in a new pipeline, then saves the result cache
+	 *
+	 * @return the batches that couldn't be classified
+	 */
+	private List<Batch> classify(Iterator<? extends Element> input, ClassifyPipeline.ResultHandler handler,
+			ClassifyPipeline.ProgressHandler progress) {
+		try {
+			return new ClassifyPipeline(this, BATCH_EXECUTOR, Project.NLC_CONCURRENCY).run(input, handler, progress);
+		} finally {
+			ResultCache cache = getResultCache();
+			if (cache != null) {
+				cache.flush();
+			}
+			if (trainingSetKey != null) {
+				REGISTRY.touch(trainingSetKey);
+			}
+		}
+	}
+
+	/**
+	 * Reads the samples of a CSV file as they are needed: Text and Class
+	 */
+	private static Iterator<Element> readElements(CSVParser inputCsv) {
+		final Iterator<CSVRecord> records = inputCsv.iterator();
+		return new Iterator<Element>() {
+			public boolean hasNext() {
+				return records.hasNext();
+			}
+
+			public Element next() {
+				CSVRecord csvRecord = records.next();
+				return new Element(csvRecord.get(0), csvRecord.get(1).trim());
+			}
+		};
+	}
+
+	/**
+	 * @return a new, empty batch for this classifier
+	 */
+	Batch newBatch() {
+		return new Batch(BATCH_SIZER.getTargetBytes());
 	}
 
-	private static class Batch {
-		final ClassifyCollectionOptions.Builder parameters;
-		final HashMap<String, String> expectedValues = new HashMap<String, String>(
-				Project.MAX_SAMPLES_PER_CLASSIFICATION_REQUEST);
+	/**
+	 * @return the statistics of the batch sizer
+	 */
+	static String getBatchSizerStats() {
+		return BATCH_SIZER.toString();
+	}
+
+	/**
+	 * Samples sent to the classifier in a single request. A batch is full once
+	 * its payload reaches the target size given by the <code>BatchSizer</code>,
+	 * or once it holds the maximal number of samples per request.
+	 */
+	static class Batch {
+		final List<String> texts = new ArrayList<String>(Project.MAX_SAMPLES_PER_CLASSIFICATION_REQUEST);
+		// The expected class of each text, in the same order
+		final List<String> expectedClasses = new ArrayList<String>(Project.MAX_SAMPLES_PER_CLASSIFICATION_REQUEST);
+		final int targetBytes;
 		int count = 0;
+		int bytes = 0;
+		// Number of samples found in the result cache
+		int cacheHits = 0;
 
-		Batch(Classifier classifier) {
-			parameters = new ClassifyCollectionOptions.Builder().classifierId(classifier.getClassifierId());
+		Batch(int targetBytes) {
+			this.targetBytes = targetBytes;
 		}
 
 		void add(String text, String expectedClass) {
-			if (isFull()) {
+			if (!fits(text)) {
 				throw new IllegalArgumentException("Batch is full");
 			}
-			ClassifyInput classifyInput = new ClassifyInput();
-			classifyInput.setText(text);
-			parameters.addClassifyInput(classifyInput);
-			expectedValues.put(text, expectedClass);
+			texts.add(text);
+			expectedClasses.add(expectedClass);
 			count++;
+			bytes += BatchSizer.getSize(text);
 		}
 
-		boolean isFull() {
-			return count >= Project.MAX_SAMPLES_PER_CLASSIFICATION_REQUEST;
+		/**
+		 * @return true if the text can be added to the batch. An empty batch takes
+		 *         any text.
+		 */
+		boolean fits(String text) {
+			if (count == 0) {
+				return true;
+			}
+			return !isFull() && bytes + BatchSizer.getSize(text) <= targetBytes;
 		}
 
-		ClassifyCollectionOptions getClassifyCollectionOptions() {
-			return parameters.build();
+		boolean isFull() {
+			return count >= Project.MAX_SAMPLES_PER_CLASSIFICATION_REQUEST || bytes >= targetBytes;
 		}
 	}
 
-	private String getClassifierId(String classifierName) {
-		int retries = NUM_RETRIES;
-		ClassifierList classifiers = null;
-		while (true) {
-			try {
-				classifiers = getService().listClassifiers().execute();
-				break;
-			} catch (RuntimeException e) {
-				if (e.getCause() instanceof ConnectionShutdownException) {
-					svc = null;
-				}
-				System.err.println(e.toString());
-				if (--retries == 0) {
-					throw e;
-				}
-			}
-		}
-
-		for (Classifier classifier : classifiers.getClassifiers()) {
+	private List<String> getClassifierIds(String classifierName) {
+		List<String> classifierIds = new ArrayList<String>();
+		for (ClassifierInfo classifier : BACKEND.list()) {
 			if (classifier.getName().equals(classifierName)) {
-				return classifier.getClassifierId();
+				classifierIds.add(classifier.getClassifierId());
 			}
 		}
-		return null;
+		return classifierIds;
 	}
 
-	private Classifier updateClassifier(Classifier newClassifier) {
-		int retries = NUM_RETRIES;
-		while (true) {
-			try {
-				return getService().getClassifier(newClassifier.getClassifierId()).execute();
-			} catch (RuntimeException e) {
-				if (e.getCause() instanceof ConnectionShutdownException) {
-					svc = null;
-				}
-				System.err.println(e.toString());
-				if (--retries == 0) {
-					throw e;
-				}
-			}
+	/**
+	 * @return the classifier with its current status
+	 */
+	private ClassifierInfo updateClassifier(ClassifierInfo newClassifier) {
+		ClassifierInfo updated = BACKEND.get(newClassifier.getClassifierId());
+		if (updated == null) {
+			throw new IllegalStateException("Classifier " + newClassifier.getClassifierId()
+					+ " was deleted while being trained");
 		}
+		return updated;
 	}
 
-	private Classifier createClassifier(String name, String language, File trainingSet) throws FileNotFoundException {
-		int retries = NUM_RETRIES;
-		while (true) {
-			try {
-				return getService().createClassifier(name, language, trainingSet).execute();
-			} catch (RuntimeException e) {
-				if (e.getCause() instanceof ConnectionShutdownException) {
-					svc = null;
-				}
-				System.err.println(e.toString());
-				if (--retries == 0) {
-					throw e;
-				}
+	/**
+	 * Classifies a batch. Samples found in the result cache aren't sent to the
+	 * service. If the batch can't be classified, even after retries, its samples
+	 * are appended to the dead-letter file, to be replayed later.
+	 *
+	 * @return the results, in the order of the batch, or null if the batch was
+	 *         written to the dead-letter file
+	 */
+	List<Classification> classifyBatch(final Batch batch) {
+		ResultCache cache = getResultCache();
+		Classification[] results = new Classification[batch.count];
+		List<String> misses = new ArrayList<String>(batch.count);
+		int missBytes = 0;
+		for (int i = 0; i < batch.count; i++) {
+			String text = batch.texts.get(i);
+			results[i] = cache == null ? null : cache.get(cacheKey, text);
+			if (results[i] == null) {
+				misses.add(text);
+				missBytes += BatchSizer.getSize(text);
 			}
 		}
-	}
+		batch.cacheHits = batch.count - misses.size();
+		if (misses.isEmpty()) {
+			return Arrays.asList(results);
+		}
 
-	private ClassificationCollection classifyBatch(Batch batch) {
-		int retries = NUM_RETRIES;
-		while (true) {
-			try {
-				return getService().classifyCollection(batch.getClassifyCollectionOptions()).execute();
-			} catch (RuntimeException e) {
-				if (e.getCause() instanceof ConnectionShutdownException) {
-					svc = null;
-				}
-				System.err.println(e.toString());
-				if (--retries == 0) {
-					throw e;
+		long start = System.currentTimeMillis();
+		List<Classification> response;
+		try {
+			response = BACKEND.classify(classifier.getClassifierId(), misses);
+		} catch (RuntimeException e) {
+			if (e instanceof ServiceResponseException && ((ServiceResponseException) e).getStatusCode() == 413) {
+				BATCH_SIZER.payloadTooLarge(missBytes);
+			}
+			BATCH_SIZER.record(misses.size(), missBytes, getServiceTime(start), true);
+			writeDeadLetters(batch);
+			return null;
+		}
+		// Retried by the Watson backend (see RetryingCaller)
+		BATCH_SIZER.record(misses.size(), missBytes, getServiceTime(start), RetryingCaller.getLastAttempts() > 1);
+
+		// Fill in the results of the cache misses, in order
+		Iterator<Classification> items = response.iterator();
+		for (int i = 0; i < batch.count; i++) {
+			if (results[i] == null) {
+				results[i] = items.next();
+				if (cache != null) {
+					cache.put(cacheKey, results[i]);
 				}
 			}
 		}
+		return Arrays.asList(results);
 	}
 
 	/**
-	 * Causes the underlying classifier to be deleted from the IBM Cloud. This
-	 * object cannot be used afterwards.
+	 * @return the time taken by the service to answer the last request of the
+	 *         current thread, in ms: Waiting for the request quota or for the
+	 *         circuit breaker would otherwise count as a slow service, and shrink
+	 *         the batches (see <code>WatsonBackend</code>)
 	 */
-	private void delete(String classifierId) {
-		int retries = NUM_RETRIES;
-		while (true) {
-			try {
-				getService().deleteClassifier(classifierId).execute();
-				break;
-			} catch (RuntimeException e) {
-				if (e.getCause() instanceof ConnectionShutdownException) {
-					svc = null;
-				}
-				System.err.println(e.toString());
-				if (--retries == 0) {
-					throw e;
-				}
-			}
+	private static long getServiceTime(long requestStart) {
+		long serviceTime = WatsonBackend.getLastServiceTime();
+		return serviceTime >= 0 ? serviceTime : System.currentTimeMillis() - requestStart;
+	}
+
+	/**
+	 * @return the result cache shared by all classifiers, or null if disabled
+	 *         (<code>-Dnlc.cacheSize=0</code>, or a local backend)
+	 */
+	private static synchronized ResultCache getResultCache() {
+		if (resultCache == null && Project.NLC_CACHE_SIZE > 0 && BACKEND.isRemote()) {
+			resultCache = new ResultCache(Project.NLC_CACHE_FILE, Project.NLC_CACHE_SIZE);
 		}
+		return resultCache;
 	}
 
 	/**
-	 * Causes the underlying classifier to be deleted from the IBM Cloud. This
+	 * Causes the underlying classifier to be deleted from the backend. This
 	 * object cannot be used afterwards.
 	 */
 	public void delete() {
-		delete(classifier.getClassifierId());
+		BACKEND.delete(classifier.getClassifierId());
+		REGISTRY.remove(classifier.getClassifierId());
+	}
+
+	/**
+	 * Releases the underlying classifier: It is kept for reuse, and deleted
+	 * once it hasn't been used for <code>-Dnlc.classifierTtl</code> hours (right
+	 * away by a local backend). Other expired classifiers are deleted too. This
+	 * object cannot be used afterwards.
+	 */
+	public void release() {
+		if (trainingSetKey != null) {
+			REGISTRY.release(trainingSetKey);
+		}
+		deleteExpiredClassifiers();
+	}
+
+	/**
+	 * Deletes the registered classifiers that are expired
+	 */
+	private void deleteExpiredClassifiers() {
+		// Local classifiers take memory, and are quickly trained again
+		long ttl = BACKEND.isRemote() ? Project.NLC_CLASSIFIER_TTL : 0;
+		for (String classifierId : REGISTRY.getExpired(ttl)) {
+			System.out.println("Deleting expired Classifier " + classifierId);
+			BACKEND.delete(classifierId);
+			REGISTRY.remove(classifierId);
+		}
 	}
 
 	public String getName() {
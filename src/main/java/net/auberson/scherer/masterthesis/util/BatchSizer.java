@@ -0,0 +1,94 @@
+package net.auberson.scherer.masterthesis.util;
+
+import com.google.common.base.Utf8;
+
+/**
+ * Decides how many samples go into a classification request. <br>
+ * Batches are packed by payload size rather than by sample count: A batch is
+ * full once its texts reach the target number of bytes, or once it holds
+ * <code>MAX_SAMPLES_PER_CLASSIFICATION_REQUEST</code> samples, the limit of
+ * the service. <br>
+ * The target adapts to the measured requests (additive increase,
+ * multiplicative decrease): It grows by a step after each request answered
+ * within <code>-Dnlc.targetLatency</code> ms at the first attempt, shrinks by
+ * a quarter after a slower request, and is halved after a request that
+ * failed or had to be retried. It stays between one sample and
+ * <code>-Dnlc.maxBatchBytes</code>. <br>
+ * If the service rejects a batch as too large, the target never grows past
+ * that size again.
+ */
+class BatchSizer {
+
+	// JSON around each text in the request: {"text":"..."},
+	private static final int BYTES_PER_SAMPLE = 12;
+	private static final int MIN_TARGET_BYTES = 1024;
+	private static final int INCREASE_STEP_BYTES = 1024;
+
+	private double targetBytes = Project.NLC_BATCH_BYTES;
+	private int maxTargetBytes = Project.NLC_MAX_BATCH_BYTES;
+	private long requestCount = 0;
+	private long sampleCount = 0;
+	private long byteCount = 0;
+	private long failedCount = 0;
+
+	/**
+	 * @return the number of bytes a sample adds to a request
+	 */
+	static int getSize(String text) {
+		return Utf8.encodedLength(text) + BYTES_PER_SAMPLE;
+	}
+
+	/**
+	 * @return the current target payload size of a batch, in bytes
+	 */
+	synchronized int getTargetBytes() {
+		return (int) targetBytes;
+	}
+
+	/**
+	 * Records a classification request, and adapts the target
+	 *
+	 * @param samples
+	 *            the number of samples in the batch
+	 * @param bytes
+	 *            the payload size of the batch
+	 * @param latency
+	 *            the time taken by the service to answer the request in ms,
+	 *            without waiting for the request quota
+	 * @param failed
+	 *            true if the request failed or had to be retried
+	 */
+	synchronized void record(int samples, int bytes, long latency, boolean failed) {
+		requestCount++;
+		sampleCount += samples;
+		byteCount += bytes;
+		if (failed) {
+			failedCount++;
+			targetBytes = targetBytes / 2;
+		} else if (latency > Project.NLC_TARGET_LATENCY) {
+			targetBytes = targetBytes * 3 / 4;
+		} else if (samples < Project.MAX_SAMPLES_PER_CLASSIFICATION_REQUEST) {
+			// Only grow while the byte budget, not the sample limit, bounds the batches
+			targetBytes = targetBytes + INCREASE_STEP_BYTES;
+		}
+		targetBytes = Math.max(MIN_TARGET_BYTES, Math.min(maxTargetBytes, targetBytes));
+	}
+
+	/**
+	 * Records that the service rejected a batch as too large
+	 *
+	 * @param bytes
+	 *            the payload size of the batch
+	 */
+	synchronized void payloadTooLarge(int bytes) {
+		maxTargetBytes = Math.max(MIN_TARGET_BYTES, Math.min(maxTargetBytes, bytes - 1));
+		targetBytes = Math.min(targetBytes, maxTargetBytes);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("Batch sizer: target %d of max %d bytes, %d requests, avg %.1f samples / %.0f bytes per request, %d failed",
+				(int) targetBytes, maxTargetBytes, requestCount, requestCount == 0 ? 0d : (double) sampleCount / requestCount,
+				requestCount == 0 ? 0d : (double) byteCount / requestCount, failedCount);
+	}
+}
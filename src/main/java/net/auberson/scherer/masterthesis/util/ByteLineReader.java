@@ -0,0 +1,96 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a file line by line without decoding it, keeping track of the number
+ * of bytes read. Lines are returned without their line separator, in a reusable
+ * buffer.
+ */
+public class ByteLineReader implements Closeable {
+
+	private final InputStream in;
+	private final byte[] readBuffer = new byte[64 * 1024];
+	private int pos = 0;
+	private int limit = 0;
+
+	private byte[] line = new byte[4096];
+	private int length = 0;
+	private long bytesRead = 0;
+
+	public ByteLineReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Reads the next line into the buffer
+	 *
+	 * @return false if the end of the input has been reached
+	 */
+	public boolean next() throws IOException {
+		length = 0;
+		boolean empty = true;
+		while (true) {
+			if (pos == limit) {
+				int read = in.read(readBuffer);
+				if (read == -1) {
+					return !empty;
+				}
+				pos = 0;
+				limit = read;
+			}
+			empty = false;
+			byte b = readBuffer[pos++];
+			bytesRead++;
+			if (b == '\n') {
+				break;
+			}
+			if (length == line.length) {
+				byte[] grown = new byte[line.length * 2];
+				System.arraycopy(line, 0, grown, 0, length);
+				line = grown;
+			}
+			line[length++] = b;
+		}
+		// Remove the carriage return of a Windows line separator
+		if (length > 0 && line[length - 1] == '\r') {
+			length--;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the buffer holding the current line. Only the first
+	 *         <code>getLength()</code> bytes are valid.
+	 */
+	public byte[] getBuffer() {
+		return line;
+	}
+
+	/**
+	 * @return the length of the current line, without its line separator
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the current line, decoded
+	 */
+	public String getLine() {
+		return new String(line, 0, length, Project.DATA_CHARSET);
+	}
+
+	/**
+	 * @return the number of bytes read so far, including line separators
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,193 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import com.ibm.watson.developer_cloud.service.exception.ServiceResponseException;
+
+/**
+ * Accounts for the calls to the NLC service, by operation (classify, create,
+ * get, list, delete): The latency of each attempt in a
+ * <code>LatencyHistogram</code>, the retries, the samples and bytes sent, and
+ * the errors by HTTP status (or exception). <br>
+ * When the process ends, a summary is printed, and written to a CSV in
+ * <code>reports/nlc-calls</code>.
+ */
+class CallStats {
+
+	private static final Map<String, CallStats> STATS = new TreeMap<String, CallStats>();
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				report();
+			}
+		}));
+	}
+
+	private final String operation;
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private long calls = 0;
+	private long attempts = 0;
+	private long failures = 0;
+	private long samples = 0;
+	private long bytes = 0;
+	// Time spent in the calls, with retries, in microseconds
+	private long callTime = 0;
+	private final Map<String, Integer> errors = new TreeMap<String, Integer>();
+
+	private CallStats(String operation) {
+		this.operation = operation;
+	}
+
+	/**
+	 * @return the statistics of an operation, created on first use
+	 */
+	static CallStats get(String operation) {
+		synchronized (STATS) {
+			CallStats stats = STATS.get(operation);
+			if (stats == null) {
+				stats = new CallStats(operation);
+				STATS.put(operation, stats);
+			}
+			return stats;
+		}
+	}
+
+	/**
+	 * Records an attempt
+	 *
+	 * @param micros
+	 *            the latency of the attempt, in microseconds
+	 * @param failure
+	 *            the reason it failed, or null if it succeeded
+	 */
+	synchronized void recordAttempt(long micros, RuntimeException failure) {
+		attempts++;
+		latencies.record(micros);
+		if (failure != null) {
+			String error = failure instanceof ServiceResponseException
+					? Integer.toString(((ServiceResponseException) failure).getStatusCode())
+					: (failure.getCause() != null ? failure.getCause() : failure).getClass().getSimpleName();
+			Integer count = errors.get(error);
+			errors.put(error, count == null ? 1 : count + 1);
+		}
+	}
+
+	/**
+	 * Records a call, once it succeeded or was given up
+	 *
+	 * @param micros
+	 *            the time spent in the call, with all its attempts, in microseconds
+	 * @param failed
+	 *            true if the call was given up
+	 */
+	synchronized void recordCall(long micros, boolean failed) {
+		calls++;
+		callTime += micros;
+		if (failed) {
+			failures++;
+		}
+	}
+
+	/**
+	 * Records an operation made of a single attempt, e.g. the training of a
+	 * classifier
+	 *
+	 * @param micros
+	 *            the duration of the operation, in microseconds
+	 */
+	synchronized void record(long micros) {
+		recordAttempt(micros, null);
+		recordCall(micros, false);
+	}
+
+	/**
+	 * Records the payload of a call
+	 *
+	 * @param sampleCount
+	 *            the number of samples sent
+	 * @param byteCount
+	 *            their size in bytes
+	 */
+	synchronized void recordPayload(int sampleCount, long byteCount) {
+		samples += sampleCount;
+		bytes += byteCount;
+	}
+
+	/**
+	 * Prints the statistics of all operations, and writes them to
+	 * <code>reports/nlc-calls</code>. <br>
+	 * Runs in a shutdown hook: Errors are only reported, since exiting from a
+	 * shutdown hook would block the JVM forever.
+	 */
+	private static void report() {
+		synchronized (STATS) {
+			if (STATS.isEmpty()) {
+				return;
+			}
+			for (CallStats stats : STATS.values()) {
+				if (stats.attempts > 0) {
+					System.out.println(stats);
+				}
+			}
+
+			Project.NLC_CALL_REPORTS_DIR.mkdirs();
+			File reportFile = new File(Project.NLC_CALL_REPORTS_DIR,
+					"nlc-calls-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".csv");
+			PrintWriter out;
+			try {
+				out = new PrintWriter(reportFile);
+			} catch (FileNotFoundException e) {
+				System.err.println("Unable to write the NLC call statistics to '" + reportFile.getAbsolutePath()
+						+ "': " + e.getMessage());
+				return;
+			}
+			out.println("operation, calls, attempts, failures, samples, bytes, p50Ms, p95Ms, p99Ms, maxMs, meanMs, "
+					+ "callTimeS, errors");
+			for (CallStats stats : STATS.values()) {
+				if (stats.attempts > 0) {
+					stats.output(out);
+				}
+			}
+			out.close();
+			if (out.checkError()) {
+				System.err.println("Unable to write the NLC call statistics to '" + reportFile.getAbsolutePath() + "'");
+			} else {
+				System.out.println("NLC call statistics written to " + reportFile.getPath());
+			}
+		}
+	}
+
+	private synchronized void output(PrintWriter out) {
+		StringBuilder errorList = new StringBuilder();
+		for (Entry<String, Integer> error : errors.entrySet()) {
+			errorList.append(errorList.length() == 0 ? "" : " ").append(error.getKey()).append(':')
+					.append(error.getValue());
+		}
+		out.println(operation + ", " + calls + ", " + attempts + ", " + failures + ", " + samples + ", " + bytes
+				+ ", " + toMillis(latencies.getPercentile(50)) + ", " + toMillis(latencies.getPercentile(95)) + ", "
+				+ toMillis(latencies.getPercentile(99)) + ", " + toMillis(latencies.getMax()) + ", "
+				+ toMillis(latencies.getMean()) + ", " + String.format(Locale.ROOT, "%.1f", callTime / 1e6) + ", "
+				+ errorList);
+	}
+
+	private static String toMillis(double micros) {
+		return String.format(Locale.ROOT, "%.1f", micros / 1000);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("NLC %-8s %6d calls, %6d attempts, %4d failed, latency p50 %sms, p95 %sms, "
+				+ "p99 %sms, max %sms", operation, calls, attempts, failures, toMillis(latencies.getPercentile(50)),
+				toMillis(latencies.getPercentile(95)), toMillis(latencies.getPercentile(99)),
+				toMillis(latencies.getMax()));
+	}
+}
@@ -0,0 +1,79 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.File;
+import java.util.List;
+
+import net.auberson.scherer.masterthesis.model.Classification;
+import net.auberson.scherer.masterthesis.model.ClassifierInfo;
+
+/**
+ * Trains and runs the classifiers used by <code>BatchClassifier</code>. The
+ * backend is selected with <code>-Dnlc.backend</code>:
+ * <ul>
+ * <li><code>watson</code> (default): the IBM Cloud NLC (see
+ * <code>WatsonBackend</code>),</li>
+ * <li><code>local</code>: naive Bayes classifiers trained and run in this
+ * process, in seconds (see <code>LocalBackend</code>),</li>
+ * <li>the name of any other class implementing this interface, with a public
+ * constructor taking no arguments.</li>
+ * </ul>
+ * A backend is shared by all BatchClassifiers, and called from several
+ * threads at a time.
+ */
+public interface ClassifierBackend {
+
+	/**
+	 * @return a short name of the backend, e.g. to tell apart the classifiers
+	 *         registered by each backend
+	 */
+	String getName();
+
+	/**
+	 * @return true if the classifiers are run by a remote service: Their results
+	 *         are then cached, and classifiers are kept for reuse after being
+	 *         released (see <code>-Dnlc.classifierTtl</code>)
+	 */
+	boolean isRemote();
+
+	/**
+	 * Creates a new classifier, and starts training it
+	 *
+	 * @param name
+	 *            the name of the classifier
+	 * @param language
+	 *            the language of the texts, e.g. "en"
+	 * @param trainingSet
+	 *            a CSV with 2 columns: Text and Class
+	 * @return the new classifier, possibly still training
+	 */
+	ClassifierInfo train(String name, String language, File trainingSet);
+
+	/**
+	 * @return the classifier with the given id, with its current status, or null
+	 *         if it doesn't exist (anymore)
+	 */
+	ClassifierInfo get(String classifierId);
+
+	/**
+	 * @return all classifiers of the backend
+	 */
+	List<ClassifierInfo> list();
+
+	/**
+	 * Classifies several texts in a single request
+	 *
+	 * @param classifierId
+	 *            a classifier that is available
+	 * @param texts
+	 *            the texts to classify
+	 * @return the classification of each text, in the same order
+	 */
+	List<Classification> classify(String classifierId, List<String> texts);
+
+	/**
+	 * Deletes a classifier
+	 *
+	 * @return false if the classifier didn't exist (anymore)
+	 */
+	boolean delete(String classifierId);
+}
@@ -0,0 +1,197 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Remembers the classifiers trained so far, by the content of their training
+ * set, so that a classifier is trained only once per training set. <br>
+ * The registry is persisted in a CSV under <code>./data/processed</code>:
+ * Training set key, classifier id, classifier name, time last used (ms). It is
+ * read again before each change, while holding a file lock, so that several
+ * runs can share it. <br>
+ * A classifier is deleted once nothing in this process uses it anymore, and it
+ * hasn't been used for <code>-Dnlc.classifierTtl</code> hours.
+ */
+class ClassifierRegistry {
+
+	private final File file;
+	// Held while the registry is changed
+	private final File lockFile;
+	// Number of BatchClassifiers of this process using each training set key
+	private final Map<String, Integer> references = new HashMap<String, Integer>();
+
+	/**
+	 * @param file
+	 *            the CSV in which the registry is persisted
+	 */
+	ClassifierRegistry(File file) {
+		this.file = file;
+		this.lockFile = new File(file.getPath() + ".lock");
+	}
+
+	/**
+	 * @return the id of the classifier trained on the training set, or null if
+	 *         there is none
+	 */
+	synchronized String lookup(String trainingSetKey) {
+		Entry entry = load().get(trainingSetKey);
+		return entry == null ? null : entry.classifierId;
+	}
+
+	/**
+	 * @return true if the classifier with the given id is registered
+	 */
+	synchronized boolean contains(String classifierId) {
+		for (Entry entry : load().values()) {
+			if (entry.classifierId.equals(classifierId)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Registers a classifier, or marks it as used if it is registered already.
+	 * The classifier is then in use until released.
+	 */
+	synchronized void acquire(String trainingSetKey, String classifierId, String name) {
+		RandomAccessFile lock = IOUtil.lock(lockFile);
+		try {
+			Map<String, Entry> entries = load();
+			entries.put(trainingSetKey, new Entry(trainingSetKey, classifierId, name, System.currentTimeMillis()));
+			save(entries);
+		} finally {
+			IOUtil.close(lock);
+		}
+		Integer count = references.get(trainingSetKey);
+		references.put(trainingSetKey, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Marks a classifier as used now, e.g. after classifying samples with it
+	 */
+	synchronized void touch(String trainingSetKey) {
+		RandomAccessFile lock = IOUtil.lock(lockFile);
+		try {
+			Map<String, Entry> entries = load();
+			Entry entry = entries.get(trainingSetKey);
+			if (entry != null) {
+				entry.lastUsed = System.currentTimeMillis();
+				save(entries);
+			}
+		} finally {
+			IOUtil.close(lock);
+		}
+	}
+
+	/**
+	 * Records that a BatchClassifier of this process doesn't use its classifier
+	 * anymore
+	 */
+	synchronized void release(String trainingSetKey) {
+		Integer count = references.get(trainingSetKey);
+		if (count == null || count <= 1) {
+			references.remove(trainingSetKey);
+		} else {
+			references.put(trainingSetKey, count - 1);
+		}
+		touch(trainingSetKey);
+	}
+
+	/**
+	 * Removes a classifier from the registry, e.g. once it is deleted
+	 */
+	synchronized void remove(String classifierId) {
+		RandomAccessFile lock = IOUtil.lock(lockFile);
+		try {
+			Map<String, Entry> entries = load();
+			for (Entry entry : new ArrayList<Entry>(entries.values())) {
+				if (entry.classifierId.equals(classifierId)) {
+					entries.remove(entry.trainingSetKey);
+					references.remove(entry.trainingSetKey);
+				}
+			}
+			save(entries);
+		} finally {
+			IOUtil.close(lock);
+		}
+	}
+
+	/**
+	 * @param ttl
+	 *            the time in ms after which an unused classifier expires
+	 * @return the ids of the classifiers not used by this process, and not used
+	 *         by anyone for longer than the given time
+	 */
+	synchronized List<String> getExpired(long ttl) {
+		List<String> expired = new ArrayList<String>();
+		long now = System.currentTimeMillis();
+		for (Entry entry : load().values()) {
+			if (!references.containsKey(entry.trainingSetKey) && now - entry.lastUsed >= ttl) {
+				expired.add(entry.classifierId);
+			}
+		}
+		return expired;
+	}
+
+	private Map<String, Entry> load() {
+		Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+		if (!file.exists()) {
+			return entries;
+		}
+		CSVParser csv = IOUtil.openCSV(file);
+		for (CSVRecord record : csv) {
+			Entry entry = new Entry(record.get(0).trim(), record.get(1).trim(), record.get(2).trim(),
+					Long.parseLong(record.get(3).trim()));
+			entries.put(entry.trainingSetKey, entry);
+		}
+		IOUtil.close(csv);
+		return entries;
+	}
+
+	private void save(Map<String, Entry> entries) {
+		file.getParentFile().mkdirs();
+		File partFile = new File(file.getPath() + ".part");
+		PrintWriter out = IOUtil.getWriter(partFile);
+		for (Entry entry : entries.values()) {
+			out.println(entry.trainingSetKey + ", " + entry.classifierId + ", " + entry.name + ", " + entry.lastUsed);
+		}
+		IOUtil.close(out);
+		try {
+			Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("A disk error occured trying to write the classifier registry at "
+					+ file.getAbsolutePath());
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	private static class Entry {
+		final String trainingSetKey;
+		final String classifierId;
+		final String name;
+		long lastUsed;
+
+		Entry(String trainingSetKey, String classifierId, String name, long lastUsed) {
+			this.trainingSetKey = trainingSetKey;
+			this.classifierId = classifierId;
+			this.name = name;
+			this.lastUsed = lastUsed;
+		}
+	}
+}
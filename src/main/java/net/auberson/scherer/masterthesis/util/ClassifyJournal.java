@@ -0,0 +1,284 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import com.google.common.io.ByteStreams;
+
+import net.auberson.scherer.masterthesis.model.ClassifierResult;
+
+/**
+ * The progress of a classify run, kept next to its output file (with the
+ * extension <code>.progress</code>): The number of input records whose
+ * results were written to the output, and the length of the output at that
+ * point. <br>
+ * Every <code>-Dnlc.checkpointInterval</code> ms, the output is synced to disk,
+ * then the journal is replaced. If the run is interrupted, the next run with
+ * the same classifier and the same input cuts the output back to the last
+ * checkpoint, and skips the records written before it. Once the run is over,
+ * the journal is deleted. <br>
+ * Input records are counted, rather than located by offset, so that any
+ * input that is read in the same order can be resumed. The texts of the
+ * batches written to the dead-letter file are recorded as well, so that only
+ * those are replayed once the run is over. <br>
+ * A journal written for another classifier or input is discarded, and the
+ * output is cut back to where its run started.
+ */
+class ClassifyJournal {
+
+	private final File output;
+	private final File journalFile;
+	private final String classifierId;
+	private final String inputFingerprint;
+	// Length of the output before the run started
+	private final long outputStart;
+	private final long resumedSamples;
+	// Texts of the samples written to the dead-letter file, in order
+	private final List<String> failedTexts;
+	private long committedSamples;
+	private long committedLength;
+
+	private long samples;
+	private long lastCheckpoint = System.currentTimeMillis();
+	private FileOutputStream outputStream;
+	private PrintWriter out;
+
+	private ClassifyJournal(File output, String classifierId, String inputFingerprint, long outputStart,
+			long samples, long length, List<String> failedTexts) {
+		this.output = output;
+		this.journalFile = getFile(output);
+		this.classifierId = classifierId;
+		this.inputFingerprint = inputFingerprint;
+		this.outputStart = outputStart;
+		this.resumedSamples = samples;
+		this.failedTexts = failedTexts;
+		this.committedSamples = samples;
+		this.committedLength = length;
+		this.samples = samples;
+	}
+
+	/**
+	 * @return the journal of a run writing to the given output
+	 */
+	static File getFile(File output) {
+		return new File(output.getPath() + ".progress");
+	}
+
+	/**
+	 * Resumes the run recorded in the journal of the output, if it classified
+	 * the same input with the same classifier, or else starts a new run
+	 *
+	 * @param inputFingerprint
+	 *            identifies the input, e.g. a hash of its contents
+	 */
+	static ClassifyJournal open(File output, String classifierId, String inputFingerprint) {
+		File journalFile = getFile(output);
+		if (journalFile.exists()) {
+			Properties journal = new Properties();
+			try {
+				InputStream in = new FileInputStream(journalFile);
+				journal.load(in);
+				IOUtil.close(in);
+			} catch (IOException e) {
+				System.err.println("A disk error occured trying to read the progress journal at "
+						+ journalFile.getAbsolutePath());
+				e.printStackTrace();
+				System.exit(-1);
+			}
+			long outputStart = Long.parseLong(journal.getProperty("outputStart", "0"));
+			long samples = Long.parseLong(journal.getProperty("samples", "0"));
+			long length = Long.parseLong(journal.getProperty("outputLength", "0"));
+			if (classifierId.equals(journal.getProperty("classifier"))
+					&& inputFingerprint.equals(journal.getProperty("input")) && output.length() >= length) {
+				System.out.println("Resuming to classify into " + output.getPath() + " after " + samples + " samples");
+				List<String> failedTexts = new ArrayList<String>();
+				int failedCount = Integer.parseInt(journal.getProperty("failed", "0"));
+				for (int i = 0; i < failedCount; i++) {
+					failedTexts.add(journal.getProperty("failed." + i));
+				}
+				return new ClassifyJournal(output, classifierId, inputFingerprint, outputStart, samples, length,
+						failedTexts);
+			}
+
+			// The results of the interrupted run are of no use: Remove them
+			System.out.println("Discarding the progress journal at " + journalFile.getPath()
+					+ ", it was written for another input, classifier or output");
+			if (output.length() > outputStart) {
+				truncate(output, outputStart);
+			}
+			journalFile.delete();
+		}
+		return new ClassifyJournal(output, classifierId, inputFingerprint, output.length(), 0, output.length(),
+				new ArrayList<String>());
+	}
+
+	/**
+	 * @return the number of input records classified by the run resumed, to be
+	 *         skipped
+	 */
+	long getResumedSamples() {
+		return resumedSamples;
+	}
+
+	/**
+	 * @return the texts of the samples written to the dead-letter file, by this
+	 *         run and by the run resumed: A text once per sample
+	 */
+	List<String> getFailedTexts() {
+		return failedTexts;
+	}
+
+	/**
+	 * @return the results written to the output by the run resumed, up to the
+	 *         last checkpoint
+	 */
+	List<ClassifierResult> readResumedResults() {
+		List<ClassifierResult> results = new ArrayList<ClassifierResult>();
+		if (resumedSamples == 0) {
+			return results;
+		}
+		try {
+			InputStream in = new FileInputStream(output);
+			ByteStreams.skipFully(in, outputStart);
+			CSVParser csv = CSVFormat.DEFAULT
+					.parse(new InputStreamReader(ByteStreams.limit(in, committedLength - outputStart)));
+			for (CSVRecord record : csv) {
+				boolean detected = record.size() > 3;
+				results.add(new ClassifierResult(record.get(0), record.get(1).trim(),
+						detected ? record.get(2).trim() : null,
+						detected ? Double.parseDouble(record.get(3).trim()) : null));
+			}
+			IOUtil.close(csv);
+		} catch (IOException e) {
+			System.err.println("A disk error occured trying to read the results at " + output.getAbsolutePath());
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		return results;
+	}
+
+	/**
+	 * Cuts the output back to the last checkpoint, and opens it for appending
+	 */
+	PrintWriter openOutput() {
+		if (output.length() > committedLength) {
+			truncate(output, committedLength);
+		}
+		try {
+			outputStream = new FileOutputStream(output, true);
+		} catch (FileNotFoundException e) {
+			System.err.println("Unable to open the output file at " + output.getAbsolutePath());
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		out = new PrintWriter(new OutputStreamWriter(outputStream));
+		return out;
+	}
+
+	private static void truncate(File output, long length) {
+		try {
+			RandomAccessFile file = new RandomAccessFile(output, "rw");
+			file.setLength(length);
+			IOUtil.close(file);
+		} catch (IOException e) {
+			System.err.println("A disk error occured trying to truncate the output file at "
+					+ output.getAbsolutePath());
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * Records that the samples of a batch were written to the dead-letter file,
+	 * before the batch is recorded as done
+	 */
+	void batchFailed(Collection<String> texts) {
+		failedTexts.addAll(texts);
+	}
+
+	/**
+	 * Records that the results of a batch were written to the output (or to the
+	 * dead-letter file). Batches must be recorded in input order.
+	 */
+	void batchDone(int sampleCount) {
+		samples += sampleCount;
+		if (System.currentTimeMillis() - lastCheckpoint >= Project.NLC_CHECKPOINT_INTERVAL) {
+			checkpoint();
+		}
+	}
+
+	/**
+	 * Syncs the output to disk, then records the samples written so far
+	 */
+	void checkpoint() {
+		lastCheckpoint = System.currentTimeMillis();
+		if (samples == committedSamples) {
+			return;
+		}
+		File partFile = new File(journalFile.getPath() + ".part");
+		try {
+			out.flush();
+			outputStream.getFD().sync();
+			long length = output.length();
+
+			Properties journal = new Properties();
+			journal.setProperty("classifier", classifierId);
+			journal.setProperty("input", inputFingerprint);
+			journal.setProperty("outputStart", Long.toString(outputStart));
+			journal.setProperty("samples", Long.toString(samples));
+			journal.setProperty("outputLength", Long.toString(length));
+			journal.setProperty("failed", Integer.toString(failedTexts.size()));
+			int i = 0;
+			for (String text : failedTexts) {
+				journal.setProperty("failed." + i++, text);
+			}
+			FileOutputStream journalOut = new FileOutputStream(partFile);
+			journal.store(journalOut, "Progress of the classification into " + output.getName());
+			journalOut.getFD().sync();
+			IOUtil.close(journalOut);
+			Files.move(partFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+
+			committedSamples = samples;
+			committedLength = length;
+		} catch (IOException e) {
+			System.err.println("A disk error occured trying to write the progress journal at "
+					+ journalFile.getAbsolutePath());
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * Records the last checkpoint, and closes the output
+	 */
+	void close() {
+		checkpoint();
+		IOUtil.close(out);
+	}
+
+	/**
+	 * Deletes the journal, once the run is over
+	 */
+	void delete() {
+		journalFile.delete();
+	}
+}
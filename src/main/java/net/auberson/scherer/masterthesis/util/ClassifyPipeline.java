@@ -0,0 +1,397 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import net.auberson.scherer.masterthesis.model.Classification;
+import net.auberson.scherer.masterthesis.model.Element;
+import net.auberson.scherer.masterthesis.util.BatchClassifier.Batch;
+
+/**
+ * Classifies a stream of samples in four stages, connected by bounded queues:
+ * <ul>
+ * <li>the reader pulls samples from the input (e.g. parses the CSV file),</li>
+ * <li>the batcher groups them into batches (see <code>BatchSizer</code>),</li>
+ * <li>the dispatcher sends up to <code>-Dnlc.concurrency</code> batches to
+ * the classifier at a time,</li>
+ * <li>the writer passes the results to a handler, in input order, on the
+ * calling thread.</li>
+ * </ul>
+ * Reading and writing overlap with the classification requests, and since all
+ * queues are bounded, memory use doesn't depend on the size of the input.
+ * Each stage reports its throughput and queue depth at the end, followed by
+ * the hit ratio of the result cache. <br>
+ * Batches that can't be classified (see <code>BatchClassifier.classifyBatch</code>)
+ * are skipped, so that the other batches keep flowing.
+ */
+class ClassifyPipeline {
+
+	// Number of samples the reader may read ahead of the batcher
+	private static final int READ_AHEAD = 4 * Project.MAX_SAMPLES_PER_CLASSIFICATION_REQUEST;
+
+	/**
+	 * Receives the results of a batch
+	 */
+	interface ResultHandler {
+		void handle(Batch batch, List<Classification> results);
+	}
+
+	/**
+	 * Is told about each batch once it is done, in input order, whether its
+	 * results were handled or it was written to the dead-letter file
+	 */
+	interface ProgressHandler {
+		/**
+		 * @param failed
+		 *            true if the batch was written to the dead-letter file
+		 */
+		void done(Batch batch, boolean failed);
+	}
+
+	private static final Element END_OF_SAMPLES = new Element(null, null);
+	private static final InFlight END_OF_REQUESTS = new InFlight(null, null);
+
+	private final BatchClassifier classifier;
+	private final ExecutorService executor;
+	private final int concurrency;
+
+	private final BlockingQueue<Element> samples = new ArrayBlockingQueue<Element>(READ_AHEAD);
+	private final BlockingQueue<Batch> batches;
+	private final Batch endOfBatches;
+	private final BlockingQueue<InFlight> inFlight;
+	private final Semaphore requestSlots;
+
+	private final StageStats readerStats = new StageStats("reader", "samples");
+	private final StageStats batcherStats = new StageStats("batcher", "batches");
+	private final StageStats dispatcherStats = new StageStats("dispatcher", "requests");
+	private final StageStats writerStats = new StageStats("writer", "batches");
+
+	private volatile Throwable failure;
+	private final List<Batch> failedBatches = new ArrayList<Batch>();
+	private long sampleCount = 0;
+	private long cacheHits = 0;
+
+	/**
+	 * @param classifier
+	 *            the classifier creating and classifying the batches
+	 * @param executor
+	 *            the executor on which the classification requests are sent
+	 * @param concurrency
+	 *            the maximal number of requests sent at the same time
+	 */
+	ClassifyPipeline(BatchClassifier classifier, ExecutorService executor, int concurrency) {
+		this.classifier = classifier;
+		this.executor = executor;
+		this.concurrency = concurrency;
+		this.batches = new ArrayBlockingQueue<Batch>(concurrency);
+		this.endOfBatches = classifier.newBatch();
+		this.inFlight = new ArrayBlockingQueue<InFlight>(concurrency);
+		this.requestSlots = new Semaphore(concurrency);
+	}
+
+	/**
+	 * Classifies all samples of the input. Errors in any stage are thrown here,
+	 * once the pipeline has stopped.
+	 *
+	 * @param input
+	 *            the samples to classify
+	 * @param handler
+	 *            receives the results of each batch, in order
+	 * @param progress
+	 *            is told about each batch once it is done, or null
+	 * @return the batches that couldn't be classified, and were written to the
+	 *         dead-letter file instead
+	 */
+	List<Batch> run(final Iterator<? extends Element> input, ResultHandler handler, ProgressHandler progress) {
+		Thread reader = startStage("classify-reader", new Runnable() {
+			public void run() {
+				read(input);
+			}
+		});
+		Thread batcher = startStage("classify-batcher", new Runnable() {
+			public void run() {
+				batch();
+			}
+		});
+		Thread dispatcher = startStage("classify-dispatcher", new Runnable() {
+			public void run() {
+				dispatch();
+			}
+		});
+
+		try {
+			write(handler, progress);
+		} catch (RuntimeException e) {
+			fail(e);
+		} catch (Error e) {
+			fail(e);
+		} finally {
+			if (failure != null) {
+				// Unblock the other stages
+				reader.interrupt();
+				batcher.interrupt();
+				dispatcher.interrupt();
+			}
+			stop(reader);
+			stop(batcher);
+			stop(dispatcher);
+		}
+
+		readerStats.report(READ_AHEAD);
+		batcherStats.report(concurrency);
+		dispatcherStats.report(concurrency);
+		writerStats.report(0);
+		System.out.println(BatchClassifier.getBatchSizerStats());
+		System.out.println(String.format("Result cache: %d of %d samples found (hit ratio %.1f%%)", cacheHits,
+				sampleCount, sampleCount == 0 ? 0d : 100d * cacheHits / sampleCount));
+
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new RuntimeException(failure);
+		}
+		if (!failedBatches.isEmpty()) {
+			System.err.println(failedBatches.size() + " batches couldn't be classified, see "
+					+ Project.NLC_DEAD_LETTER_FILE.getPath());
+		}
+		return failedBatches;
+	}
+
+	private void read(Iterator<? extends Element> input) {
+		try {
+			while (input.hasNext() && failure == null) {
+				Element element = input.next();
+				readerStats.add(samples.size());
+				samples.put(element);
+			}
+		} catch (InterruptedException e) {
+			return;
+		} finally {
+			putQuietly(samples, END_OF_SAMPLES);
+		}
+	}
+
+	private void batch() {
+		try {
+			Batch batch = classifier.newBatch();
+			while (true) {
+				Element element = samples.take();
+				if (element == END_OF_SAMPLES) {
+					break;
+				}
+				if (!batch.fits(element.getText())) {
+					batcherStats.add(batches.size());
+					batches.put(batch);
+					batch = classifier.newBatch();
+				}
+				batch.add(element.getText(), element.getClassLabel());
+				if (batch.isFull()) {
+					batcherStats.add(batches.size());
+					batches.put(batch);
+					batch = classifier.newBatch();
+				}
+			}
+			if (batch.count > 0) {
+				batcherStats.add(batches.size());
+				batches.put(batch);
+			}
+		} catch (InterruptedException e) {
+			return;
+		} finally {
+			putQuietly(batches, endOfBatches);
+		}
+	}
+
+	private void dispatch() {
+		try {
+			while (true) {
+				final Batch batch = batches.take();
+				if (batch == endOfBatches) {
+					break;
+				}
+				// Wait until less than <concurrency> requests are in flight
+				requestSlots.acquire();
+				Future<List<Classification>> results = executor.submit(new Callable<List<Classification>>() {
+					public List<Classification> call() {
+						try {
+							return classifier.classifyBatch(batch);
+						} finally {
+							requestSlots.release();
+						}
+					}
+				});
+				dispatcherStats.add(inFlight.size());
+				inFlight.put(new InFlight(batch, results));
+			}
+		} catch (InterruptedException e) {
+			return;
+		} finally {
+			putQuietly(inFlight, END_OF_REQUESTS);
+		}
+	}
+
+	private void write(ResultHandler handler, ProgressHandler progress) {
+		while (true) {
+			InFlight next;
+			try {
+				next = inFlight.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			if (next == END_OF_REQUESTS) {
+				return;
+			}
+			List<Classification> results = getResults(next.results);
+			writerStats.add(0);
+			if (results == null) {
+				// Written to the dead-letter file
+				failedBatches.add(next.batch);
+			} else {
+				sampleCount += next.batch.count;
+				cacheHits += next.batch.cacheHits;
+				handler.handle(next.batch, results);
+			}
+			if (progress != null) {
+				progress.done(next.batch, results == null);
+			}
+		}
+	}
+
+	/**
+	 * Waits for the results of a batch. Errors are thrown as if the batch had been
+	 * classified on the calling thread.
+	 */
+	private static List<Classification> getResults(Future<List<Classification>> future) {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private Thread startStage(String name, final Runnable stage) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					stage.run();
+				} catch (Throwable e) {
+					fail(e);
+				}
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private synchronized void fail(Throwable e) {
+		if (failure == null) {
+			failure = e;
+		}
+	}
+
+	private static <T> void putQuietly(BlockingQueue<T> queue, T element) {
+		try {
+			queue.put(element);
+		} catch (InterruptedException e) {
+			// The pipeline is being stopped
+		}
+	}
+
+	/**
+	 * Waits for a stage to stop. After a failure, the queues are drained
+	 * meanwhile: The writer doesn't take from them anymore, and a stage blocked
+	 * on a full queue must be able to put its end marker.
+	 */
+	private void stop(Thread stage) {
+		while (stage.isAlive()) {
+			if (failure != null) {
+				samples.clear();
+				batches.clear();
+				inFlight.clear();
+			}
+			try {
+				stage.join(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * A batch sent to the classifier, and the future holding its results
+	 */
+	private static class InFlight {
+		final Batch batch;
+		final Future<List<Classification>> results;
+
+		InFlight(Batch batch, Future<List<Classification>> results) {
+			this.batch = batch;
+			this.results = results;
+		}
+	}
+
+	/**
+	 * Throughput and depth of the output queue of a stage
+	 */
+	private static class StageStats {
+		private final String name;
+		private final String unit;
+		private final long start = System.nanoTime();
+		private long count = 0;
+		private long depthSum = 0;
+		private int maxDepth = 0;
+
+		StageStats(String name, String unit) {
+			this.name = name;
+			this.unit = unit;
+		}
+
+		/**
+		 * Records an item passed on to the next stage
+		 *
+		 * @param depth
+		 *            the depth of the output queue before adding the item
+		 */
+		synchronized void add(int depth) {
+			count++;
+			depthSum += depth;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		/**
+		 * Prints the statistics of the stage
+		 *
+		 * @param capacity
+		 *            the capacity of the output queue, or 0 if there is none
+		 */
+		synchronized void report(int capacity) {
+			double seconds = (System.nanoTime() - start) / 1e9;
+			StringBuilder line = new StringBuilder(String.format("Pipeline stage %-10s %6d %s in %.1fs (%.1f/s)",
+					name, count, unit, seconds, count / Math.max(seconds, 1e-3)));
+			if (capacity > 0) {
+				line.append(String.format(", queue depth avg %.1f, max %d of %d", count == 0 ? 0d
+						: (double) depthSum / count, maxDepth, capacity));
+			}
+			System.out.println(line);
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Keeps the samples of several classes in memory, so that an experiment reads
+ * each data file only once, however many training and test sets it draws. <br>
+ * The texts of each class are stored one after the other as UTF-8 in a single
+ * byte array, with an int offset per sample. Training and test sets are handed
+ * out as <code>Dataset</code> views holding only label ids and sample numbers;
+ * texts are only decoded when a set is classified or written to a file. <br>
+ * The data sets drawn by a single call never overlap, like those written by a
+ * single call of <code>Sampler.sample</code>. By default, each class is
+ * loaded completely, and random samples are picked from it. A class whose data
+ * file is too large to be held in memory is sampled like by the
+ * <code>Sampler</code> instead: The lines drawn are read from the data file,
+ * using its index if there is one. With <code>-Dsampler.shuffled=true</code>,
+ * the next samples of the shuffled data files are loaded when they are drawn,
+ * moving the persisted cursor (see <code>ShuffledCorpus</code>).
+ */
+public class CorpusStore {
+
+	// Largest data file held in memory: The texts of a class are held in a single
+	// byte array
+	private static final long MAX_LOADED_SIZE = Integer.MAX_VALUE - 8;
+
+	private final List<String> classNames;
+	private final Map<String, Integer> classSampleCounts;
+	private final ClassCorpus[] corpora;
+	private final Random rng = Project.SAMPLER_SEED == null ? new Random() : new Random(Project.SAMPLER_SEED);
+
+	/**
+	 * Creates a store for the given classes
+	 *
+	 * @param classNames
+	 *            the names of the classes. The corresponding CSVs must exist
+	 *            under <code>./data/intermediate</code>
+	 * @param classSampleCounts
+	 *            a map containing the number of samples available for each class
+	 *            specified (you can get this using
+	 *            <code>Sampler.getSampleCount(classNames);</code>)
+	 */
+	public CorpusStore(Collection<String> classNames, Map<String, Integer> classSampleCounts) {
+		if (classNames.size() > 256) {
+			throw new IllegalArgumentException("A corpus store can hold 256 classes at most.");
+		}
+		this.classNames = new ArrayList<String>(classNames);
+		this.classSampleCounts = classSampleCounts;
+		this.corpora = new ClassCorpus[classNames.size()];
+		for (int i = 0; i < corpora.length; i++) {
+			String className = this.classNames.get(i);
+			corpora[i] = new ClassCorpus();
+			if (Project.SAMPLER_SHUFFLED) {
+				corpora[i].loadedOnDraw = true;
+			} else if (Project.getDataFile(className).length() > MAX_LOADED_SIZE) {
+				System.out.println("The data set of class '" + className
+						+ "' is too large to be held in memory, its samples are read when drawn");
+				corpora[i].loadedOnDraw = true;
+			} else {
+				load(className, corpora[i]);
+			}
+		}
+	}
+
+	/**
+	 * Draws a data set from the store
+	 *
+	 * @param sampleSize
+	 *            the number of samples per class
+	 * @param classNames
+	 *            the names of the classes from which to get samples, all held by
+	 *            this store
+	 */
+	public Dataset sample(int sampleSize, Collection<String> classNames) {
+		return sample(new int[] { sampleSize }, classNames)[0];
+	}
+
+	/**
+	 * Draws one or more non-overlapping data sets from the store. Data sets drawn
+	 * by other calls may hold the same samples.
+	 *
+	 * @param sampleSizes
+	 *            the number of samples per class in each data set
+	 * @param classNames
+	 *            the names of the classes from which to get samples, all held by
+	 *            this store
+	 * @return one data set per sample size, samples grouped by class
+	 */
+	public Dataset[] sample(int[] sampleSizes, Collection<String> classNames) {
+		int totalSampleCount = 0;
+		for (int sampleSize : sampleSizes) {
+			totalSampleCount += sampleSize;
+		}
+
+		byte[][] labelIds = new byte[sampleSizes.length][];
+		int[][] samples = new int[sampleSizes.length][];
+		for (int i = 0; i < sampleSizes.length; i++) {
+			labelIds[i] = new byte[sampleSizes[i] * classNames.size()];
+			samples[i] = new int[sampleSizes[i] * classNames.size()];
+		}
+
+		int classNr = 0;
+		for (String className : classNames) {
+			int labelId = this.classNames.indexOf(className);
+			if (labelId == -1) {
+				throw new IllegalArgumentException("Class '" + className + "' is not held by this corpus store.");
+			}
+			ClassCorpus corpus = corpora[labelId];
+			int first = draw(className, corpus, totalSampleCount);
+
+			for (int i = 0; i < sampleSizes.length; i++) {
+				int pos = classNr * sampleSizes[i];
+				Arrays.fill(labelIds[i], pos, pos + sampleSizes[i], (byte) labelId);
+				System.arraycopy(corpus.order, first, samples[i], pos, sampleSizes[i]);
+				first += sampleSizes[i];
+			}
+			classNr++;
+		}
+
+		Dataset[] datasets = new Dataset[sampleSizes.length];
+		for (int i = 0; i < sampleSizes.length; i++) {
+			datasets[i] = new Dataset(this, labelIds[i], samples[i]);
+		}
+		return datasets;
+	}
+
+	String getClassLabel(byte labelId) {
+		return classNames.get(labelId & 0xFF);
+	}
+
+	String getText(byte labelId, int sampleNr) {
+		ClassCorpus corpus = corpora[labelId & 0xFF];
+		int start = corpus.offsets[sampleNr];
+		return new String(corpus.arena, start, corpus.offsets[sampleNr + 1] - start, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Draws samples from a class, different from each other
+	 *
+	 * @return the position of the first sample drawn in the class's order array.
+	 *         The samples drawn follow.
+	 */
+	private int draw(String className, ClassCorpus corpus, int count) {
+		if (corpus.loadedOnDraw) {
+			// Read the samples drawn, and add them to those already held
+			int first = corpus.count;
+			try {
+				String[] lines;
+				if (Project.SAMPLER_SHUFFLED) {
+					// The shuffled data file is already in random order: Load the next samples
+					lines = new ShuffledCorpus(className).next(count);
+				} else {
+					lines = Sampler.sampleRandomLines(className, classSampleCounts.get(className), count);
+				}
+				for (String line : lines) {
+					corpus.add(line);
+				}
+			} catch (IOException e) {
+				System.err.println("A disk error occured trying to read the data set of class '" + className + "'");
+				e.printStackTrace();
+				System.exit(-1);
+			}
+			return first;
+		}
+
+		if (corpus.count < count) {
+			throw new IllegalArgumentException("Only " + corpus.count + " exist for class '" + className
+					+ "', not enough to pick " + count + " samples.");
+		}
+		// Partial Fisher-Yates shuffle of all samples
+		for (int i = 0; i < count; i++) {
+			int j = i + rng.nextInt(corpus.count - i);
+			int swap = corpus.order[i];
+			corpus.order[i] = corpus.order[j];
+			corpus.order[j] = swap;
+		}
+		return 0;
+	}
+
+	/**
+	 * Loads all samples of a class from its data file
+	 */
+	private static void load(String className, ClassCorpus corpus) {
+		File dataFile = Project.getDataFile(className);
+		corpus.ensureArenaCapacity((int) dataFile.length());
+
+		boolean isUtf8 = Project.DATA_CHARSET.equals(StandardCharsets.UTF_8);
+		try {
+			ByteLineReader reader = new ByteLineReader(new FileInputStream(dataFile));
+			while (reader.next()) {
+				if (reader.getLength() == 0) {
+					continue;
+				}
+				if (isUtf8) {
+					corpus.add(reader.getBuffer(), reader.getLength());
+				} else {
+					corpus.add(reader.getLine());
+				}
+			}
+			reader.close();
+		} catch (IOException e) {
+			System.err.println("A disk error occured trying to read the data set at " + dataFile.getAbsolutePath());
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		System.out.println(corpus.count + " samples loaded for class '" + className + "'");
+	}
+
+	/**
+	 * The samples of a single class
+	 */
+	private static class ClassCorpus {
+		// The texts, one after the other
+		byte[] arena = new byte[64 * 1024];
+		// Start of each text in the arena, and end of the last one
+		int[] offsets = new int[1024];
+		int count = 0;
+		// Sample numbers, in the order in which they are drawn
+		int[] order = new int[1024];
+		// Samples are read from the data file when they are drawn, rather than
+		// loaded at once
+		boolean loadedOnDraw = false;
+
+		/**
+		 * Adds a line of a data file in UTF-8: <code>"text", class</code>
+		 */
+		void add(byte[] line, int length) {
+			int start = line[0] == '"' ? 1 : 0;
+			int end = length - 1;
+			while (end > start && line[end] != '"') {
+				end--;
+			}
+			if (end <= start) {
+				// No closing quote
+				end = length;
+			}
+			add(line, start, end - start);
+		}
+
+		/**
+		 * Adds a line of a data file: <code>"text", class</code>
+		 */
+		void add(String line) {
+			int start = line.startsWith("\"") ? 1 : 0;
+			int end = line.lastIndexOf('"');
+			if (end <= start) {
+				end = line.length();
+			}
+			byte[] text = line.substring(start, end).getBytes(StandardCharsets.UTF_8);
+			add(text, 0, text.length);
+		}
+
+		private void add(byte[] text, int start, int length) {
+			int arenaLength = offsets[count];
+			ensureArenaCapacity(arenaLength + length);
+			if (count + 2 > offsets.length) {
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+				order = Arrays.copyOf(order, offsets.length);
+			}
+			System.arraycopy(text, start, arena, arenaLength, length);
+			order[count] = count;
+			count++;
+			offsets[count] = arenaLength + length;
+		}
+
+		void ensureArenaCapacity(int capacity) {
+			if (arena.length < capacity) {
+				long grown = Math.max(capacity, 2L * arena.length);
+				arena = Arrays.copyOf(arena, (int) Math.min(Integer.MAX_VALUE - 8, grown));
+			}
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import net.auberson.scherer.masterthesis.model.Element;
+
+/**
+ * A training or test set drawn from a <code>CorpusStore</code>. <br>
+ * This is only a view on the store: It holds the label id and the sample
+ * number of each element, and decodes texts on demand.
+ */
+public class Dataset implements Iterable<Element> {
+
+	private final CorpusStore store;
+	private final byte[] labelIds;
+	private final int[] samples;
+
+	Dataset(CorpusStore store, byte[] labelIds, int[] samples) {
+		this.store = store;
+		this.labelIds = labelIds;
+		this.samples = samples;
+	}
+
+	/**
+	 * @return the number of elements in the data set
+	 */
+	public int size() {
+		return samples.length;
+	}
+
+	public String getText(int index) {
+		return store.getText(labelIds[index], samples[index]);
+	}
+
+	public String getClassLabel(int index) {
+		return store.getClassLabel(labelIds[index]);
+	}
+
+	public Element get(int index) {
+		return new Element(getText(index), getClassLabel(index));
+	}
+
+	public Iterator<Element> iterator() {
+		return new Iterator<Element>() {
+			private int index = 0;
+
+			public boolean hasNext() {
+				return index < samples.length;
+			}
+
+			public Element next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return get(index++);
+			}
+		};
+	}
+
+	/**
+	 * Writes the data set to a CSV file: First column is the text, second is the
+	 * class. Only needed to upload a training set, or to keep a copy.
+	 *
+	 * @param outputFile
+	 *            the file to write. Existing contents are replaced.
+	 */
+	public void write(File outputFile) {
+		PrintWriter out = IOUtil.getWriter(outputFile);
+		for (int i = 0; i < samples.length; i++) {
+			out.print("\"" + getText(i) + "\", ");
+			out.println(getClassLabel(i));
+		}
+		IOUtil.close(out);
+	}
+}
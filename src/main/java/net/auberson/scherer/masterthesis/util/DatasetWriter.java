@@ -0,0 +1,97 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes a dataset CSV (one <code>"text", class</code> record per line), along
+ * with an index file containing the byte offset of each record. The index
+ * allows single records to be read without scanning the CSV from the start.
+ * <br>
+ * The index is a sequence of big-endian longs, one per record.
+ */
+public class DatasetWriter implements Closeable {
+
+	private static final char[] LINE_SEPARATOR = System.lineSeparator().toCharArray();
+
+	private final OutputStream out;
+	private final DataOutputStream indexOut;
+	private final CharsetEncoder encoder = Project.DATA_CHARSET.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private CharBuffer line = CharBuffer.allocate(2048);
+	private ByteBuffer bytes = ByteBuffer.allocate(8192);
+	private long offset = 0;
+	private long count = 0;
+
+	/**
+	 * Creates a dataset writer
+	 *
+	 * @param file
+	 *            the CSV file to write
+	 * @param indexFile
+	 *            the index file to write alongside
+	 */
+	public DatasetWriter(File file, File indexFile) throws IOException {
+		this.out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+		this.indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 64 * 1024));
+	}
+
+	/**
+	 * Writes a single record
+	 *
+	 * @param text
+	 *            a buffer containing the record's text
+	 * @param length
+	 *            the length of the text in the buffer
+	 * @param classLabel
+	 *            the record's class
+	 */
+	public void write(char[] text, int length, String classLabel) throws IOException {
+		int lineLength = length + classLabel.length() + 4 + LINE_SEPARATOR.length;
+		if (line.capacity() < lineLength) {
+			line = CharBuffer.allocate(lineLength);
+		}
+		line.clear();
+		line.put('"').put(text, 0, length).put("\", ").put(classLabel).put(LINE_SEPARATOR);
+		line.flip();
+
+		int maxBytes = (int) Math.ceil(lineLength * encoder.maxBytesPerChar());
+		if (bytes.capacity() < maxBytes) {
+			bytes = ByteBuffer.allocate(maxBytes);
+		}
+		bytes.clear();
+		encoder.reset();
+		CoderResult result = encoder.encode(line, bytes, true);
+		if (result.isError()) {
+			result.throwException();
+		}
+		encoder.flush(bytes);
+
+		indexOut.writeLong(offset);
+		out.write(bytes.array(), 0, bytes.position());
+		offset += bytes.position();
+		count++;
+	}
+
+	/**
+	 * @return the number of records written so far
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public void close() throws IOException {
+		out.close();
+		indexOut.close();
+	}
+}
@@ -0,0 +1,224 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import com.google.common.hash.Hashing;
+import com.google.gson.internal.bind.util.ISO8601Utils;
+
+/**
+ * Keeps track of which archives have already been extracted, so that the
+ * Extract step only processes new or modified archives, and can resume after a
+ * crash. <br>
+ * The manifest records each archive's size, modification time and content hash
+ * along with the number of samples extracted from it. It is kept in
+ * <code>./data/intermediate/manifest.csv</code>, next to the count file, which
+ * is maintained here as well. Both files are rewritten after each archive, so
+ * that an interrupted run loses at most the archives being processed. <br>
+ * This class is thread-safe.
+ */
+public class ExtractionManifest {
+
+	public static final File MANIFEST_FILE = Project.getDataFile("manifest");
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private final Map<String, String> counts = new LinkedHashMap<String, String>();
+
+	/**
+	 * Loads the manifest and the count file, if they exist
+	 */
+	public ExtractionManifest() {
+		if (MANIFEST_FILE.exists()) {
+			for (CSVRecord record : readCSV(MANIFEST_FILE)) {
+				Entry entry = new Entry(record);
+				entries.put(entry.archiveName, entry);
+			}
+		}
+		if (Project.DATAFILE_COUNT.exists()) {
+			for (CSVRecord record : readCSV(Project.DATAFILE_COUNT)) {
+				counts.put(record.get(0).trim(), join(record));
+			}
+		}
+	}
+
+	/**
+	 * Checks whether an archive has already been extracted, and hasn't changed
+	 * since. An archive whose size and modification time are unchanged is assumed
+	 * to be unchanged; if only the modification time differs, the content hash is
+	 * compared.
+	 *
+	 * @param archive
+	 *            a 7zip file
+	 * @param siteName
+	 *            the name of the site extracted from the archive
+	 * @return true if the archive doesn't need to be extracted again
+	 */
+	public boolean isUpToDate(File archive, String siteName) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(archive.getName());
+		}
+		if (entry == null || entry.size != archive.length() || !Project.getDataFile(siteName).exists()) {
+			return false;
+		}
+		if (entry.lastModified == archive.lastModified()) {
+			return true;
+		}
+		if (!entry.hash.equals(hash(archive))) {
+			return false;
+		}
+
+		// The archive was touched, but not modified: Remember its new timestamp
+		synchronized (this) {
+			entries.put(entry.archiveName, new Entry(entry.archiveName, entry.siteName, entry.size,
+					archive.lastModified(), entry.hash, entry.count, entry.extracted));
+			save();
+		}
+		return true;
+	}
+
+	/**
+	 * Records that an archive has been extracted, and updates the corresponding
+	 * line of the count file.
+	 *
+	 * @param archive
+	 *            a 7zip file
+	 * @param siteName
+	 *            the name of the site extracted from the archive
+	 * @param hash
+	 *            the archive's content hash, as returned by <code>hash()</code>
+	 * @param count
+	 *            the number of samples extracted
+	 */
+	public synchronized void update(File archive, String siteName, String hash, long count) {
+		String extracted = ISO8601Utils.format(new Date());
+		entries.put(archive.getName(), new Entry(archive.getName(), siteName, archive.length(), archive.lastModified(),
+				hash, count, extracted));
+		counts.put(siteName, siteName + ", " + count + ", " + extracted);
+		save();
+	}
+
+	/**
+	 * @return the number of samples recorded for the given site, or 0 if unknown
+	 */
+	public synchronized long getCount(String siteName) {
+		for (Entry entry : entries.values()) {
+			if (entry.siteName.equals(siteName)) {
+				return entry.count;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Computes the content hash of an archive
+	 */
+	public static String hash(File archive) {
+		try {
+			return com.google.common.io.Files.asByteSource(archive).hash(Hashing.sha256()).toString();
+		} catch (IOException e) {
+			System.err.println("Unable to read the archive at '" + archive.getAbsolutePath() + "'");
+			e.printStackTrace();
+			System.exit(-1);
+			return null;
+		}
+	}
+
+	/**
+	 * Rewrites the manifest and the count file. Each file is written to a
+	 * temporary file first, then moved in place.
+	 */
+	private void save() {
+		File manifestTemp = new File(MANIFEST_FILE.getPath() + ".tmp");
+		PrintWriter out = IOUtil.getWriter(manifestTemp);
+		for (Entry entry : entries.values()) {
+			out.println(entry.archiveName + ", " + entry.siteName + ", " + entry.size + ", " + entry.lastModified
+					+ ", " + entry.hash + ", " + entry.count + ", " + entry.extracted);
+		}
+		IOUtil.close(out);
+
+		File countTemp = new File(Project.DATAFILE_COUNT.getPath() + ".tmp");
+		out = IOUtil.getWriter(countTemp);
+		for (String line : counts.values()) {
+			out.println(line);
+		}
+		IOUtil.close(out);
+
+		move(manifestTemp, MANIFEST_FILE);
+		move(countTemp, Project.DATAFILE_COUNT);
+	}
+
+	private static void move(File source, File target) {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Unable to replace the file at '" + target.getAbsolutePath() + "'");
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	private static Iterable<CSVRecord> readCSV(File file) {
+		try {
+			CSVParser parser = CSVFormat.DEFAULT.parse(new FileReader(file));
+			Iterable<CSVRecord> records = parser.getRecords();
+			parser.close();
+			return records;
+		} catch (IOException e) {
+			System.err.println("Unable to parse the CSV file at '" + file.getAbsolutePath() + "'");
+			e.printStackTrace();
+			System.exit(-1);
+			return null;
+		}
+	}
+
+	private static String join(CSVRecord record) {
+		StringBuilder builder = new StringBuilder(record.get(0).trim());
+		for (int i = 1; i < record.size(); i++) {
+			builder.append(", ").append(record.get(i).trim());
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * A single line of the manifest
+	 */
+	private static class Entry {
+		final String archiveName;
+		final String siteName;
+		final long size;
+		final long lastModified;
+		final String hash;
+		final long count;
+		final String extracted;
+
+		Entry(CSVRecord record) {
+			this(record.get(0).trim(), record.get(1).trim(), Long.parseLong(record.get(2).trim()),
+					Long.parseLong(record.get(3).trim()), record.get(4).trim(), Long.parseLong(record.get(5).trim()),
+					record.get(6).trim());
+		}
+
+		Entry(String archiveName, String siteName, long size, long lastModified, String hash, long count,
+				String extracted) {
+			this.archiveName = archiveName;
+			this.siteName = siteName;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+			this.count = count;
+			this.extracted = extracted;
+		}
+	}
+}
@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
@@ -67,6 +68,27 @@ public class IOUtil {
 		}
 	}
 
+	/**
+	 * Locks a file, waiting while another process holds the lock. The lock is
+	 * held by the process: Its threads must take turns.
+	 *
+	 * @return the locked file, to be closed to release the lock
+	 */
+	public static RandomAccessFile lock(File lockFile) {
+		RandomAccessFile file = null;
+		try {
+			lockFile.getAbsoluteFile().getParentFile().mkdirs();
+			file = new RandomAccessFile(lockFile, "rw");
+			file.getChannel().lock();
+			return file;
+		} catch (IOException e) {
+			System.err.println("Unable to lock the file at '" + lockFile.getAbsolutePath() + "'");
+			e.printStackTrace();
+			System.exit(-1);
+			return null;
+		}
+	}
+
 	/**
 	 * Close any kind of IO resource
 	 */
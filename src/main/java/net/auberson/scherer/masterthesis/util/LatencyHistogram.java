@@ -0,0 +1,89 @@
+package net.auberson.scherer.masterthesis.util;
+
+/**
+ * A histogram of latencies in the manner of an HdrHistogram: Each power of 2
+ * is split into 32 buckets of equal width, so that a recorded value is known
+ * within about 3%, from microseconds to days, in a fixed array of counts. <br>
+ * Not thread-safe: Synchronize on the histogram, or on its owner.
+ */
+class LatencyHistogram {
+
+	// Buckets per power of 2: 2^(SUB_BUCKET_BITS - 1)
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+	private final long[] counts = new long[getIndex(Long.MAX_VALUE) + 1];
+	private long count = 0;
+	private long sum = 0;
+	private long max = 0;
+
+	/**
+	 * @param value
+	 *            a latency, in any unit, at least 0
+	 */
+	void record(long value) {
+		value = Math.max(0, value);
+		counts[getIndex(value)]++;
+		count++;
+		sum += value;
+		max = Math.max(max, value);
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	long getMax() {
+		return max;
+	}
+
+	double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * @param percentile
+	 *            e.g. 99 for the 99th percentile
+	 * @return the highest value of the bucket holding the percentile, or 0 if
+	 *         nothing was recorded
+	 */
+	long getPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(max, getHighestValue(i));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Values below SUB_BUCKETS have a bucket each. Above, the bucket is given by
+	 * the highest bit of the value, and the SUB_BUCKET_BITS - 1 bits below.
+	 */
+	private static int getIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+		return (shift + 1) * HALF_SUB_BUCKETS + (int) (value >>> shift) - HALF_SUB_BUCKETS;
+	}
+
+	private static long getHighestValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / HALF_SUB_BUCKETS - 1;
+		long subBucket = index % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+		if (shift + SUB_BUCKET_BITS > 63) {
+			return Long.MAX_VALUE;
+		}
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,81 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.auberson.scherer.masterthesis.model.Classification;
+import net.auberson.scherer.masterthesis.model.ClassifierInfo;
+
+/**
+ * Trains and runs naive Bayes classifiers in this process (see
+ * <code>NaiveBayesModel</code>), without any service. A classifier is trained
+ * in seconds, and is available as soon as it is created. <br>
+ * The classifiers are only kept in memory: A classifier registered by an
+ * earlier run doesn't exist anymore, and is trained again.
+ */
+class LocalBackend implements ClassifierBackend {
+
+	private final Map<String, LocalClassifier> classifiers = new ConcurrentHashMap<String, LocalClassifier>();
+	// Makes the ids unique within the process, the time across processes
+	private final AtomicInteger idCounter = new AtomicInteger();
+
+	public String getName() {
+		return "local";
+	}
+
+	public boolean isRemote() {
+		return false;
+	}
+
+	public ClassifierInfo train(String name, String language, File trainingSet) {
+		String classifierId = "local-" + Long.toHexString(System.currentTimeMillis()) + "-"
+				+ idCounter.incrementAndGet();
+		NaiveBayesModel model = NaiveBayesModel.train(trainingSet, Project.LOCAL_FEATURE_BITS);
+		ClassifierInfo info = new ClassifierInfo(classifierId, name, ClassifierInfo.STATUS_AVAILABLE);
+		classifiers.put(classifierId, new LocalClassifier(info, model));
+		return info;
+	}
+
+	public ClassifierInfo get(String classifierId) {
+		LocalClassifier classifier = classifiers.get(classifierId);
+		return classifier == null ? null : classifier.info;
+	}
+
+	public List<ClassifierInfo> list() {
+		List<ClassifierInfo> infos = new ArrayList<ClassifierInfo>();
+		for (LocalClassifier classifier : classifiers.values()) {
+			infos.add(classifier.info);
+		}
+		return infos;
+	}
+
+	public List<Classification> classify(String classifierId, List<String> texts) {
+		LocalClassifier classifier = classifiers.get(classifierId);
+		if (classifier == null) {
+			throw new IllegalArgumentException("Classifier " + classifierId + " doesn't exist");
+		}
+		List<Classification> results = new ArrayList<Classification>(texts.size());
+		for (String text : texts) {
+			results.add(classifier.model.classify(text));
+		}
+		return results;
+	}
+
+	public boolean delete(String classifierId) {
+		return classifiers.remove(classifierId) != null;
+	}
+
+	private static class LocalClassifier {
+		final ClassifierInfo info;
+		final NaiveBayesModel model;
+
+		LocalClassifier(ClassifierInfo info, NaiveBayesModel model) {
+			this.info = info;
+			this.model = model;
+		}
+	}
+}
@@ -0,0 +1,499 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.auberson.scherer.masterthesis.model.Classification;
+
+/**
+ * 'Mock NLC' executable: A local HTTP server implementing the endpoints of the
+ * NLC v1 API used by the <code>WatsonBackend</code> (list, get, create and
+ * delete classifiers, classify_collection), so that batching, retries and
+ * training polls can be benchmarked without the IBM Cloud. Point the
+ * BatchClassifiers at it with <code>-Dnlc.endpoint</code>. <br>
+ * Classifiers are naive Bayes models (see <code>NaiveBayesModel</code>)
+ * trained on the uploaded training set, kept in memory. They stay in
+ * "Training" status for <code>-Dmock.trainingTime</code> ms. Each request is
+ * delayed by a random latency, and may be throttled, failed or dropped (see
+ * the <code>-Dmock.*</code> properties in <code>Project</code>). Credentials
+ * are ignored. <br>
+ * The requests served are reported on shutdown.
+ */
+public class MockNLCServer {
+
+	private static final String API_PATH = "/natural-language-classifier/api";
+	private static final String CLASSIFIERS_PATH = "/v1/classifiers";
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors
+			.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("mock-nlc-%d").setDaemon(true).build());
+	private final Random random = Project.MOCK_SEED == null ? new Random() : new Random(Project.MOCK_SEED);
+	private final Map<String, MockClassifier> classifiers = new ConcurrentHashMap<String, MockClassifier>();
+	private final AtomicInteger idCounter = new AtomicInteger();
+
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong classifiedCount = new AtomicLong();
+	private final AtomicLong throttledCount = new AtomicLong();
+	private final AtomicLong errorCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	/**
+	 * Program executable for the mock NLC server
+	 *
+	 * @param args
+	 *            none, see the <code>-Dmock.*</code> properties
+	 */
+	public static void main(String[] args) throws IOException {
+		final MockNLCServer mock = new MockNLCServer(Project.MOCK_PORT);
+		mock.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				mock.stop();
+			}
+		}));
+		System.out.println("Mock NLC listening, run the experiments with -Dnlc.endpoint=" + mock.getEndPoint());
+	}
+
+	/**
+	 * @param port
+	 *            the port to listen on, or 0 for any free port
+	 */
+	public MockNLCServer(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 64);
+		server.createContext(API_PATH + CLASSIFIERS_PATH, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					serve(exchange);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					sendError(exchange, 500, e.toString());
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(executor);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops the server, and reports the requests served
+	 */
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+		System.out.println(toString());
+	}
+
+	/**
+	 * @return the URL to pass as <code>-Dnlc.endpoint</code>
+	 */
+	public String getEndPoint() {
+		return "http://localhost:" + server.getAddress().getPort() + API_PATH;
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		requestCount.incrementAndGet();
+		String method = exchange.getRequestMethod();
+		String path = exchange.getRequestURI().getPath().substring((API_PATH + CLASSIFIERS_PATH).length());
+		String[] segments = path.isEmpty() || path.equals("/") ? new String[0] : path.substring(1).split("/");
+		byte[] body = readFully(exchange.getRequestBody());
+
+		// Simulate the service
+		int samples = 0;
+		if (segments.length == 2 && segments[1].equals("classify_collection")) {
+			samples = getStrings(new String(body, StandardCharsets.UTF_8), "text").size();
+		}
+		sleep(getLatency() + samples * Project.MOCK_LATENCY_PER_SAMPLE);
+		double fault = nextDouble();
+		if (fault < Project.MOCK_THROTTLE_RATE) {
+			throttledCount.incrementAndGet();
+			exchange.getResponseHeaders().set("Retry-After", Integer.toString(Project.MOCK_RETRY_AFTER));
+			sendError(exchange, 429, "Too Many Requests");
+			return;
+		}
+		fault -= Project.MOCK_THROTTLE_RATE;
+		if (fault < Project.MOCK_ERROR_RATE) {
+			errorCount.incrementAndGet();
+			sendError(exchange, 500, "Internal Server Error");
+			return;
+		}
+		fault -= Project.MOCK_ERROR_RATE;
+		boolean drop = fault < Project.MOCK_DROP_RATE;
+
+		String response;
+		if (segments.length == 0 && method.equals("GET")) {
+			response = listClassifiers();
+		} else if (segments.length == 0 && method.equals("POST")) {
+			response = createClassifier(exchange, body);
+		} else if (segments.length == 1 && method.equals("GET")) {
+			response = getClassifier(segments[0]);
+		} else if (segments.length == 1 && method.equals("DELETE")) {
+			response = classifiers.remove(segments[0]) == null ? null : "{}";
+		} else if (segments.length == 2 && segments[1].equals("classify_collection") && method.equals("POST")) {
+			response = classifyCollection(exchange, segments[0], body);
+		} else {
+			sendError(exchange, 404, "Not found: " + method + " " + exchange.getRequestURI().getPath());
+			return;
+		}
+		if (response == null) {
+			// The request was answered with an error already, or the classifier doesn't exist
+			if (exchange.getResponseCode() == -1) {
+				sendError(exchange, 404, "Classifier not found");
+			}
+			return;
+		}
+
+		byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, bytes.length);
+		if (drop) {
+			// Close the connection in the middle of the response
+			droppedCount.incrementAndGet();
+			exchange.getResponseBody().write(bytes, 0, bytes.length / 2);
+			exchange.getResponseBody().flush();
+			// Closing the incomplete response closes the connection
+			exchange.close();
+			return;
+		}
+		exchange.getResponseBody().write(bytes);
+	}
+
+	private String listClassifiers() {
+		StringBuilder json = new StringBuilder("{\"classifiers\":[");
+		boolean first = true;
+		for (MockClassifier classifier : classifiers.values()) {
+			if (!first) {
+				json.append(',');
+			}
+			json.append(toJson(classifier));
+			first = false;
+		}
+		return json.append("]}").toString();
+	}
+
+	private String getClassifier(String classifierId) {
+		MockClassifier classifier = classifiers.get(classifierId);
+		return classifier == null ? null : toJson(classifier);
+	}
+
+	/**
+	 * Trains a classifier on the training set of a multipart request, with the
+	 * name and language given in its metadata
+	 */
+	private String createClassifier(HttpExchange exchange, byte[] body) throws IOException {
+		Map<String, byte[]> parts = getParts(exchange.getRequestHeaders().getFirst("Content-Type"), body);
+		byte[] metadata = parts.get("training_metadata");
+		byte[] trainingData = parts.get("training_data");
+		if (metadata == null || trainingData == null) {
+			sendError(exchange, 400, "Expected training_metadata and training_data");
+			return null;
+		}
+		String metadataJson = new String(metadata, StandardCharsets.UTF_8);
+		List<String> names = getStrings(metadataJson, "name");
+		List<String> languages = getStrings(metadataJson, "language");
+
+		File trainingSet = File.createTempFile("mock-nlc-", ".csv");
+		NaiveBayesModel model;
+		try {
+			Files.write(trainingSet.toPath(), trainingData);
+			model = NaiveBayesModel.train(trainingSet, Project.LOCAL_FEATURE_BITS);
+		} catch (IllegalArgumentException e) {
+			sendError(exchange, 400, e.getMessage());
+			return null;
+		} finally {
+			trainingSet.delete();
+		}
+
+		String classifierId = Integer.toHexString(random.nextInt(0x10000)) + "x" + idCounter.incrementAndGet()
+				+ "-nlc-mock";
+		MockClassifier classifier = new MockClassifier(classifierId, names.isEmpty() ? null : names.get(0),
+				languages.isEmpty() ? "en" : languages.get(0), model);
+		classifiers.put(classifierId, classifier);
+		return toJson(classifier);
+	}
+
+	private String classifyCollection(HttpExchange exchange, String classifierId, byte[] body) throws IOException {
+		MockClassifier classifier = classifiers.get(classifierId);
+		if (classifier == null) {
+			return null;
+		}
+		if (classifier.isTraining()) {
+			sendError(exchange, 409, "Classifier " + classifierId + " is still training");
+			return null;
+		}
+		List<String> texts = getStrings(new String(body, StandardCharsets.UTF_8), "text");
+		if (texts.size() > Project.MAX_SAMPLES_PER_CLASSIFICATION_REQUEST) {
+			sendError(exchange, 400, "Collection has " + texts.size() + " texts, the maximum is "
+					+ Project.MAX_SAMPLES_PER_CLASSIFICATION_REQUEST);
+			return null;
+		}
+		classifiedCount.addAndGet(texts.size());
+
+		StringBuilder json = new StringBuilder("{\"classifier_id\":").append(quote(classifierId))
+				.append(",\"url\":").append(quote(getUrl(classifierId))).append(",\"collection\":[");
+		for (int i = 0; i < texts.size(); i++) {
+			Classification result = classifier.model.classify(texts.get(i));
+			json.append(i == 0 ? "{" : ",{").append("\"text\":").append(quote(texts.get(i)))
+					.append(",\"top_class\":").append(quote(result.getTopClass())).append(",\"classes\":[");
+			for (int c = 0; c < result.getClassCount(); c++) {
+				json.append(c == 0 ? "{" : ",{").append("\"class_name\":").append(quote(result.getClassName(c)))
+						.append(",\"confidence\":").append(result.getConfidence(c)).append('}');
+			}
+			json.append("]}");
+		}
+		return json.append("]}").toString();
+	}
+
+	private String toJson(MockClassifier classifier) {
+		return "{\"classifier_id\":" + quote(classifier.classifierId) + ",\"name\":" + quote(classifier.name)
+				+ ",\"language\":" + quote(classifier.language) + ",\"created\":"
+				+ quote(classifier.created.toString()) + ",\"url\":" + quote(getUrl(classifier.classifierId))
+				+ ",\"status\":" + quote(classifier.isTraining() ? "Training" : "Available")
+				+ ",\"status_description\":" + quote(classifier.isTraining()
+						? "The classifier instance is in its training phase, not yet ready to accept classify requests"
+						: "The classifier instance is now available and is ready to take classifier requests.")
+				+ "}";
+	}
+
+	private String getUrl(String classifierId) {
+		return getEndPoint() + CLASSIFIERS_PATH + "/" + classifierId;
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] bytes = ("{\"code\":" + status + ",\"error\":" + quote(message) + "}").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		exchange.getResponseBody().write(bytes);
+	}
+
+	/**
+	 * @return a random latency in ms, following the distribution given by
+	 *         <code>-Dmock.latencyDistribution</code>
+	 */
+	private long getLatency() {
+		double median = Project.MOCK_LATENCY;
+		String distribution = Project.MOCK_LATENCY_DISTRIBUTION;
+		if (distribution.equals("fixed")) {
+			return (long) median;
+		} else if (distribution.equals("uniform")) {
+			return (long) (2 * median * nextDouble());
+		} else if (distribution.equals("exponential")) {
+			return (long) (-median / Math.log(2) * Math.log(1 - nextDouble()));
+		} else if (distribution.equals("lognormal")) {
+			return (long) (median * Math.exp(Project.MOCK_LATENCY_SIGMA * nextGaussian()));
+		}
+		throw new IllegalArgumentException("Unknown latency distribution: " + distribution);
+	}
+
+	private double nextDouble() {
+		synchronized (random) {
+			return random.nextDouble();
+		}
+	}
+
+	private double nextGaussian() {
+		synchronized (random) {
+			return random.nextGaussian();
+		}
+	}
+
+	private static void sleep(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Splits a multipart/form-data body into its parts, by name
+	 */
+	private static Map<String, byte[]> getParts(String contentType, byte[] body) {
+		Map<String, byte[]> parts = new HashMap<String, byte[]>();
+		int boundaryStart = contentType == null ? -1 : contentType.indexOf("boundary=");
+		if (boundaryStart < 0) {
+			return parts;
+		}
+		String boundary = "--" + contentType.substring(boundaryStart + "boundary=".length()).replace("\"", "").trim();
+		// ISO-8859-1 maps each byte to a char, so that the offsets are byte offsets
+		String content = new String(body, StandardCharsets.ISO_8859_1);
+		int start = content.indexOf(boundary);
+		while (start >= 0) {
+			int headersStart = start + boundary.length() + 2;
+			int headersEnd = content.indexOf("\r\n\r\n", headersStart);
+			int end = content.indexOf("\r\n" + boundary, headersStart);
+			if (headersEnd < 0 || end < 0 || headersEnd > end) {
+				break;
+			}
+			String headers = content.substring(headersStart, headersEnd);
+			int nameStart = headers.indexOf("name=\"");
+			if (nameStart >= 0) {
+				String name = headers.substring(nameStart + 6, headers.indexOf('"', nameStart + 6));
+				parts.put(name, content.substring(headersEnd + 4, end).getBytes(StandardCharsets.ISO_8859_1));
+			}
+			start = end + 2;
+		}
+		return parts;
+	}
+
+	/**
+	 * @return the values of all string members with the given name, in the order
+	 *         of the JSON document
+	 */
+	private static List<String> getStrings(String json, String name) {
+		List<String> values = new ArrayList<String>();
+		StringBuilder string = new StringBuilder();
+		int i = 0;
+		while (i < json.length()) {
+			if (json.charAt(i) != '"') {
+				i++;
+				continue;
+			}
+			i = readString(json, i, string);
+			String member = string.toString();
+			int next = skipWhitespace(json, i);
+			if (next < json.length() && json.charAt(next) == ':') {
+				next = skipWhitespace(json, next + 1);
+				if (member.equals(name) && next < json.length() && json.charAt(next) == '"') {
+					i = readString(json, next, string);
+					values.add(string.toString());
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Reads a JSON string starting at the opening quote
+	 *
+	 * @return the index after the closing quote
+	 */
+	private static int readString(String json, int start, StringBuilder string) {
+		string.setLength(0);
+		int i = start + 1;
+		while (i < json.length()) {
+			char ch = json.charAt(i++);
+			if (ch == '"') {
+				break;
+			} else if (ch != '\\' || i >= json.length()) {
+				string.append(ch);
+				continue;
+			}
+			char escaped = json.charAt(i++);
+			switch (escaped) {
+			case 'b':
+				string.append('\b');
+				break;
+			case 'f':
+				string.append('\f');
+				break;
+			case 'n':
+				string.append('\n');
+				break;
+			case 'r':
+				string.append('\r');
+				break;
+			case 't':
+				string.append('\t');
+				break;
+			case 'u':
+				string.append((char) Integer.parseInt(json.substring(i, i + 4), 16));
+				i += 4;
+				break;
+			default:
+				string.append(escaped);
+			}
+		}
+		return i;
+	}
+
+	private static int skipWhitespace(String json, int i) {
+		while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	private static String quote(String value) {
+		if (value == null) {
+			return "null";
+		}
+		StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char ch = value.charAt(i);
+			if (ch == '"' || ch == '\\') {
+				json.append('\\').append(ch);
+			} else if (ch < 0x20) {
+				json.append(String.format("\\u%04x", (int) ch));
+			} else {
+				json.append(ch);
+			}
+		}
+		return json.append('"').toString();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Mock NLC: %d requests, %d samples classified, %d throttled, %d failed, %d dropped",
+				requestCount.get(), classifiedCount.get(), throttledCount.get(), errorCount.get(), droppedCount.get());
+	}
+
+	/**
+	 * A classifier, trained right away, but reported as training until
+	 * <code>-Dmock.trainingTime</code> ms have passed
+	 */
+	private static class MockClassifier {
+		final String classifierId;
+		final String name;
+		final String language;
+		final Instant created = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+		final NaiveBayesModel model;
+
+		MockClassifier(String classifierId, String name, String language, NaiveBayesModel model) {
+			this.classifierId = classifierId;
+			this.name = name;
+			this.language = language;
+			this.model = model;
+		}
+
+		boolean isTraining() {
+			return Instant.now().isBefore(created.plus(Project.MOCK_TRAINING_TIME, ChronoUnit.MILLIS));
+		}
+	}
+}
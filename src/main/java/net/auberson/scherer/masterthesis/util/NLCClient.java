@@ -0,0 +1,204 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ibm.watson.developer_cloud.natural_language_classifier.v1.NaturalLanguageClassifier;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Holds a client for each NLC service instance in <code>nlc.properties</code>
+ * (see <code>NLCProperties</code>), shared by all threads of the process. The
+ * clients are created once, and their connections are kept open between calls
+ * (see <code>-Dnlc.connections</code> and <code>-Dnlc.keepAlive</code>), so
+ * that calls don't pay for a new TLS handshake. <br>
+ * When a client is created, <code>-Dnlc.concurrency</code> connections are
+ * opened in the background, to be ready for the first batches. If the
+ * service shuts a connection down, the idle connections are evicted from the
+ * pool; the client itself is kept. <br>
+ * Each client counts its outstanding calls, and has its own circuit breaker
+ * (see <code>RetryingCaller</code>): New classifiers are trained by the
+ * instance with the fewest outstanding calls, among those whose circuit
+ * breaker is closed.
+ */
+class NLCClient {
+
+	// Connections kept open between calls, shared by all threads
+	private static final ConnectionPool CONNECTION_POOL = new ConnectionPool(Project.NLC_CONNECTIONS,
+			Project.NLC_KEEP_ALIVE, TimeUnit.MILLISECONDS);
+	private static List<NLCClient> clients;
+
+	private final String name;
+	private final String username;
+	private final NaturalLanguageClassifier service;
+	private final RetryingCaller.CircuitBreaker breaker;
+	private final AtomicInteger outstandingCalls = new AtomicInteger();
+	private final AtomicInteger classifiers = new AtomicInteger();
+	private OkHttpClient httpClient;
+
+	private NLCClient(String name, String username, String password, String endPoint) {
+		this.name = name;
+		this.username = username;
+		this.breaker = new RetryingCaller.CircuitBreaker(name);
+
+		// Initialize Watson NLC, with the shared connection pool
+		NaturalLanguageClassifier newService = new NaturalLanguageClassifier() {
+			@Override
+			protected OkHttpClient configureHttpClient() {
+				// Failed calls are retried by the RetryingCaller only: OkHttp would silently
+				// replay any request, e.g. the creation of a classifier
+				httpClient = super.configureHttpClient().newBuilder().connectionPool(CONNECTION_POOL)
+						.retryOnConnectionFailure(false).build();
+				return httpClient;
+			}
+		};
+		newService.setUsernameAndPassword(username, password);
+		if (endPoint != null) {
+			newService.setEndPoint(endPoint);
+		}
+		this.service = newService;
+
+		if (Project.NLC_PREWARM) {
+			prewarm(service.getEndPoint());
+		}
+	}
+
+	/**
+	 * @return the clients of all service instances, created on first use
+	 */
+	static synchronized List<NLCClient> getClients() {
+		if (clients != null) {
+			return clients;
+		}
+
+		// Programmatically suppress the HTTP logging
+		Logger.getLogger("com.ibm.watson.developer_cloud.util.HttpLogging").setLevel(Level.WARNING);
+
+		NLCProperties nlcProps = new NLCProperties();
+		int instanceCount = nlcProps.getInstanceCount();
+		List<NLCClient> newClients = new ArrayList<NLCClient>(instanceCount);
+		for (int instance = 1; instance <= instanceCount; instance++) {
+			String endPoint = nlcProps.getEndpoint(instance);
+			if (endPoint == null) {
+				endPoint = Project.NLC_ENDPOINT;
+			}
+			String name = instanceCount == 1 ? "NLC" : "NLC instance " + instance;
+			newClients.add(new NLCClient(name, nlcProps.getUsername(instance), nlcProps.getPassword(instance),
+					endPoint));
+		}
+		clients = Collections.unmodifiableList(newClients);
+		return clients;
+	}
+
+	/**
+	 * @return the client to train a new classifier with: The one with the fewest
+	 *         outstanding calls, then with the fewest classifiers, among those
+	 *         whose circuit breaker is closed (or among all, if none is)
+	 */
+	static NLCClient getLeastBusyClient() {
+		NLCClient leastBusy = null;
+		for (int pass = 0; pass < 2 && leastBusy == null; pass++) {
+			for (NLCClient client : getClients()) {
+				if (pass == 0 && client.breaker.isOpen()) {
+					continue;
+				}
+				if (leastBusy == null || client.isLessBusyThan(leastBusy)) {
+					leastBusy = client;
+				}
+			}
+		}
+		return leastBusy;
+	}
+
+	private boolean isLessBusyThan(NLCClient other) {
+		int outstanding = outstandingCalls.get();
+		int otherOutstanding = other.outstandingCalls.get();
+		if (outstanding != otherOutstanding) {
+			return outstanding < otherOutstanding;
+		}
+		return classifiers.get() < other.classifiers.get();
+	}
+
+	/**
+	 * Records that the service shut a connection down (e.g. an HTTP/2 GOAWAY):
+	 * The idle connections are closed, so that the next calls open new ones.
+	 */
+	static void connectionShutdown() {
+		CONNECTION_POOL.evictAll();
+	}
+
+	NaturalLanguageClassifier getService() {
+		return service;
+	}
+
+	RetryingCaller.CircuitBreaker getBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * @return the account of the instance, sharing a quota (see
+	 *         <code>NLCQuota</code>)
+	 */
+	String getUsername() {
+		return username;
+	}
+
+	void callStarted() {
+		outstandingCalls.incrementAndGet();
+	}
+
+	void callFinished() {
+		outstandingCalls.decrementAndGet();
+	}
+
+	/**
+	 * Records that a classifier was created on, or found on, this instance
+	 */
+	void classifierAdded() {
+		classifiers.incrementAndGet();
+	}
+
+	void classifierRemoved() {
+		classifiers.decrementAndGet();
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * Opens <code>-Dnlc.concurrency</code> connections to the service in the
+	 * background, with requests that need no credentials. The answers are
+	 * ignored, only the connections are kept.
+	 */
+	private void prewarm(final String endPoint) {
+		if (endPoint == null || httpClient == null) {
+			return;
+		}
+		Request request = new Request.Builder().url(endPoint).head().build();
+		for (int i = 0; i < Project.NLC_CONCURRENCY; i++) {
+			httpClient.newCall(request).enqueue(new Callback() {
+				public void onFailure(Call call, IOException e) {
+					System.err.println("Unable to open a connection to " + endPoint + " in advance: " + e.toString());
+				}
+
+				public void onResponse(Call call, Response response) {
+					response.close();
+				}
+			});
+		}
+	}
+}
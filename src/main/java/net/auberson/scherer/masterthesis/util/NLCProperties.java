@@ -4,6 +4,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
 
+/**
+ * The credentials of the NLC service instances, in <code>nlc.properties</code>:
+ * <code>username</code> and <code>password</code> for the first instance,
+ * <code>username.2</code> and <code>password.2</code> for the second, and so
+ * on. An instance may have its own <code>endpoint</code> (or
+ * <code>endpoint.2</code>...), the IBM Cloud (or <code>-Dnlc.endpoint</code>)
+ * otherwise.
+ */
 public class NLCProperties extends Properties {
 
 	private static final long serialVersionUID = 1L;
@@ -30,4 +38,45 @@ public class NLCProperties extends Properties {
 	public String getPassword() {
 		return getProperty("password");
 	}
+
+	/**
+	 * @return the number of service instances: 1, plus 1 for each
+	 *         <code>username.N</code> with N = 2, 3...
+	 */
+	public int getInstanceCount() {
+		int count = 1;
+		while (getProperty("username." + (count + 1)) != null) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @param instance
+	 *            the instance, from 1 to <code>getInstanceCount()</code>
+	 */
+	public String getUsername(int instance) {
+		return getProperty(getKey("username", instance));
+	}
+
+	/**
+	 * @param instance
+	 *            the instance, from 1 to <code>getInstanceCount()</code>
+	 */
+	public String getPassword(int instance) {
+		return getProperty(getKey("password", instance));
+	}
+
+	/**
+	 * @param instance
+	 *            the instance, from 1 to <code>getInstanceCount()</code>
+	 * @return the endpoint of the instance, or null for the default
+	 */
+	public String getEndpoint(int instance) {
+		return getProperty(getKey("endpoint", instance));
+	}
+
+	private static String getKey(String name, int instance) {
+		return instance == 1 ? name : name + "." + instance;
+	}
 }
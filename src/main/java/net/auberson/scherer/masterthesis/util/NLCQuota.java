@@ -0,0 +1,210 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+
+/**
+ * Keeps the calls of all experiments running on this machine within the
+ * quota of the NLC accounts:
+ * <ul>
+ * <li>Calls take a token from the bucket of their account, refilled with
+ * <code>-Dnlc.requestsPerSecond</code> tokens per second, holding at most
+ * <code>-Dnlc.burst</code> tokens. A call waits while the bucket is
+ * empty.</li>
+ * <li>A classifier takes one of <code>-Dnlc.trainingSlots</code> slots while
+ * it is trained. Training waits while all slots are taken.</li>
+ * </ul>
+ * The bucket and the slots are files in <code>-Dnlc.quotaDir</code>, guarded
+ * by file locks, so that all processes share them. A slot is a file locked
+ * for as long as the training lasts: The operating system releases it if the
+ * process dies.
+ */
+class NLCQuota {
+
+	// Polling interval while all training slots are taken
+	private static final long SLOT_POLL_INTERVAL = 1000;
+
+	// File locks are held by the process: Threads take turns
+	private static final Object BUCKET_LOCK = new Object();
+	// The training slots held by this process
+	private static final boolean[] heldSlots = new boolean[Math.max(0, Project.NLC_TRAINING_SLOTS)];
+
+	private NLCQuota() {
+	}
+
+	/**
+	 * Waits until a call can be made, and takes a token from the bucket
+	 *
+	 * @param account
+	 *            the account called, each has its own bucket
+	 */
+	static void acquireRequest(String account) {
+		if (Project.NLC_REQUESTS_PER_SECOND <= 0) {
+			return;
+		}
+		while (true) {
+			long wait;
+			synchronized (BUCKET_LOCK) {
+				wait = takeToken(getBucketFile(account));
+			}
+			if (wait <= 0) {
+				return;
+			}
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for the NLC request quota", e);
+			}
+		}
+	}
+
+	private static File getBucketFile(String account) {
+		String name = account == null ? "" : "-" + account.replaceAll("[^A-Za-z0-9_.-]", "_");
+		return new File(Project.NLC_QUOTA_DIR, "requests" + name + ".bucket");
+	}
+
+	/**
+	 * Refills the bucket for the time passed since it was last used, and takes
+	 * a token if there is one
+	 *
+	 * @return 0 if a token was taken, or else the time in ms until the next
+	 *         token
+	 */
+	private static long takeToken(File bucketFile) {
+		RandomAccessFile file = null;
+		try {
+			Project.NLC_QUOTA_DIR.mkdirs();
+			file = new RandomAccessFile(bucketFile, "rw");
+			FileLock lock = file.getChannel().lock();
+			try {
+				long now = System.currentTimeMillis();
+				double tokens = Project.NLC_BURST;
+				long lastUsed = now;
+				if (file.length() >= 16) {
+					tokens = file.readDouble();
+					lastUsed = file.readLong();
+				}
+				tokens = Math.min(Project.NLC_BURST,
+						tokens + Math.max(0, now - lastUsed) * Project.NLC_REQUESTS_PER_SECOND / 1000);
+
+				long wait = 0;
+				if (tokens >= 1) {
+					tokens -= 1;
+				} else {
+					wait = (long) Math.ceil((1 - tokens) * 1000 / Project.NLC_REQUESTS_PER_SECOND);
+				}
+				file.seek(0);
+				file.writeDouble(tokens);
+				file.writeLong(now);
+				return wait;
+			} finally {
+				lock.release();
+			}
+		} catch (IOException e) {
+			System.err.println("A disk error occured trying to update the NLC request quota at "
+					+ bucketFile.getAbsolutePath());
+			e.printStackTrace();
+			System.exit(-1);
+			return 0;
+		} finally {
+			IOUtil.close(file);
+		}
+	}
+
+	/**
+	 * Waits until a training slot is free, and takes it
+	 *
+	 * @return the slot, to be released once the classifier is trained
+	 */
+	static TrainingSlot acquireTrainingSlot() {
+		if (Project.NLC_TRAINING_SLOTS <= 0) {
+			return new TrainingSlot(-1, null, null);
+		}
+		boolean waiting = false;
+		while (true) {
+			for (int slot = 0; slot < heldSlots.length; slot++) {
+				TrainingSlot trainingSlot = tryAcquireTrainingSlot(slot);
+				if (trainingSlot != null) {
+					return trainingSlot;
+				}
+			}
+			if (!waiting) {
+				System.out.println("Waiting for one of the " + heldSlots.length + " NLC training slots");
+				waiting = true;
+			}
+			try {
+				Thread.sleep(SLOT_POLL_INTERVAL);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for an NLC training slot", e);
+			}
+		}
+	}
+
+	/**
+	 * @return the slot, or null if it is taken by this or another process
+	 */
+	private static TrainingSlot tryAcquireTrainingSlot(int slot) {
+		synchronized (heldSlots) {
+			if (heldSlots[slot]) {
+				return null;
+			}
+			File slotFile = new File(Project.NLC_QUOTA_DIR, "training-slot-" + slot + ".lock");
+			RandomAccessFile file = null;
+			try {
+				Project.NLC_QUOTA_DIR.mkdirs();
+				file = new RandomAccessFile(slotFile, "rw");
+				FileLock lock = file.getChannel().tryLock();
+				if (lock == null) {
+					IOUtil.close(file);
+					return null;
+				}
+				heldSlots[slot] = true;
+				return new TrainingSlot(slot, file, lock);
+			} catch (IOException e) {
+				System.err.println("A disk error occured trying to lock the NLC training slot at "
+						+ slotFile.getAbsolutePath());
+				e.printStackTrace();
+				System.exit(-1);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * A training slot held by this process
+	 */
+	static class TrainingSlot {
+		private final int slot;
+		private final RandomAccessFile file;
+		private FileLock lock;
+
+		private TrainingSlot(int slot, RandomAccessFile file, FileLock lock) {
+			this.slot = slot;
+			this.file = file;
+			this.lock = lock;
+		}
+
+		/**
+		 * Frees the slot for the next training. Releasing it again has no effect.
+		 */
+		void release() {
+			synchronized (heldSlots) {
+				if (lock == null) {
+					return;
+				}
+				try {
+					lock.release();
+				} catch (IOException e) {
+					// The lock is released when the file is closed anyway
+				}
+				IOUtil.close(file);
+				lock = null;
+				heldSlots[slot] = false;
+			}
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import net.auberson.scherer.masterthesis.model.Classification;
+
+/**
+ * A multinomial naive Bayes classifier on hashed features: The lower-cased
+ * words of a text (runs of letters and digits) and the pairs of consecutive
+ * words are hashed into 2^<code>-Dlocal.featureBits</code> buckets, without
+ * building a vocabulary. <br>
+ * Training is a single pass over the training set. Classifying a text is a
+ * single pass over its characters, adding up the precomputed log-likelihoods
+ * of its features. The confidences are the posterior probabilities of the
+ * classes. <br>
+ * A trained model is immutable, and can be used by several threads at a time.
+ */
+class NaiveBayesModel {
+
+	// Additive smoothing of the feature counts. Less than Laplace's 1, as most of
+	// the hashed features are never seen in training.
+	private static final double SMOOTHING = 0.1;
+
+	private final String[] classNames;
+	private final double[] logPriors;
+	private final int featureMask;
+	// Log-likelihood of each feature for each class, the classes of a feature
+	// next to each other: [feature * classCount + class]
+	private final float[] logLikelihoods;
+
+	private NaiveBayesModel(String[] classNames, double[] logPriors, int featureMask, float[] logLikelihoods) {
+		this.classNames = classNames;
+		this.logPriors = logPriors;
+		this.featureMask = featureMask;
+		this.logLikelihoods = logLikelihoods;
+	}
+
+	/**
+	 * Trains a model
+	 *
+	 * @param trainingSet
+	 *            a CSV with 2 columns: Text and Class
+	 * @param featureBits
+	 *            the number of features is 2^featureBits
+	 */
+	static NaiveBayesModel train(File trainingSet, int featureBits) {
+		int featureCount = 1 << featureBits;
+		int featureMask = featureCount - 1;
+
+		// Read the training set, hashing the features of each sample
+		Map<String, Integer> classIndexes = new LinkedHashMap<String, Integer>();
+		List<int[]> features = new ArrayList<int[]>();
+		List<Integer> classes = new ArrayList<Integer>();
+		CSVParser csv = IOUtil.openCSV(trainingSet);
+		for (CSVRecord record : csv) {
+			String className = record.get(1).trim();
+			Integer classIndex = classIndexes.get(className);
+			if (classIndex == null) {
+				classIndex = classIndexes.size();
+				classIndexes.put(className, classIndex);
+			}
+			String text = record.get(0);
+			int[] textFeatures = new int[text.length() + 1];
+			int count = getFeatures(text, textFeatures, featureMask);
+			features.add(Arrays.copyOf(textFeatures, count));
+			classes.add(classIndex);
+		}
+		IOUtil.close(csv);
+		if (classIndexes.isEmpty()) {
+			throw new IllegalArgumentException("The training set at " + trainingSet.getPath() + " is empty");
+		}
+
+		// Count the documents per class, and the features per class
+		int classCount = classIndexes.size();
+		int[] documentCounts = new int[classCount];
+		long[] featureTotals = new long[classCount];
+		int[] featureCounts = new int[featureCount * classCount];
+		for (int i = 0; i < features.size(); i++) {
+			int classIndex = classes.get(i);
+			documentCounts[classIndex]++;
+			for (int feature : features.get(i)) {
+				featureCounts[feature * classCount + classIndex]++;
+			}
+			featureTotals[classIndex] += features.get(i).length;
+		}
+
+		double[] logPriors = new double[classCount];
+		double[] logDenominators = new double[classCount];
+		for (int c = 0; c < classCount; c++) {
+			logPriors[c] = Math.log((double) documentCounts[c] / features.size());
+			logDenominators[c] = Math.log(featureTotals[c] + SMOOTHING * featureCount);
+		}
+		float[] logLikelihoods = new float[featureCount * classCount];
+		for (int i = 0; i < logLikelihoods.length; i++) {
+			logLikelihoods[i] = (float) (Math.log(featureCounts[i] + SMOOTHING) - logDenominators[i % classCount]);
+		}
+
+		return new NaiveBayesModel(classIndexes.keySet().toArray(new String[classCount]), logPriors, featureMask,
+				logLikelihoods);
+	}
+
+	/**
+	 * @return the classes of the text, most likely first, with their posterior
+	 *         probability
+	 */
+	Classification classify(String text) {
+		final int classCount = classNames.length;
+		int[] features = new int[text.length() + 1];
+		int featureCount = getFeatures(text, features, featureMask);
+
+		final double[] scores = Arrays.copyOf(logPriors, classCount);
+		for (int i = 0; i < featureCount; i++) {
+			int offset = features[i] * classCount;
+			for (int c = 0; c < classCount; c++) {
+				scores[c] += logLikelihoods[offset + c];
+			}
+		}
+
+		// Normalize the log-scores into probabilities
+		double max = Double.NEGATIVE_INFINITY;
+		for (double score : scores) {
+			max = Math.max(max, score);
+		}
+		double sum = 0;
+		for (int c = 0; c < classCount; c++) {
+			scores[c] = Math.exp(scores[c] - max);
+			sum += scores[c];
+		}
+
+		Integer[] order = new Integer[classCount];
+		for (int c = 0; c < classCount; c++) {
+			order[c] = c;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer c1, Integer c2) {
+				return Double.compare(scores[c2], scores[c1]);
+			}
+		});
+		String[] sortedNames = new String[classCount];
+		double[] confidences = new double[classCount];
+		for (int i = 0; i < classCount; i++) {
+			sortedNames[i] = classNames[order[i]];
+			confidences[i] = scores[order[i]] / sum;
+		}
+		return new Classification(text, sortedNames, confidences);
+	}
+
+	/**
+	 * Hashes the words of a text, and the pairs of consecutive words, into
+	 * features
+	 *
+	 * @param features
+	 *            receives the features, must hold at least text.length() + 1
+	 * @return the number of features
+	 */
+	private static int getFeatures(String text, int[] features, int featureMask) {
+		int count = 0;
+		int previous = 0;
+		boolean hasPrevious = false;
+		int hash = 0x811C9DC5;
+		boolean inWord = false;
+		for (int i = 0; i <= text.length(); i++) {
+			char ch = i < text.length() ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(ch)) {
+				// FNV-1a over the lower-cased characters of the word
+				hash = (hash ^ Character.toLowerCase(ch)) * 0x01000193;
+				inWord = true;
+			} else if (inWord) {
+				features[count++] = mix(hash) & featureMask;
+				if (hasPrevious) {
+					features[count++] = mix(previous * 0x9E3779B1 + hash) & featureMask;
+				}
+				previous = hash;
+				hasPrevious = true;
+				hash = 0x811C9DC5;
+				inWord = false;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Spreads the bits of a hash (the finalizer of MurmurHash3)
+	 */
+	private static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85EBCA6B;
+		hash ^= hash >>> 13;
+		hash *= 0xC2B2AE35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+}
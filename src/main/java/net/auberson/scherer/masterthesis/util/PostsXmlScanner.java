@@ -0,0 +1,393 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A fast, byte-level reader for StackExchange's Posts.xml files. <br>
+ * The data dumps contain exactly one <code>&lt;row .../&gt;</code> element per
+ * line, with all line breaks inside attribute values encoded as character
+ * references. This scanner relies on that layout: It looks at the
+ * <code>PostTypeId</code> attribute of each row first, and skips rows that
+ * aren't questions without decoding them. For questions, only the
+ * <code>Title</code> and <code>Body</code> attributes are decoded, and the body
+ * can be decoded partially.
+ */
+public class PostsXmlScanner {
+
+	/**
+	 * Receives the questions found by the scanner
+	 */
+	public interface QuestionHandler {
+		void question(Row row) throws IOException;
+	}
+
+	private static final byte[] ROW_START = "<row ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] POST_TYPE_ID = "PostTypeId".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] TITLE = "Title".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] BODY = "Body".getBytes(StandardCharsets.US_ASCII);
+
+	// The PostTypeId attribute is expected in the first few bytes of each row
+	private static final int HEADER_SIZE = 256;
+
+	private final InputStream in;
+	private byte[] buf = new byte[1024 * 1024];
+	private int pos = 0;
+	private int limit = 0;
+	private boolean eof = false;
+
+	private final Row row = new Row();
+	private long rowCount = 0;
+	private long questionCount = 0;
+
+	public PostsXmlScanner(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Reads the whole input, passing every question found to the handler. The Row
+	 * object passed is reused, and only valid during the callback.
+	 */
+	public void scan(QuestionHandler handler) throws IOException {
+		while (ensureHeader()) {
+			int headerEnd = Math.min(limit, pos + HEADER_SIZE);
+			int lineEnd = indexOf((byte) '\n', pos, headerEnd);
+			if (lineEnd != -1) {
+				headerEnd = lineEnd;
+			}
+
+			int rowStart = indexOf(ROW_START, pos, headerEnd);
+			if (rowStart == -1) {
+				// XML declaration, <posts> element, etc.
+				skipLine();
+				continue;
+			}
+			rowCount++;
+
+			int typeStart = findValue(POST_TYPE_ID, rowStart + ROW_START.length, headerEnd);
+			if (typeStart + 1 >= limit) {
+				// The value isn't in the buffer yet: Decide once the whole line is read
+				typeStart = -1;
+			}
+			if (typeStart != -1) {
+				// See the list of post types at:
+				// https://meta.stackexchange.com/questions/99265/meaning-of-values-for-posttypeid-in-data-explorer-or-in-data-dump
+				if (buf[typeStart] != '1' || buf[typeStart + 1] != '"') {
+					// Only process Questions, type 1. Ignore answers, tags, etc...
+					skipLine();
+					continue;
+				}
+			}
+
+			// A question (or a row with an unusual layout): Read the whole line
+			lineEnd = readLine();
+			row.set(pos, lineEnd);
+			if (typeStart == -1 && !row.isQuestion()) {
+				pos = Math.min(lineEnd + 1, limit);
+				continue;
+			}
+			questionCount++;
+			handler.question(row);
+			pos = Math.min(lineEnd + 1, limit);
+		}
+	}
+
+	/**
+	 * @return the number of rows seen so far
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * @return the number of questions passed to the handler so far
+	 */
+	public long getQuestionCount() {
+		return questionCount;
+	}
+
+	/**
+	 * Ensures that at least HEADER_SIZE bytes, or a complete line, are available
+	 * in the buffer from the current position.
+	 *
+	 * @return false if the end of the input has been reached
+	 */
+	private boolean ensureHeader() throws IOException {
+		while (limit - pos < HEADER_SIZE && !eof && indexOf((byte) '\n', pos, limit) == -1) {
+			fill();
+		}
+		return pos < limit;
+	}
+
+	/**
+	 * Skips to the beginning of the next line, without keeping the skipped data
+	 */
+	private void skipLine() throws IOException {
+		while (true) {
+			int lineEnd = indexOf((byte) '\n', pos, limit);
+			if (lineEnd != -1) {
+				pos = lineEnd + 1;
+				return;
+			}
+			pos = limit;
+			if (eof) {
+				return;
+			}
+			fill();
+		}
+	}
+
+	/**
+	 * Ensures that the whole current line is in the buffer, growing it as needed.
+	 *
+	 * @return the position of the end of the line (exclusive)
+	 */
+	private int readLine() throws IOException {
+		int searchFrom = pos;
+		while (true) {
+			int lineEnd = indexOf((byte) '\n', searchFrom, limit);
+			if (lineEnd != -1) {
+				return lineEnd;
+			}
+			if (eof) {
+				return limit;
+			}
+			searchFrom = limit - pos;
+			if (pos == 0 && limit == buf.length) {
+				byte[] grown = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, grown, 0, limit);
+				buf = grown;
+			}
+			fill();
+			searchFrom += pos;
+		}
+	}
+
+	/**
+	 * Moves the unread data to the start of the buffer, and reads more data after
+	 * it.
+	 */
+	private void fill() throws IOException {
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		if (limit == buf.length) {
+			return;
+		}
+		int read = in.read(buf, limit, buf.length - limit);
+		if (read == -1) {
+			eof = true;
+		} else {
+			limit += read;
+		}
+	}
+
+	private int indexOf(byte b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buf[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Walks through the attributes of a row, looking for the attribute of the
+	 * given name.
+	 * 
+	 * @return the position of the attribute's value, or -1 if it wasn't found
+	 *         before the given position
+	 */
+	private int findValue(byte[] name, int from, int to) {
+		int i = from;
+		while (i < to) {
+			// Skip whitespace between attributes
+			while (i < to && (buf[i] == ' ' || buf[i] == '\t')) {
+				i++;
+			}
+			int equals = indexOf((byte) '=', i, to);
+			if (equals == -1 || equals + 1 >= to || buf[equals + 1] != '"') {
+				return -1;
+			}
+			int valueStart = equals + 2;
+			if (equals - i == name.length && indexOf(name, i, equals) == i) {
+				return valueStart;
+			}
+			int valueEnd = indexOf((byte) '"', valueStart, to);
+			if (valueEnd == -1) {
+				return -1;
+			}
+			i = valueEnd + 1;
+		}
+		return -1;
+	}
+
+	private int indexOf(byte[] pattern, int from, int to) {
+		int last = to - pattern.length;
+		outer: for (int i = from; i <= last; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (buf[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * A single row of the Posts.xml file. Attribute values are decoded on demand.
+	 */
+	public class Row {
+		private int start;
+		private int end;
+		private final StringBuilder decoded = new StringBuilder(4096);
+
+		private void set(int start, int end) {
+			this.start = indexOf(ROW_START, start, end) + ROW_START.length;
+			this.end = end;
+		}
+
+		boolean isQuestion() {
+			String type = getAttribute(POST_TYPE_ID, Integer.MAX_VALUE);
+			return type != null && type.equals("1");
+		}
+
+		/**
+		 * @return the decoded post title, or null if the row has none
+		 */
+		public String getTitle() {
+			return getAttribute(TITLE, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * @return the fully decoded post body, or null if the row has none
+		 */
+		public String getBody() {
+			return getAttribute(BODY, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * @param maxChars
+		 *            the maximal number of characters to decode
+		 * @return the first maxChars characters of the decoded post body, or null if
+		 *         the row has none
+		 */
+		public String getBody(int maxChars) {
+			return getAttribute(BODY, maxChars);
+		}
+
+		private String getAttribute(byte[] name, int maxChars) {
+			int valueStart = findValue(name, start, end);
+			if (valueStart == -1) {
+				return null;
+			}
+			int valueEnd = indexOf((byte) '"', valueStart, end);
+			if (valueEnd == -1) {
+				valueEnd = end;
+			}
+			decoded.setLength(0);
+			decode(valueStart, valueEnd, maxChars);
+			return decoded.toString();
+		}
+
+		/**
+		 * Decodes UTF-8 and XML character references, applying the same attribute
+		 * value normalization as an XML parser (literal tabs and line breaks become
+		 * spaces).
+		 */
+		private void decode(int from, int to, int maxChars) {
+			int i = from;
+			while (i < to && decoded.length() < maxChars) {
+				int b = buf[i] & 0xFF;
+				if (b == '&') {
+					int semicolon = indexOf((byte) ';', i + 1, Math.min(to, i + 12));
+					if (semicolon != -1 && appendReference(i + 1, semicolon)) {
+						i = semicolon + 1;
+						continue;
+					}
+					decoded.append('&');
+					i++;
+				} else if (b < 0x80) {
+					decoded.append(b == '\t' || b == '\n' || b == '\r' ? ' ' : (char) b);
+					i++;
+				} else {
+					i = appendUtf8(i, to, b);
+				}
+			}
+		}
+
+		private boolean appendReference(int from, int to) {
+			int length = to - from;
+			if (length >= 2 && buf[from] == '#') {
+				int codePoint = 0;
+				boolean hex = buf[from + 1] == 'x';
+				for (int i = from + (hex ? 2 : 1); i < to; i++) {
+					int digit = Character.digit(buf[i], hex ? 16 : 10);
+					if (digit == -1 || codePoint > 0x10FFFF) {
+						return false;
+					}
+					codePoint = codePoint * (hex ? 16 : 10) + digit;
+				}
+				if (!Character.isValidCodePoint(codePoint)) {
+					return false;
+				}
+				decoded.appendCodePoint(codePoint);
+				return true;
+			}
+			if (length == 2 && buf[from] == 'l' && buf[from + 1] == 't') {
+				decoded.append('<');
+			} else if (length == 2 && buf[from] == 'g' && buf[from + 1] == 't') {
+				decoded.append('>');
+			} else if (length == 3 && buf[from] == 'a' && buf[from + 1] == 'm' && buf[from + 2] == 'p') {
+				decoded.append('&');
+			} else if (length == 4 && buf[from] == 'q' && buf[from + 1] == 'u' && buf[from + 2] == 'o'
+					&& buf[from + 3] == 't') {
+				decoded.append('"');
+			} else if (length == 4 && buf[from] == 'a' && buf[from + 1] == 'p' && buf[from + 2] == 'o'
+					&& buf[from + 3] == 's') {
+				decoded.append('\'');
+			} else {
+				return false;
+			}
+			return true;
+		}
+
+		private int appendUtf8(int i, int to, int b) {
+			int extra;
+			int codePoint;
+			if (b >= 0xF0 && b < 0xF8) {
+				extra = 3;
+				codePoint = b & 0x07;
+			} else if (b >= 0xE0) {
+				extra = 2;
+				codePoint = b & 0x0F;
+			} else if (b >= 0xC0) {
+				extra = 1;
+				codePoint = b & 0x1F;
+			} else {
+				// Stray continuation byte
+				decoded.append('\uFFFD');
+				return i + 1;
+			}
+			if (b >= 0xF8 || i + extra >= to) {
+				// Invalid lead byte, or truncated sequence
+				decoded.append('\uFFFD');
+				return i + 1;
+			}
+			for (int j = 1; j <= extra; j++) {
+				int next = buf[i + j] & 0xFF;
+				if ((next & 0xC0) != 0x80) {
+					decoded.append('\uFFFD');
+					return i + j;
+				}
+				codePoint = (codePoint << 6) | (next & 0x3F);
+			}
+			decoded.appendCodePoint(Character.isValidCodePoint(codePoint) ? codePoint : 0xFFFD);
+			return i + extra + 1;
+		}
+	}
+}
@@ -1,7 +1,7 @@
 package net.auberson.scherer.masterthesis.util;
 
 import java.io.File;
-import java.util.regex.Pattern;
+import java.nio.charset.Charset;
 
 import com.google.common.base.CharMatcher;
 
@@ -19,6 +19,43 @@ public class Project {
 		return new File(INTERMEDIATE_DATA_DIR, name + ".csv");
 	}
 	public static final File DATAFILE_COUNT = getDataFile("count");
+
+	// Index of a data file: The byte offset of each record, as a sequence of longs
+	public static final File getIndexFile(String name) {
+		return new File(INTERMEDIATE_DATA_DIR, name + ".idx");
+	}
+
+	// Pre-shuffled copy of a data file, written by the Shuffle step
+	public static final File getShuffledDataFile(String name) {
+		return new File(INTERMEDIATE_DATA_DIR, name + ".shuffled.csv");
+	}
+
+	// Cursor into a shuffled data file: The number of records already handed out
+	// by the Sampler, and the byte offset of the next record
+	public static final File getCursorFile(String name) {
+		return new File(INTERMEDIATE_DATA_DIR, name + ".cursor");
+	}
+
+	// Character set of the data files
+	public static final Charset DATA_CHARSET = Charset.defaultCharset();
+
+	// Extract: Stream Posts.xml from the 7zip archive into the parser instead of
+	// going through a temporary file (disable with -Dextract.streaming=false)
+	public static final boolean EXTRACT_STREAMING = Boolean
+			.parseBoolean(System.getProperty("extract.streaming", "true"));
+	public static final int EXTRACT_STREAMING_BUFFER_SIZE = 16 * 1024 * 1024;
+
+	// Extract: Read Posts.xml with the byte-level PostsXmlScanner instead of SAX
+	// (enable with -Dextract.fastScan=true)
+	public static final boolean EXTRACT_FAST_SCAN = Boolean.getBoolean("extract.fastScan");
+
+	// Extract: Re-extract all archives, even those recorded as extracted in the
+	// manifest (enable with -Dextract.full=true)
+	public static final boolean EXTRACT_FULL = Boolean.getBoolean("extract.full");
+
+	// Extract: Number of archives processed in parallel (-Dextract.threads=N)
+	public static final int EXTRACT_THREADS = Integer.getInteger("extract.threads",
+			Runtime.getRuntime().availableProcessors());
 	
 	// NLP Classifier input format: Defines the characters allowed for NLC input
 	public static final CharMatcher NLC_FORMAT = CharMatcher.javaLetterOrDigit().or(CharMatcher.anyOf("!?:;.'/()& "))
@@ -31,11 +68,148 @@ public class Project {
 	// doesn't support.
 	public static final String[] ignoredBoards = new String[] { "meta.", "arabic" };
 
-	// A Regexp pattern that matches HTML tags. Taken from
-	// https://stackoverflow.com/questions/3607965/how-to-convert-html-text-to-plain-text
-	public static final Pattern HTML_TAGS_REGEXP = Pattern.compile("(?s)<[^>]*>(\\s*<[^>]*>)*");
-	
+	// Sampler: Seed for the random number generator, for reproducible samples
+	// (-Dsampler.seed=N). Random if not specified.
+	public static final Long SAMPLER_SEED = Long.getLong("sampler.seed");
+
+	// Sampler: Hand out the next records of the shuffled data files, instead of
+	// picking random records (enable with -Dsampler.shuffled=true). Requires the
+	// Shuffle step to be run first.
+	public static final boolean SAMPLER_SHUFFLED = Boolean.getBoolean("sampler.shuffled");
+
+	// Learning curve: Number of sample sizes trained and evaluated at the same
+	// time (-Dcurve.parallelism=N)
+	public static final int LEARNING_CURVE_PARALLELISM = Math.max(1, Integer.getInteger("curve.parallelism", 4));
+
+	// Learning curve: Use nested training sets, i.e. the first samples of a
+	// single random sample of each class, and the same test set for every sample
+	// size (enable with -Dcurve.nested=true)
+	public static final boolean LEARNING_CURVE_NESTED = Boolean.getBoolean("curve.nested");
+
+	// Shuffle: Number of bytes of a data file shuffled in memory at once
+	// (-Dshuffle.chunkSize=N). Larger files are shuffled in chunks, then merged.
+	public static final long SHUFFLE_CHUNK_SIZE = Long.getLong("shuffle.chunkSize", 256L * 1024 * 1024);
+
+	// Backend training and running the classifiers: watson, local, or the name of
+	// a class implementing ClassifierBackend (-Dnlc.backend=...)
+	public static final String NLC_BACKEND = System.getProperty("nlc.backend", "watson");
+
+	// Local backend: Number of hashed features of the naive Bayes classifiers, as
+	// a power of 2 (-Dlocal.featureBits=N)
+	public static final int LOCAL_FEATURE_BITS = Math.max(8,
+			Math.min(24, Integer.getInteger("local.featureBits", 18)));
+
 	// IBM Cloud NLC 
 	public static final int MAX_SAMPLES_PER_TRAINING = 20000;
 	public static final int MAX_SAMPLES_PER_CLASSIFICATION_REQUEST = 30;
+
+	// Endpoint of the NLC service, e.g. a MockNLCServer
+	// (-Dnlc.endpoint=http://localhost:8089/natural-language-classifier/api).
+	// The IBM Cloud if not specified.
+	public static final String NLC_ENDPOINT = System.getProperty("nlc.endpoint");
+
+	// Classification requests are packed by payload size: Initial and maximal
+	// size in bytes (-Dnlc.batchBytes=N, -Dnlc.maxBatchBytes=N). The size adapts
+	// to keep requests under -Dnlc.targetLatency ms (see BatchSizer).
+	public static final int NLC_BATCH_BYTES = Integer.getInteger("nlc.batchBytes", 8 * 1024);
+	public static final int NLC_MAX_BATCH_BYTES = Math.max(NLC_BATCH_BYTES,
+			Integer.getInteger("nlc.maxBatchBytes", 32 * 1024));
+	public static final long NLC_TARGET_LATENCY = Long.getLong("nlc.targetLatency", 2000L);
+
+	// Number of classification requests sent to the NLC at the same time
+	// (-Dnlc.concurrency=N)
+	public static final int NLC_CONCURRENCY = Math.max(1, Integer.getInteger("nlc.concurrency", 4));
+
+	// Connections to the NLC shared by all threads: At most -Dnlc.connections are
+	// kept open between calls, for -Dnlc.keepAlive ms. -Dnlc.concurrency
+	// connections are opened when the client is created (disable with
+	// -Dnlc.prewarm=false).
+	public static final int NLC_CONNECTIONS = Math.max(1, Integer.getInteger("nlc.connections", NLC_CONCURRENCY + 2));
+	public static final long NLC_KEEP_ALIVE = Long.getLong("nlc.keepAlive", 5 * 60 * 1000L);
+	public static final boolean NLC_PREWARM = Boolean.parseBoolean(System.getProperty("nlc.prewarm", "true"));
+
+	// Quota of the NLC accounts, shared by all threads and all processes of the
+	// machine through lock files in -Dnlc.quotaDir: At most
+	// -Dnlc.requestsPerSecond calls per second to each account, in bursts of up
+	// to -Dnlc.burst calls, and at most -Dnlc.trainingSlots classifiers in
+	// training at a time (0 for no limit, the default)
+	public static final double NLC_REQUESTS_PER_SECOND = Double
+			.parseDouble(System.getProperty("nlc.requestsPerSecond", "0"));
+	public static final int NLC_BURST = Math.max(1, Integer.getInteger("nlc.burst", NLC_CONCURRENCY));
+	public static final int NLC_TRAINING_SLOTS = Integer.getInteger("nlc.trainingSlots", 0);
+	public static final File NLC_QUOTA_DIR = new File(
+			System.getProperty("nlc.quotaDir", new File(System.getProperty("java.io.tmpdir"), "nlc-quota").getPath()));
+
+	// Number of attempts per NLC call (-Dnlc.retries=N), and the backoff between
+	// them in ms: Doubles from -Dnlc.backoff up to -Dnlc.maxBackoff, with jitter
+	public static final int NLC_RETRIES = Math.max(1, Integer.getInteger("nlc.retries", 5));
+	public static final long NLC_BACKOFF = Math.max(1, Long.getLong("nlc.backoff", 1000L));
+	public static final long NLC_MAX_BACKOFF = Math.max(NLC_BACKOFF, Long.getLong("nlc.maxBackoff", 60000L));
+
+	// Circuit breaker: Pause all NLC calls for -Dnlc.breakerCooldown ms after
+	// -Dnlc.breakerThreshold consecutive failures
+	public static final int NLC_BREAKER_THRESHOLD = Math.max(1, Integer.getInteger("nlc.breakerThreshold", 5));
+	public static final long NLC_BREAKER_COOLDOWN = Long.getLong("nlc.breakerCooldown", 30000L);
+
+	// Statistics of the NLC calls of each run, by operation (see CallStats)
+	public static final File NLC_CALL_REPORTS_DIR = new File("./reports/nlc-calls");
+
+	// Progress of a classify run, recorded next to its output file every
+	// -Dnlc.checkpointInterval ms, so that an interrupted run can be resumed
+	// (see ClassifyJournal)
+	public static final long NLC_CHECKPOINT_INTERVAL = Long.getLong("nlc.checkpointInterval", 2000L);
+
+	// Samples of the batches that couldn't be classified, even after retries:
+	// "text", class, classifier id
+	public static final File NLC_DEAD_LETTER_FILE = new File(PROCESSED_DATA_DIR, "dead-letter.csv");
+
+	// Cache of the classification results, persisted across runs: Size in MB
+	// (-Dnlc.cacheSize=N, 0 to disable)
+	public static final long NLC_CACHE_SIZE = Long.getLong("nlc.cacheSize", 64L) * 1024 * 1024;
+	public static final File NLC_CACHE_FILE = new File(PROCESSED_DATA_DIR, "result-cache.bin");
+
+	// Classifiers being trained are polled every -Dnlc.pollInterval ms at first,
+	// then less and less often, up to every -Dnlc.maxPollInterval ms
+	public static final long NLC_POLL_INTERVAL = Math.max(1, Long.getLong("nlc.pollInterval", 2000L));
+	public static final long NLC_MAX_POLL_INTERVAL = Math.max(NLC_POLL_INTERVAL,
+			Long.getLong("nlc.maxPollInterval", 15000L));
+
+	// Classifiers trained so far, reused for identical training sets. A released
+	// classifier is deleted after -Dnlc.classifierTtl hours without use (0 to
+	// delete it right away). Each backend has its own registry.
+	public static final File getClassifierRegistry(String backend) {
+		return new File(PROCESSED_DATA_DIR,
+				backend.equals("watson") ? "classifier-registry.csv" : "classifier-registry-" + backend + ".csv");
+	}
+	public static final long NLC_CLASSIFIER_TTL = (long) (Double
+			.parseDouble(System.getProperty("nlc.classifierTtl", "24")) * 3600 * 1000);
+
+	// Mock NLC server (see MockNLCServer): Port (-Dmock.port=N), and seed of the
+	// random faults and latencies (-Dmock.seed=N, random if not specified)
+	public static final int MOCK_PORT = Integer.getInteger("mock.port", 8089);
+	public static final Long MOCK_SEED = Long.getLong("mock.seed");
+
+	// Mock NLC server: Latency of each request in ms, drawn from a distribution
+	// (-Dmock.latencyDistribution=fixed|uniform|exponential|lognormal) with the
+	// given median (-Dmock.latency=N) and spread (-Dmock.latencySigma=X, for
+	// lognormal), plus -Dmock.latencyPerSample ms per sample classified
+	public static final String MOCK_LATENCY_DISTRIBUTION = System.getProperty("mock.latencyDistribution",
+			"lognormal");
+	public static final long MOCK_LATENCY = Long.getLong("mock.latency", 200L);
+	public static final double MOCK_LATENCY_SIGMA = Double
+			.parseDouble(System.getProperty("mock.latencySigma", "0.5"));
+	public static final long MOCK_LATENCY_PER_SAMPLE = Long.getLong("mock.latencyPerSample", 5L);
+
+	// Mock NLC server: Share of the requests throttled with a 429 and a
+	// Retry-After of -Dmock.retryAfter seconds (-Dmock.throttleRate=X), failed
+	// with a 500 (-Dmock.errorRate=X), or whose connection is dropped in the
+	// middle of the response (-Dmock.dropRate=X)
+	public static final double MOCK_THROTTLE_RATE = Double.parseDouble(System.getProperty("mock.throttleRate", "0"));
+	public static final int MOCK_RETRY_AFTER = Integer.getInteger("mock.retryAfter", 1);
+	public static final double MOCK_ERROR_RATE = Double.parseDouble(System.getProperty("mock.errorRate", "0"));
+	public static final double MOCK_DROP_RATE = Double.parseDouble(System.getProperty("mock.dropRate", "0"));
+
+	// Mock NLC server: Time in ms a new classifier stays in training
+	// (-Dmock.trainingTime=N)
+	public static final long MOCK_TRAINING_TIME = Long.getLong("mock.trainingTime", 60000L);
 }
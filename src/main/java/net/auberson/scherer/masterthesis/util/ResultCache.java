@@ -0,0 +1,300 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CountingInputStream;
+
+import net.auberson.scherer.masterthesis.model.Classification;
+
+/**
+ * Keeps the classes detected by the NLC for the texts already classified, so
+ * that a text is sent to the service only once per classifier. <br>
+ * Entries are keyed by the classifier (its id, or the hash of its training
+ * set) and by a 64-bit fingerprint of the text. The least recently used
+ * entries are evicted once the cache holds more than
+ * <code>-Dnlc.cacheSize</code> MB. <br>
+ * The cache is persisted as a log under <code>./data/processed</code>: New
+ * entries are appended to it when flushed, and it is rewritten without the
+ * evicted entries once it has grown to twice the size of the cache. Several
+ * processes can share the log: It is only read and written while holding the
+ * lock on <code>result-cache.bin.lock</code>, and rewritten with the entries
+ * appended by the others.
+ */
+class ResultCache {
+
+	private static final HashFunction FINGERPRINT = Hashing.farmHashFingerprint64();
+	// Estimated memory used by an entry, besides the class names
+	private static final int ENTRY_OVERHEAD = 96;
+	private static final int CLASS_OVERHEAD = 56;
+
+	private final File file;
+	private final File lockFile;
+	private final long maxSize;
+	private final LinkedHashMap<Key, Classification> entries = new LinkedHashMap<Key, Classification>(1024, 0.75f,
+			true);
+	private long size = 0;
+	private long logSize = 0;
+	// The entries not appended to the log yet
+	private final ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream(64 * 1024);
+	private final DataOutputStream pending = new DataOutputStream(pendingBytes);
+
+	/**
+	 * Opens the cache, loading the entries persisted so far
+	 *
+	 * @param file
+	 *            the log file
+	 * @param maxSize
+	 *            the size of the cache in bytes
+	 */
+	ResultCache(File file, long maxSize) {
+		this.file = file;
+		this.lockFile = new File(file.getPath() + ".lock");
+		this.maxSize = maxSize;
+		RandomAccessFile lock = IOUtil.lock(lockFile);
+		try {
+			load();
+		} catch (IOException e) {
+			System.err.println("A disk error occured trying to read the result cache at " + file.getAbsolutePath());
+			e.printStackTrace();
+			System.exit(-1);
+		} finally {
+			IOUtil.close(lock);
+		}
+	}
+
+	/**
+	 * @param classifierKey
+	 *            identifies the classifier
+	 * @param text
+	 *            the text classified
+	 * @return the cached classification of the text, or null if there is none
+	 */
+	synchronized Classification get(String classifierKey, String text) {
+		Classification classification = entries.get(new Key(classifierKey, fingerprint(text)));
+		if (classification == null) {
+			return null;
+		}
+		// The cache holds no text, only its fingerprint
+		return new Classification(text, classification.getClassNames(), classification.getConfidences());
+	}
+
+	/**
+	 * Adds the classification of a text to the cache
+	 *
+	 * @param classifierKey
+	 *            identifies the classifier
+	 */
+	synchronized void put(String classifierKey, Classification classification) {
+		Key key = new Key(classifierKey, fingerprint(classification.getText()));
+		Classification entry = new Classification(null, classification.getClassNames(),
+				classification.getConfidences());
+		add(key, entry);
+		try {
+			write(pending, key, entry);
+		} catch (IOException e) {
+			// Written to memory
+			throw new IllegalStateException(e);
+		}
+		logSize += getSize(key, entry);
+	}
+
+	/**
+	 * Appends the new entries to the log. The log is rewritten if it contains too
+	 * many evicted entries.
+	 */
+	synchronized void flush() {
+		if (pendingBytes.size() == 0) {
+			return;
+		}
+		RandomAccessFile lock = IOUtil.lock(lockFile);
+		try {
+			OutputStream out = new FileOutputStream(file, true);
+			try {
+				pendingBytes.writeTo(out);
+			} finally {
+				out.close();
+			}
+			pendingBytes.reset();
+			if (logSize > 2 * Math.max(size, maxSize / 4)) {
+				compact();
+			}
+		} catch (IOException e) {
+			System.err.println("A disk error occured trying to write the result cache at " + file.getAbsolutePath());
+			e.printStackTrace();
+			System.exit(-1);
+		} finally {
+			IOUtil.close(lock);
+		}
+	}
+
+	private static long fingerprint(String text) {
+		return FINGERPRINT.hashString(text, StandardCharsets.UTF_8).asLong();
+	}
+
+	private void add(Key key, Classification entry) {
+		Classification previous = entries.put(key, entry);
+		if (previous != null) {
+			size -= getSize(key, previous);
+		}
+		size += getSize(key, entry);
+
+		// Evict the least recently used entries
+		Iterator<Entry<Key, Classification>> eldest = entries.entrySet().iterator();
+		while (size > maxSize && eldest.hasNext()) {
+			Entry<Key, Classification> evicted = eldest.next();
+			size -= getSize(evicted.getKey(), evicted.getValue());
+			eldest.remove();
+		}
+	}
+
+	private static long getSize(Key key, Classification entry) {
+		long entrySize = ENTRY_OVERHEAD + 2 * key.classifierKey.length();
+		for (int i = 0; i < entry.getClassCount(); i++) {
+			entrySize += CLASS_OVERHEAD + 2 * entry.getClassName(i).length();
+		}
+		return entrySize;
+	}
+
+	/**
+	 * Loads the log, while holding the lock
+	 */
+	private void load() throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		long complete = read();
+		if (complete < file.length()) {
+			// Drop the entry only partly written, so that new entries can be appended
+			System.err.println("Dropping the last " + (file.length() - complete)
+					+ " bytes of the result cache, an entry only partly written");
+			RandomAccessFile log = new RandomAccessFile(file, "rw");
+			try {
+				log.setLength(complete);
+			} finally {
+				log.close();
+			}
+		}
+		System.out.println(entries.size() + " cached classifications loaded from " + file.getPath());
+	}
+
+	/**
+	 * Reads the entries of the log that aren't in the cache, while holding the
+	 * lock
+	 *
+	 * @return the length of the entries completely written
+	 */
+	private long read() throws IOException {
+		if (!file.exists()) {
+			return 0;
+		}
+		CountingInputStream counter = new CountingInputStream(
+				new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		DataInputStream in = new DataInputStream(counter);
+		long complete = 0;
+		try {
+			while (true) {
+				Key key;
+				Classification entry;
+				try {
+					key = new Key(in.readUTF().intern(), in.readLong());
+					String[] classNames = new String[in.readUnsignedShort()];
+					double[] confidences = new double[classNames.length];
+					for (int i = 0; i < classNames.length; i++) {
+						classNames[i] = in.readUTF().intern();
+						confidences[i] = in.readDouble();
+					}
+					entry = new Classification(null, classNames, confidences);
+				} catch (EOFException e) {
+					// End of the log, or an entry only partly written
+					break;
+				} catch (UTFDataFormatException e) {
+					// An entry only partly written, followed by others
+					break;
+				}
+				if (!entries.containsKey(key)) {
+					add(key, entry);
+				}
+				logSize += getSize(key, entry);
+				complete = counter.getCount();
+			}
+		} finally {
+			in.close();
+		}
+		return complete;
+	}
+
+	/**
+	 * Rewrites the log with the entries currently in the cache, least recently
+	 * used first, and those added by other processes, while holding the lock
+	 */
+	private void compact() throws IOException {
+		read();
+		File partFile = new File(file.getPath() + ".part");
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(partFile), 64 * 1024));
+		for (Entry<Key, Classification> entry : entries.entrySet()) {
+			write(out, entry.getKey(), entry.getValue());
+		}
+		out.close();
+		Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		logSize = size;
+	}
+
+	private static void write(DataOutputStream out, Key key, Classification entry) throws IOException {
+		out.writeUTF(key.classifierKey);
+		out.writeLong(key.fingerprint);
+		out.writeShort(entry.getClassCount());
+		for (int i = 0; i < entry.getClassCount(); i++) {
+			out.writeUTF(entry.getClassName(i));
+			out.writeDouble(entry.getConfidence(i));
+		}
+	}
+
+	/**
+	 * A classifier and the fingerprint of a text
+	 */
+	private static class Key {
+		final String classifierKey;
+		final long fingerprint;
+
+		Key(String classifierKey, long fingerprint) {
+			this.classifierKey = classifierKey;
+			this.fingerprint = fingerprint;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * classifierKey.hashCode() + (int) (fingerprint ^ (fingerprint >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return fingerprint == other.fingerprint && classifierKey.equals(other.classifierKey);
+		}
+	}
+}
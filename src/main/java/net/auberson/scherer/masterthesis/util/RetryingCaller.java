@@ -0,0 +1,253 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.ibm.watson.developer_cloud.service.exception.ServiceResponseException;
+
+/**
+ * Calls the NLC service, retrying calls that fail. Shared by all
+ * BatchClassifiers, in all threads:
+ * <ul>
+ * <li>A failed call is retried after an exponential backoff with full jitter:
+ * A random delay between 0 and <code>-Dnlc.backoff</code> ms, doubling with
+ * each attempt up to <code>-Dnlc.maxBackoff</code> ms. If the service sent a
+ * Retry-After header (e.g. when throttling), the call waits at least that
+ * long.</li>
+ * <li>Each service instance has a circuit breaker. It opens after
+ * <code>-Dnlc.breakerThreshold</code> consecutive failures, or when the
+ * instance asks to retry later, and pauses all calls to the instance for
+ * <code>-Dnlc.breakerCooldown</code> ms (or as long as asked). The first call
+ * afterwards probes the instance, and the others wait until it succeeds.</li>
+ * </ul>
+ * Client errors (4xx, except 408 and 429) aren't retried, as they would fail
+ * again.
+ */
+class RetryingCaller {
+
+	/**
+	 * A call to the service
+	 */
+	interface Call<T> {
+		T execute();
+	}
+
+	// Number of attempts made by the last call of each thread
+	private static final ThreadLocal<Integer> LAST_ATTEMPTS = new ThreadLocal<Integer>() {
+		@Override
+		protected Integer initialValue() {
+			return 0;
+		}
+	};
+
+	private RetryingCaller() {
+	}
+
+	/**
+	 * Executes a call, retrying it up to <code>-Dnlc.retries</code> times in
+	 * total
+	 *
+	 * @param description
+	 *            describes the call in error messages
+	 * @param breaker
+	 *            the circuit breaker of the service instance called
+	 * @param call
+	 *            the call
+	 * @return the result of the call
+	 * @throws RuntimeException
+	 *             the last failure, if the call didn't succeed
+	 */
+	static <T> T call(String description, CircuitBreaker breaker, Call<T> call) {
+		int attempt = 0;
+		while (true) {
+			breaker.await();
+			try {
+				T result = call.execute();
+				breaker.onResponse();
+				LAST_ATTEMPTS.set(attempt + 1);
+				return result;
+			} catch (RuntimeException e) {
+				attempt++;
+				LAST_ATTEMPTS.set(attempt);
+				if (!isRetryable(e)) {
+					// The service is up, but refused the call
+					breaker.onResponse();
+					System.err.println(description + " failed: " + e.toString());
+					throw e;
+				}
+				long retryAfter = getRetryAfter(e);
+				breaker.onFailure(retryAfter);
+				System.err.println(
+						description + " failed (attempt " + attempt + " of " + Project.NLC_RETRIES + "): " + e.toString());
+				if (attempt >= Project.NLC_RETRIES) {
+					throw e;
+				}
+				try {
+					Thread.sleep(Math.max(retryAfter, getBackoff(attempt)));
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of attempts made by the last call of the current
+	 *         thread, or 0 if it made none
+	 */
+	static int getLastAttempts() {
+		return LAST_ATTEMPTS.get();
+	}
+
+	/**
+	 * @return a random delay between 0 and the exponential backoff for the given
+	 *         attempt ("full jitter")
+	 */
+	private static long getBackoff(int attempt) {
+		long backoff = Project.NLC_MAX_BACKOFF;
+		if (attempt <= 30) {
+			backoff = Math.min(backoff, Project.NLC_BACKOFF << (attempt - 1));
+		}
+		return ThreadLocalRandom.current().nextLong(backoff + 1);
+	}
+
+	private static boolean isRetryable(RuntimeException e) {
+		if (e instanceof ServiceResponseException) {
+			int status = ((ServiceResponseException) e).getStatusCode();
+			return status < 400 || status >= 500 || status == 408 || status == 429;
+		}
+		// Connection errors, timeouts...
+		return true;
+	}
+
+	/**
+	 * @return the delay in ms requested by the Retry-After header of the failed
+	 *         response (in seconds, or as an HTTP date), or 0 if there is none
+	 */
+	private static long getRetryAfter(RuntimeException e) {
+		if (!(e instanceof ServiceResponseException) || ((ServiceResponseException) e).getResponse() == null) {
+			return 0;
+		}
+		String retryAfter = ((ServiceResponseException) e).getResponse().header("Retry-After");
+		if (retryAfter == null) {
+			return 0;
+		}
+		retryAfter = retryAfter.trim();
+		try {
+			return Math.max(0, Long.parseLong(retryAfter) * 1000);
+		} catch (NumberFormatException nfe) {
+			// Not a number of seconds, try a date
+		}
+		try {
+			long date = ZonedDateTime.parse(retryAfter, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant()
+					.toEpochMilli();
+			return Math.max(0, date - System.currentTimeMillis());
+		} catch (DateTimeParseException dtpe) {
+			return 0;
+		}
+	}
+
+	/**
+	 * The circuit breaker of a service instance
+	 */
+	static class CircuitBreaker {
+		private final String name;
+		private final Object lock = new Object();
+		private int consecutiveFailures = 0;
+		private boolean open = false;
+		private long openUntil = 0;
+		private boolean probing = false;
+
+		/**
+		 * @param name
+		 *            names the service instance in messages
+		 */
+		CircuitBreaker(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return true if calls to the instance are paused, or wait for a probe.
+		 *         Once the cooldown is over, the next call may probe the instance.
+		 */
+		boolean isOpen() {
+			synchronized (lock) {
+				return probing || System.currentTimeMillis() < openUntil;
+			}
+		}
+
+		/**
+		 * Waits while the circuit breaker is open, or while another call probes the
+		 * instance
+		 */
+		void await() {
+			synchronized (lock) {
+				try {
+					while (true) {
+						long now = System.currentTimeMillis();
+						if (now < openUntil) {
+							lock.wait(openUntil - now);
+						} else if (probing) {
+							lock.wait();
+						} else {
+							if (open) {
+								// This call probes the instance
+								open = false;
+								probing = true;
+							}
+							return;
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while the circuit breaker of " + name + " was open",
+							e);
+				}
+			}
+		}
+
+		/**
+		 * Records that the instance responded
+		 */
+		void onResponse() {
+			synchronized (lock) {
+				consecutiveFailures = 0;
+				if (probing) {
+					probing = false;
+					System.err.println("Circuit breaker of " + name + " closed, resuming all calls");
+					lock.notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Records a failed call, and opens the circuit breaker if needed
+		 *
+		 * @param retryAfter
+		 *            the delay requested by the instance, or 0
+		 */
+		void onFailure(long retryAfter) {
+			synchronized (lock) {
+				consecutiveFailures++;
+				long pause = retryAfter;
+				if (probing || consecutiveFailures >= Project.NLC_BREAKER_THRESHOLD) {
+					pause = Math.max(pause, Project.NLC_BREAKER_COOLDOWN);
+				}
+				if (pause > 0) {
+					long until = System.currentTimeMillis() + pause;
+					if (until > openUntil) {
+						openUntil = until;
+						System.err.println("Circuit breaker of " + name + " open after " + consecutiveFailures
+								+ " consecutive failure(s), pausing all calls for " + (pause / 1000) + "s");
+					}
+					open = true;
+					probing = false;
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package net.auberson.scherer.masterthesis.util;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -9,11 +11,16 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Random;
 
@@ -22,11 +29,22 @@ import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 
 /**
- * This utility helps in creating test sets and training sets
+ * This utility helps in creating test sets and training sets. <br>
+ * By default, random samples are picked from the data files. With
+ * <code>-Dsampler.shuffled=true</code>, the next unused samples of the
+ * shuffled data files are handed out instead (see <code>Shuffle</code>).
  *
  */
 public class Sampler {
-	private static Random rng = new Random();
+	private static Random rng = Project.SAMPLER_SEED == null ? new Random() : new Random(Project.SAMPLER_SEED);
+
+	/**
+	 * Re-seeds the random number generator, so that the samples drawn from now on
+	 * are reproducible
+	 */
+	public static void setSeed(long seed) {
+		rng = new Random(seed);
+	}
 
 	/**
 	 * Creates a file with data sampled from the intermediary data sets
@@ -88,38 +106,20 @@ public class Sampler {
 			}
 
 			for (String className : classNames) {
-				int classSampleCount = classSampleCounts.get(className);
-				if (classSampleCount < totalSampleCount) {
-					throw new IllegalArgumentException("Only " + classSampleCount + " exist for class '" + className
-							+ "', not enough to pick " + totalSampleCount + " samples.");
-				}
-				List<Integer> sampledLines = sampleRandomNumbersWithoutRepetition(0, classSampleCount - 1,
-						totalSampleCount);
+				String[] samples = pickSamples(className, classSampleCounts.get(className), totalSampleCount);
 
-				// Open input file
-				FileInputStream in = new FileInputStream(Project.getDataFile(className));
-				BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-
-				int lineNumber = 0;
+				int sampleIndex = 0;
 				for (int sampleNr = 0; sampleNr < maxSampleSize; sampleNr++) {
 					for (int i = 0; i < out.length; i++) {
 						// Check whether this writer needs one more sample
 						if (sampleSizes[i] > sampleNr) {
-							// If yes, skip to next sample
-							while (sampledLines.get(0).intValue() > lineNumber++) {
-								reader.readLine();
-							}
-							sampledLines.remove(0);
-							// And add the content of this sample to the writer
-							String readLine = reader.readLine();
+							// If yes, add the content of the next sample to the writer
+							String readLine = samples[sampleIndex++];
 							assert (!readLine.isEmpty());
 							out[i].println(readLine);
 						}
 					}
 				}
-				// Close the input file
-				reader.close();
-				in.close();
 			}
 
 			// Close the output files
@@ -133,10 +133,115 @@ public class Sampler {
 		}
 	}
 
+	/**
+	 * Picks samples from the data file of each class, in random order, so that
+	 * every prefix of them is a random sample as well. Nested data sets (e.g. the
+	 * training sets of a learning curve) can then be written with
+	 * <code>writeSamples</code>, without reading the data files again.
+	 * 
+	 * @param sampleSize
+	 *            the number of samples to pick for each class
+	 * @param classNames
+	 *            the names of the classes from which to get samples
+	 * @param classSampleCounts
+	 *            a map containing the number of samples available for each class
+	 * @return the samples picked, by class
+	 */
+	public static Map<String, String[]> sampleShuffled(int sampleSize, Collection<String> classNames,
+			Map<String, Integer> classSampleCounts) {
+		Map<String, String[]> samples = new LinkedHashMap<String, String[]>();
+		try {
+			for (String className : classNames) {
+				String[] lines = pickSamples(className, classSampleCounts.get(className), sampleSize);
+				if (!Project.SAMPLER_SHUFFLED) {
+					// Random lines are picked in the order of the data file
+					Collections.shuffle(Arrays.asList(lines), rng);
+				}
+				samples.put(className, lines);
+			}
+		} catch (IOException e) {
+			System.err.println("A disk error occured trying to read the data set files.");
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		return samples;
+	}
+
+	/**
+	 * Creates a data set file from samples picked by <code>sampleShuffled</code>
+	 * 
+	 * @param samples
+	 *            the samples, by class
+	 * @param from
+	 *            the index of the first sample of each class to write
+	 * @param to
+	 *            the index after the last sample of each class to write
+	 * @param target
+	 *            the file in which to write the samples
+	 */
+	public static void writeSamples(Map<String, String[]> samples, int from, int to, File target) {
+		try {
+			// Append to the samples file
+			PrintWriter out = new PrintWriter(new FileWriter(target, true));
+			for (String[] lines : samples.values()) {
+				for (int i = from; i < to; i++) {
+					out.println(lines[i]);
+				}
+			}
+			out.close();
+		} catch (IOException e) {
+			System.err.println("A disk error occured trying to generate the data set file.");
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * Picks samples from the data file of a class: The next samples of the
+	 * shuffled data file with <code>-Dsampler.shuffled=true</code>, otherwise
+	 * random lines.
+	 */
+	private static String[] pickSamples(String className, int classSampleCount, int count) throws IOException {
+		if (Project.SAMPLER_SHUFFLED) {
+			return new ShuffledCorpus(className).next(count);
+		}
+		return sampleRandomLines(className, classSampleCount, count);
+	}
+
+	/**
+	 * Picks random lines from the data file of a class
+	 * 
+	 * @param className
+	 *            the name of the class
+	 * @param classSampleCount
+	 *            the number of samples available for the class
+	 * @param count
+	 *            the number of lines to pick
+	 * @return the lines picked, in the order they appear in the data file
+	 */
+	static String[] sampleRandomLines(String className, int classSampleCount, int count)
+			throws IOException {
+		if (classSampleCount < count) {
+			throw new IllegalArgumentException("Only " + classSampleCount + " exist for class '" + className
+					+ "', not enough to pick " + count + " samples.");
+		}
+		int[] sampledLines = SequentialSampling.sample(count, classSampleCount, rng);
+
+		String[] lines = new String[count];
+		LineReader reader = openDataFile(className, classSampleCount);
+		for (int i = 0; i < count; i++) {
+			lines[i] = reader.readLine(sampledLines[i]);
+		}
+		reader.close();
+		return lines;
+	}
+
 	/**
 	 * Find out what the sample count of the class with the smallest sample count
 	 * is. We will use the same sample count for all classes, so this is the maximal
-	 * number of samples we can use per class.
+	 * number of samples we can use per class. <br>
+	 * When sampling from the shuffled data files, only the samples that haven't
+	 * been handed out yet are counted.
 	 * 
 	 * @param classes
 	 * @return
@@ -152,6 +257,9 @@ public class Sampler {
 					if (entry.get(0).trim().equals(nameOfClass.trim())) {
 						missingClasses.remove(nameOfClass);
 						int size = Integer.valueOf(entry.get(1).trim());
+						if (Project.SAMPLER_SHUFFLED) {
+							size -= (int) new ShuffledCorpus(nameOfClass).getPosition();
+						}
 						sampleCount.put(nameOfClass, size);
 						System.out.println(size + " samples in dataset for class '" + nameOfClass + "'");
 					}
@@ -178,20 +286,91 @@ public class Sampler {
 	}
 
 	/**
-	 * Returns Non-repeating random numbers in the range provided (taken from
-	 * https://stackoverflow.com/questions/16000196/java-generating-non-repeating-random-numbers)
+	 * Opens a data file for reading sampled lines. If an up-to-date index exists
+	 * for the data file, lines are read directly at their offset.
+	 */
+	private static LineReader openDataFile(String className, int classSampleCount) throws IOException {
+		File dataFile = Project.getDataFile(className);
+		File indexFile = Project.getIndexFile(className);
+		if (indexFile.exists() && indexFile.length() == 8L * classSampleCount) {
+			return new IndexedLineReader(dataFile, indexFile);
+		}
+		return new SequentialLineReader(dataFile);
+	}
+
+	/**
+	 * Reads lines from a data file, in ascending order of line numbers
+	 */
+	private interface LineReader extends Closeable {
+		String readLine(int lineNumber) throws IOException;
+	}
+
+	/**
+	 * Reads a data file from the start, skipping the lines not needed
 	 */
-	private static List<Integer> sampleRandomNumbersWithoutRepetition(int start, int end, int count) {
-		List<Integer> result = new ArrayList<Integer>(count);
-		int remaining = end - start;
-		for (int i = start; i < end && count > 0; i++) {
-			double probability = rng.nextDouble();
-			if (probability < ((double) count) / (double) remaining) {
-				count--;
-				result.add(Integer.valueOf(i));
+	private static class SequentialLineReader implements LineReader {
+		private final BufferedReader reader;
+		private int lineNumber = 0;
+
+		SequentialLineReader(File dataFile) throws IOException {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(dataFile), Project.DATA_CHARSET));
+		}
+
+		public String readLine(int sampledLine) throws IOException {
+			while (sampledLine > lineNumber++) {
+				reader.readLine();
+			}
+			return reader.readLine();
+		}
+
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads only the lines needed from a data file, using the offsets found in its
+	 * index.
+	 */
+	private static class IndexedLineReader implements LineReader {
+		private final FileChannel data;
+		private final FileChannel index;
+		private final LongBuffer offsets;
+		private ByteBuffer line = ByteBuffer.allocate(8192);
+
+		IndexedLineReader(File dataFile, File indexFile) throws IOException {
+			data = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+			index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+			offsets = index.map(FileChannel.MapMode.READ_ONLY, 0, index.size()).asLongBuffer();
+		}
+
+		public String readLine(int lineNumber) throws IOException {
+			long start = offsets.get(lineNumber);
+			long end = lineNumber + 1 < offsets.limit() ? offsets.get(lineNumber + 1) : data.size();
+			int length = (int) (end - start);
+			if (line.capacity() < length) {
+				line = ByteBuffer.allocate(length);
+			}
+			line.clear();
+			line.limit(length);
+			while (line.hasRemaining()) {
+				if (data.read(line, start + line.position()) == -1) {
+					throw new EOFException("Data file is shorter than its index");
+				}
+			}
+			line.flip();
+
+			// Remove the line separator
+			while (length > 0 && (line.get(length - 1) == '\n' || line.get(length - 1) == '\r')) {
+				length--;
 			}
-			remaining--;
+			line.limit(length);
+			return Project.DATA_CHARSET.decode(line).toString();
+		}
+
+		public void close() throws IOException {
+			data.close();
+			index.close();
 		}
-		return result;
 	}
 }
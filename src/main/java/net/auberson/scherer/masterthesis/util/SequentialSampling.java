@@ -0,0 +1,152 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.util.Random;
+
+/**
+ * Sequential random sampling: Picks n records out of N without repetition, in
+ * ascending order, using Vitter's Algorithm D. <br>
+ * The cost depends on the number of samples drawn, not on the number of
+ * records. See J. S. Vitter, "An efficient algorithm for sequential random
+ * sampling", ACM Transactions on Mathematical Software 13(1), 1987.
+ */
+public class SequentialSampling {
+
+	// Algorithm D falls back to Algorithm A once n/N exceeds 1/ALPHA_INV
+	private static final int ALPHA_INV = 13;
+
+	private SequentialSampling() {
+		// Can't instantiate this!
+	}
+
+	/**
+	 * Picks <code>count</code> random record numbers in the range
+	 * <code>[0, population)</code>
+	 *
+	 * @return the record numbers, sorted in ascending order
+	 */
+	public static int[] sample(int count, int population, Random rng) {
+		int[] result = skipDistances(count, population, rng);
+		int recordNumber = -1;
+		for (int i = 0; i < result.length; i++) {
+			recordNumber += result[i] + 1;
+			result[i] = recordNumber;
+		}
+		return result;
+	}
+
+	/**
+	 * Picks <code>count</code> random records out of <code>population</code>, and
+	 * returns the number of records to skip before each record picked.
+	 *
+	 * @return the skip distances, one per record picked
+	 */
+	public static int[] skipDistances(int count, int population, Random rng) {
+		if (count < 0 || count > population) {
+			throw new IllegalArgumentException(
+					"Unable to pick " + count + " samples out of " + population + " records.");
+		}
+		int[] skips = new int[count];
+		int picked = 0;
+		int n = count;
+		int N = population;
+
+		// Algorithm D, while n is small compared to N
+		if (n > 1 && ALPHA_INV * n < N) {
+			double nreal = n;
+			double ninv = 1.0 / nreal;
+			double Nreal = N;
+			double Vprime = Math.exp(Math.log(rng.nextDouble()) * ninv);
+			int qu1 = -n + 1 + N;
+			double qu1real = -nreal + 1.0 + Nreal;
+			int threshold = ALPHA_INV * n;
+
+			while (n > 1 && threshold < N) {
+				double nmin1inv = 1.0 / (-1.0 + nreal);
+				int S;
+				while (true) {
+					// Step D2: Generate U and X
+					double X;
+					while (true) {
+						X = Nreal * (-Vprime + 1.0);
+						S = (int) X;
+						if (S < qu1) {
+							break;
+						}
+						Vprime = Math.exp(Math.log(rng.nextDouble()) * ninv);
+					}
+					double U = rng.nextDouble();
+					double negSreal = -S;
+
+					// Step D3: Accept?
+					double y1 = Math.exp(Math.log(U * Nreal / qu1real) * nmin1inv);
+					Vprime = y1 * (-X / Nreal + 1.0) * (qu1real / (negSreal + qu1real));
+					if (Vprime <= 1.0) {
+						break;
+					}
+
+					// Step D4: Accept?
+					double y2 = 1.0;
+					double top = -1.0 + Nreal;
+					double bottom;
+					int limit;
+					if (n - 1 > S) {
+						bottom = -nreal + Nreal;
+						limit = -S + N;
+					} else {
+						bottom = -1.0 + negSreal + Nreal;
+						limit = qu1;
+					}
+					for (int t = N - 1; t >= limit; t--) {
+						y2 = (y2 * top) / bottom;
+						top--;
+						bottom--;
+					}
+					if (Nreal / (-X + Nreal) >= y1 * Math.exp(Math.log(y2) * nmin1inv)) {
+						// Accept S, and generate a new Vprime for the next round
+						Vprime = Math.exp(Math.log(rng.nextDouble()) * nmin1inv);
+						break;
+					}
+					Vprime = Math.exp(Math.log(rng.nextDouble()) * ninv);
+				}
+
+				// Skip over S records, and pick the next one
+				skips[picked++] = S;
+				N = -S + (N - 1);
+				Nreal = -S + (-1.0 + Nreal);
+				n--;
+				nreal = nreal - 1.0;
+				ninv = nmin1inv;
+				qu1 = -S + qu1;
+				qu1real = -S + qu1real;
+				threshold -= ALPHA_INV;
+			}
+
+			if (n == 1) {
+				skips[picked++] = (int) (N * Vprime);
+				return skips;
+			}
+		}
+
+		// Algorithm A, for the remaining records
+		int top = N - n;
+		double Nreal = N;
+		while (n >= 2) {
+			double V = rng.nextDouble();
+			int S = 0;
+			double quot = top / Nreal;
+			while (quot > V) {
+				S++;
+				top--;
+				Nreal--;
+				quot = (quot * top) / Nreal;
+			}
+			skips[picked++] = S;
+			Nreal--;
+			n--;
+		}
+		if (n == 1) {
+			skips[picked++] = (int) (Math.round(Nreal) * rng.nextDouble());
+		}
+		return skips;
+	}
+}
@@ -0,0 +1,146 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * The pre-shuffled data file of a class, as written by the Shuffle step, along
+ * with a cursor pointing to the next record not handed out yet. <br>
+ * Since the data file is already in random order, drawing a random sample is a
+ * sequential read from the cursor on. The cursor is persisted in
+ * <code>./data/intermediate/&lt;class&gt;.cursor</code> after each draw, so
+ * that samples drawn in different iterations, experiments and runs never
+ * overlap. A draw holds a file lock on the cursor from reading it to saving
+ * it, so that concurrent runs draw one after the other. Run the Shuffle step
+ * again to start over with a new permutation.
+ */
+public class ShuffledCorpus {
+
+	private final String className;
+	private final File dataFile;
+	private final File cursorFile;
+	private final File lockFile;
+	private long position = 0;
+	private long offset = 0;
+
+	/**
+	 * Opens the shuffled data file of a class
+	 *
+	 * @param className
+	 *            the name of the class. The corresponding shuffled CSV must exist
+	 *            under <code>./data/intermediate</code>
+	 */
+	public ShuffledCorpus(String className) {
+		this.className = className;
+		this.dataFile = Project.getShuffledDataFile(className);
+		this.cursorFile = Project.getCursorFile(className);
+		this.lockFile = new File(cursorFile.getPath() + ".lock");
+
+		if (!dataFile.exists()) {
+			System.err.println(dataFile.getName() + " missing. Please run the Shuffle step first to fix this.");
+			System.exit(-1);
+		}
+		if (dataFile.lastModified() < Project.getDataFile(className).lastModified()) {
+			System.err.println("Warning: " + dataFile.getName() + " is older than the data set for class '"
+					+ className + "'. Please re-run the Shuffle step.");
+		}
+		load();
+	}
+
+	/**
+	 * Reads the cursor, as saved by the last draw
+	 */
+	private void load() {
+		position = 0;
+		offset = 0;
+		if (cursorFile.exists()) {
+			CSVParser parser = IOUtil.openCSV(cursorFile);
+			Iterator<CSVRecord> records = parser.iterator();
+			if (records.hasNext()) {
+				CSVRecord record = records.next();
+				position = Long.parseLong(record.get(0).trim());
+				offset = Long.parseLong(record.get(1).trim());
+			}
+			IOUtil.close(parser);
+		}
+	}
+
+	/**
+	 * @return the number of records already handed out
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Reads the next records of the shuffled data file, and moves the cursor past
+	 * them.
+	 *
+	 * @param count
+	 *            the number of records to read
+	 * @return the records, as lines of the data file
+	 * @throws IllegalArgumentException
+	 *             if less than <code>count</code> records are left
+	 */
+	public String[] next(int count) throws IOException {
+		// The file lock is held by the process: Its threads take turns
+		synchronized (ShuffledCorpus.class) {
+			RandomAccessFile lock = IOUtil.lock(lockFile);
+			try {
+				// Another run may have drawn since
+				load();
+				String[] lines = new String[count];
+				FileInputStream in = new FileInputStream(dataFile);
+				ByteLineReader reader = new ByteLineReader(in);
+				try {
+					in.getChannel().position(offset);
+					for (int i = 0; i < count; i++) {
+						if (!reader.next()) {
+							throw new IllegalArgumentException("Only " + i + " unused samples left for class '"
+									+ className + "', not enough to pick " + count
+									+ " samples. Please re-run the Shuffle step.");
+						}
+						lines[i] = reader.getLine();
+					}
+				} finally {
+					reader.close();
+				}
+
+				position += count;
+				offset += reader.getBytesRead();
+				save();
+				return lines;
+			} finally {
+				IOUtil.close(lock);
+			}
+		}
+	}
+
+	/**
+	 * Writes the cursor to a temporary file, then moves it in place, while
+	 * holding the lock
+	 */
+	private void save() {
+		File cursorTemp = new File(cursorFile.getPath() + ".tmp");
+		PrintWriter out = IOUtil.getWriter(cursorTemp);
+		out.println(position + ", " + offset);
+		IOUtil.close(out);
+		try {
+			Files.move(cursorTemp.toPath(), cursorFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Unable to replace the file at '" + cursorFile.getAbsolutePath() + "'");
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+}
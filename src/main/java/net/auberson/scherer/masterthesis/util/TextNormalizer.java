@@ -0,0 +1,403 @@
+package net.auberson.scherer.masterthesis.util;
+
+import com.google.common.base.CharMatcher;
+
+/**
+ * Cleans up texts as expected by the Natural Language Classifier, in a single
+ * pass and without creating intermediate Strings. <br>
+ * The output is identical to applying, in this order: the replacement of HTML
+ * tags by a whitespace (a tag runs from a '&lt;' to the next '&gt;', and tags
+ * separated only by whitespace are replaced together; a '&lt;' never closed is
+ * kept), <code>StringEscapeUtils.unescapeHtml4</code>,
+ * <code>CharMatcher.whitespace().trimAndCollapseFrom</code> and
+ * <code>Project.NLC_FORMAT.retainFrom</code>, then shortening the result to
+ * 1024 characters at the last end-of-sentence mark (or whitespace). <br>
+ * Several texts can be appended to one another. The result is written to a
+ * reusable buffer; processing stops as soon as further input cannot change the
+ * result anymore. Instances are not thread-safe.
+ */
+public class TextNormalizer {
+
+	public static final int MAX_LENGTH = 1024;
+
+	private static final CharMatcher WHITESPACE = CharMatcher.whitespace();
+	private static final EntityTable ENTITIES = new EntityTable(EntityTable.HTML40_ENTITIES);
+
+	private final char[] buffer = new char[MAX_LENGTH];
+
+	// Total length of the text, including the part that didn't fit the buffer
+	private int length;
+	private boolean hasSentenceEnd;
+	private int lastSentenceEnd;
+	private int lastSpace;
+
+	// Whitespace collapsing state of the current text
+	private boolean started;
+	private boolean pendingSpace;
+
+	public TextNormalizer() {
+		reset();
+	}
+
+	/**
+	 * Clears the output, so that a new text can be processed
+	 */
+	public void reset() {
+		length = 0;
+		hasSentenceEnd = false;
+		lastSentenceEnd = -1;
+		lastSpace = -1;
+	}
+
+	/**
+	 * Cleans up a text in HTML, and appends the result to the output.
+	 *
+	 * @param html
+	 *            the text to clean up
+	 */
+	public void append(CharSequence html) {
+		started = false;
+		pendingSpace = false;
+
+		final int end = html.length();
+		// A tag is only removed if it is closed further on
+		int lastTagEnd = end - 1;
+		while (lastTagEnd >= 0 && html.charAt(lastTagEnd) != '>') {
+			lastTagEnd--;
+		}
+
+		int i = 0;
+		while (i < end && !isComplete()) {
+			char c = html.charAt(i);
+			if (c == '<' && i < lastTagEnd) {
+				i = skipTags(html, i, lastTagEnd);
+				collapse(' ');
+			} else if (c == '&') {
+				i = unescape(html, i, end);
+			} else {
+				collapse(c);
+				i++;
+			}
+		}
+	}
+
+	/**
+	 * Appends a text to the output as is, without cleaning it up
+	 */
+	public void appendRaw(CharSequence text) {
+		for (int i = 0; i < text.length() && !isComplete(); i++) {
+			emit(text.charAt(i));
+		}
+	}
+
+	/**
+	 * @return true if more input cannot change the result: The output already
+	 *         needs to be shortened, and we know where.
+	 */
+	public boolean isComplete() {
+		return length > MAX_LENGTH && hasSentenceEnd;
+	}
+
+	/**
+	 * @return the buffer holding the result. Only the first
+	 *         <code>getLength()</code> characters are valid.
+	 */
+	public char[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return the length of the result, once shortened to the maximal length
+	 */
+	public int getLength() {
+		if (length <= MAX_LENGTH) {
+			return length;
+		}
+		// Cut at the last end-of-sentence punctuation mark before 1023 chars. If
+		// there is none in the text, cut at the last whitespace instead.
+		int cutAt = hasSentenceEnd ? lastSentenceEnd : lastSpace;
+		if (cutAt == -1) {
+			// No whitespace found either? Cut at 1024 chars.
+			cutAt = MAX_LENGTH - 1;
+		}
+		return cutAt + 1;
+	}
+
+	@Override
+	public String toString() {
+		return new String(buffer, 0, getLength());
+	}
+
+	/**
+	 * Skips an HTML tag, and any tags following it separated only by whitespace
+	 *
+	 * @return the position after the last tag
+	 */
+	private int skipTags(CharSequence html, int tagStart, int lastTagEnd) {
+		int i = tagStart;
+		while (true) {
+			// Skip to the end of the tag
+			while (html.charAt(i) != '>') {
+				i++;
+			}
+			i++;
+
+			// Is there another tag after some whitespace?
+			int next = i;
+			while (next < lastTagEnd && isRegexpWhitespace(html.charAt(next))) {
+				next++;
+			}
+			if (next < lastTagEnd && html.charAt(next) == '<') {
+				i = next;
+			} else {
+				return i;
+			}
+		}
+	}
+
+	private static boolean isRegexpWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+	}
+
+	/**
+	 * Unescapes the HTML entity at the current position, if there is one
+	 *
+	 * @return the position after the entity
+	 */
+	private int unescape(CharSequence html, int i, int end) {
+		if (i + 2 < end && html.charAt(i + 1) == '#') {
+			return unescapeNumeric(html, i, end);
+		}
+
+		// Named entity: Find the terminating semicolon
+		int nameEnd = i + 1;
+		while (nameEnd < end && nameEnd - i <= ENTITIES.longest && isAsciiLetterOrDigit(html.charAt(nameEnd))) {
+			nameEnd++;
+		}
+		if (nameEnd < end && html.charAt(nameEnd) == ';') {
+			String value = ENTITIES.get(html, i + 1, nameEnd);
+			if (value != null) {
+				for (int j = 0; j < value.length(); j++) {
+					collapse(value.charAt(j));
+				}
+				return nameEnd + 1;
+			}
+		}
+		collapse('&');
+		return i + 1;
+	}
+
+	/**
+	 * Unescapes a numeric entity, such as <code>&amp;#65;</code> or
+	 * <code>&amp;#x41;</code>
+	 */
+	private int unescapeNumeric(CharSequence html, int i, int end) {
+		int start = i + 2;
+		boolean isHex = false;
+		char firstChar = html.charAt(start);
+		if (firstChar == 'x' || firstChar == 'X') {
+			start++;
+			isHex = true;
+		}
+
+		int digitsEnd = start;
+		long value = 0;
+		boolean valid = true;
+		while (digitsEnd < end && Character.digit(html.charAt(digitsEnd), 16) != -1
+				&& html.charAt(digitsEnd) < 0x80) {
+			int digit = Character.digit(html.charAt(digitsEnd), isHex ? 16 : 10);
+			if (digit == -1) {
+				// Hexadecimal digits in a decimal entity
+				valid = false;
+			} else if (valid) {
+				value = value * (isHex ? 16 : 10) + digit;
+				valid = value <= Character.MAX_CODE_POINT;
+			}
+			digitsEnd++;
+		}
+
+		if (valid && digitsEnd > start && digitsEnd < end && html.charAt(digitsEnd) == ';') {
+			if (value > 0xFFFF) {
+				collapse(Character.highSurrogate((int) value));
+				collapse(Character.lowSurrogate((int) value));
+			} else {
+				collapse((char) value);
+			}
+			return digitsEnd + 1;
+		}
+		collapse('&');
+		return i + 1;
+	}
+
+	private static boolean isAsciiLetterOrDigit(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+	}
+
+	/**
+	 * Trims whitespace, and collapses whitespace sequences into a single space
+	 */
+	private void collapse(char c) {
+		if (WHITESPACE.matches(c)) {
+			pendingSpace = started;
+		} else {
+			if (pendingSpace) {
+				filter(' ');
+				pendingSpace = false;
+			}
+			filter(c);
+			started = true;
+		}
+	}
+
+	/**
+	 * Removes the characters not supported by the Natural Language Classifier
+	 */
+	private void filter(char c) {
+		if (Project.NLC_FORMAT.matches(c)) {
+			emit(c);
+		}
+	}
+
+	/**
+	 * Appends a character to the output, keeping track of where it could be cut
+	 */
+	private void emit(char c) {
+		if (length < MAX_LENGTH) {
+			buffer[length] = c;
+		}
+		if (Project.NLC_SENTENCE_END.matches(c)) {
+			hasSentenceEnd = true;
+			if (length < MAX_LENGTH - 1) {
+				lastSentenceEnd = length;
+			}
+		} else if (c == ' ' && length < MAX_LENGTH - 1) {
+			lastSpace = length;
+		}
+		length++;
+	}
+
+	/**
+	 * A hash table of HTML entity names, that can be queried without creating a
+	 * String for the name.
+	 */
+	private static class EntityTable {
+
+		// The entities unescaped by StringEscapeUtils.unescapeHtml4: Names
+		// (without '&' and ';'), each followed by its value
+		static final String[] HTML40_ENTITIES = {
+			// Basic XML entities
+			"quot", "\"", "amp", "&", "lt", "<", "gt", ">",
+			// ISO-8859-1 characters
+			"nbsp", "\u00A0", "iexcl", "\u00A1", "cent", "\u00A2", "pound", "\u00A3", "curren", "\u00A4",
+			"yen", "\u00A5", "brvbar", "\u00A6", "sect", "\u00A7", "uml", "\u00A8", "copy", "\u00A9", "ordf", "\u00AA",
+			"laquo", "\u00AB", "not", "\u00AC", "shy", "\u00AD", "reg", "\u00AE", "macr", "\u00AF", "deg", "\u00B0",
+			"plusmn", "\u00B1", "sup2", "\u00B2", "sup3", "\u00B3", "acute", "\u00B4", "micro", "\u00B5",
+			"para", "\u00B6", "middot", "\u00B7", "cedil", "\u00B8", "sup1", "\u00B9", "ordm", "\u00BA",
+			"raquo", "\u00BB", "frac14", "\u00BC", "frac12", "\u00BD", "frac34", "\u00BE", "iquest", "\u00BF",
+			"Agrave", "\u00C0", "Aacute", "\u00C1", "Acirc", "\u00C2", "Atilde", "\u00C3", "Auml", "\u00C4",
+			"Aring", "\u00C5", "AElig", "\u00C6", "Ccedil", "\u00C7", "Egrave", "\u00C8", "Eacute", "\u00C9",
+			"Ecirc", "\u00CA", "Euml", "\u00CB", "Igrave", "\u00CC", "Iacute", "\u00CD", "Icirc", "\u00CE",
+			"Iuml", "\u00CF", "ETH", "\u00D0", "Ntilde", "\u00D1", "Ograve", "\u00D2", "Oacute", "\u00D3",
+			"Ocirc", "\u00D4", "Otilde", "\u00D5", "Ouml", "\u00D6", "times", "\u00D7", "Oslash", "\u00D8",
+			"Ugrave", "\u00D9", "Uacute", "\u00DA", "Ucirc", "\u00DB", "Uuml", "\u00DC", "Yacute", "\u00DD",
+			"THORN", "\u00DE", "szlig", "\u00DF", "agrave", "\u00E0", "aacute", "\u00E1", "acirc", "\u00E2",
+			"atilde", "\u00E3", "auml", "\u00E4", "aring", "\u00E5", "aelig", "\u00E6", "ccedil", "\u00E7",
+			"egrave", "\u00E8", "eacute", "\u00E9", "ecirc", "\u00EA", "euml", "\u00EB", "igrave", "\u00EC",
+			"iacute", "\u00ED", "icirc", "\u00EE", "iuml", "\u00EF", "eth", "\u00F0", "ntilde", "\u00F1",
+			"ograve", "\u00F2", "oacute", "\u00F3", "ocirc", "\u00F4", "otilde", "\u00F5", "ouml", "\u00F6",
+			"divide", "\u00F7", "oslash", "\u00F8", "ugrave", "\u00F9", "uacute", "\u00FA", "ucirc", "\u00FB",
+			"uuml", "\u00FC", "yacute", "\u00FD", "thorn", "\u00FE", "yuml", "\u00FF",
+			// HTML 4.0 extended entities (symbols, Greek letters, punctuation)
+			"fnof", "\u0192", "Alpha", "\u0391", "Beta", "\u0392", "Gamma", "\u0393", "Delta", "\u0394",
+			"Epsilon", "\u0395", "Zeta", "\u0396", "Eta", "\u0397", "Theta", "\u0398", "Iota", "\u0399",
+			"Kappa", "\u039A", "Lambda", "\u039B", "Mu", "\u039C", "Nu", "\u039D", "Xi", "\u039E", "Omicron", "\u039F",
+			"Pi", "\u03A0", "Rho", "\u03A1", "Sigma", "\u03A3", "Tau", "\u03A4", "Upsilon", "\u03A5", "Phi", "\u03A6",
+			"Chi", "\u03A7", "Psi", "\u03A8", "Omega", "\u03A9", "alpha", "\u03B1", "beta", "\u03B2", "gamma", "\u03B3",
+			"delta", "\u03B4", "epsilon", "\u03B5", "zeta", "\u03B6", "eta", "\u03B7", "theta", "\u03B8",
+			"iota", "\u03B9", "kappa", "\u03BA", "lambda", "\u03BB", "mu", "\u03BC", "nu", "\u03BD", "xi", "\u03BE",
+			"omicron", "\u03BF", "pi", "\u03C0", "rho", "\u03C1", "sigmaf", "\u03C2", "sigma", "\u03C3",
+			"tau", "\u03C4", "upsilon", "\u03C5", "phi", "\u03C6", "chi", "\u03C7", "psi", "\u03C8", "omega", "\u03C9",
+			"thetasym", "\u03D1", "upsih", "\u03D2", "piv", "\u03D6", "bull", "\u2022", "hellip", "\u2026",
+			"prime", "\u2032", "Prime", "\u2033", "oline", "\u203E", "frasl", "\u2044", "weierp", "\u2118",
+			"image", "\u2111", "real", "\u211C", "trade", "\u2122", "alefsym", "\u2135", "larr", "\u2190",
+			"uarr", "\u2191", "rarr", "\u2192", "darr", "\u2193", "harr", "\u2194", "crarr", "\u21B5", "lArr", "\u21D0",
+			"uArr", "\u21D1", "rArr", "\u21D2", "dArr", "\u21D3", "hArr", "\u21D4", "forall", "\u2200",
+			"part", "\u2202", "exist", "\u2203", "empty", "\u2205", "nabla", "\u2207", "isin", "\u2208",
+			"notin", "\u2209", "ni", "\u220B", "prod", "\u220F", "sum", "\u2211", "minus", "\u2212", "lowast", "\u2217",
+			"radic", "\u221A", "prop", "\u221D", "infin", "\u221E", "ang", "\u2220", "and", "\u2227", "or", "\u2228",
+			"cap", "\u2229", "cup", "\u222A", "int", "\u222B", "there4", "\u2234", "sim", "\u223C", "cong", "\u2245",
+			"asymp", "\u2248", "ne", "\u2260", "equiv", "\u2261", "le", "\u2264", "ge", "\u2265", "sub", "\u2282",
+			"sup", "\u2283", "nsub", "\u2284", "sube", "\u2286", "supe", "\u2287", "oplus", "\u2295",
+			"otimes", "\u2297", "perp", "\u22A5", "sdot", "\u22C5", "lceil", "\u2308", "rceil", "\u2309",
+			"lfloor", "\u230A", "rfloor", "\u230B", "lang", "\u2329", "rang", "\u232A", "loz", "\u25CA",
+			"spades", "\u2660", "clubs", "\u2663", "hearts", "\u2665", "diams", "\u2666", "OElig", "\u0152",
+			"oelig", "\u0153", "Scaron", "\u0160", "scaron", "\u0161", "Yuml", "\u0178", "circ", "\u02C6",
+			"tilde", "\u02DC", "ensp", "\u2002", "emsp", "\u2003", "thinsp", "\u2009", "zwnj", "\u200C",
+			"zwj", "\u200D", "lrm", "\u200E", "rlm", "\u200F", "ndash", "\u2013", "mdash", "\u2014", "lsquo", "\u2018",
+			"rsquo", "\u2019", "sbquo", "\u201A", "ldquo", "\u201C", "rdquo", "\u201D", "bdquo", "\u201E",
+			"dagger", "\u2020", "Dagger", "\u2021", "permil", "\u2030", "lsaquo", "\u2039", "rsaquo", "\u203A",
+			"euro", "\u20AC",
+		};
+
+		private final String[] names;
+		private final String[] values;
+		private final int mask;
+		private int longest = 0;
+
+		/**
+		 * @param namesAndValues
+		 *            entity names, each followed by its value
+		 */
+		EntityTable(String[] namesAndValues) {
+			int size = Integer.highestOneBit(namesAndValues.length * 2);
+			names = new String[size];
+			values = new String[size];
+			mask = size - 1;
+
+			for (int i = 0; i < namesAndValues.length; i += 2) {
+				String name = namesAndValues[i];
+				longest = Math.max(longest, name.length());
+				int slot = hash(name, 0, name.length()) & mask;
+				while (names[slot] != null && !names[slot].equals(name)) {
+					slot = (slot + 1) & mask;
+				}
+				if (names[slot] == null) {
+					// The first definition of an entity wins
+					names[slot] = name;
+					values[slot] = namesAndValues[i + 1];
+				}
+			}
+		}
+
+		String get(CharSequence text, int start, int end) {
+			int slot = hash(text, start, end) & mask;
+			while (names[slot] != null) {
+				if (matches(names[slot], text, start, end)) {
+					return values[slot];
+				}
+				slot = (slot + 1) & mask;
+			}
+			return null;
+		}
+
+		private static boolean matches(String name, CharSequence text, int start, int end) {
+			if (name.length() != end - start) {
+				return false;
+			}
+			for (int i = 0; i < name.length(); i++) {
+				if (name.charAt(i) != text.charAt(start + i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static int hash(CharSequence text, int start, int end) {
+			int hash = 0;
+			for (int i = start; i < end; i++) {
+				hash = 31 * hash + text.charAt(i);
+			}
+			return hash ^ (hash >>> 16);
+		}
+	}
+}
@@ -0,0 +1,388 @@
+package net.auberson.scherer.masterthesis.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.ibm.watson.developer_cloud.http.ServiceCall;
+import com.ibm.watson.developer_cloud.natural_language_classifier.v1.NaturalLanguageClassifier;
+import com.ibm.watson.developer_cloud.natural_language_classifier.v1.model.ClassificationCollection;
+import com.ibm.watson.developer_cloud.natural_language_classifier.v1.model.ClassifiedClass;
+import com.ibm.watson.developer_cloud.natural_language_classifier.v1.model.Classifier;
+import com.ibm.watson.developer_cloud.natural_language_classifier.v1.model.ClassifierList;
+import com.ibm.watson.developer_cloud.natural_language_classifier.v1.model.ClassifyCollectionOptions;
+import com.ibm.watson.developer_cloud.natural_language_classifier.v1.model.ClassifyInput;
+import com.ibm.watson.developer_cloud.natural_language_classifier.v1.model.CollectionItem;
+import com.ibm.watson.developer_cloud.service.exception.ServiceResponseException;
+
+import net.auberson.scherer.masterthesis.model.Classification;
+import net.auberson.scherer.masterthesis.model.ClassifierInfo;
+
+import okhttp3.internal.http2.ConnectionShutdownException;
+
+/**
+ * The IBM Cloud NLC, with the credentials found in <code>nlc.properties</code>,
+ * or the service at <code>-Dnlc.endpoint</code> (e.g. a <code>MockNLCServer</code>).
+ * <br>
+ * All calls share the connections of the <code>NLCClient</code>, stay within
+ * the quota of the account (see <code>NLCQuota</code>), and are retried if
+ * they fail (see <code>RetryingCaller</code>). Creating a classifier isn't
+ * repeated if the service may have carried out the failed attempt: The
+ * classifier it created is used instead. <br>
+ * If there are several service instances, a new classifier is trained by the
+ * least busy instance (see <code>NLCClient</code>), and all calls for the
+ * classifier go to that instance, as the others don't know it.
+ */
+class WatsonBackend implements ClassifierBackend {
+
+	private static final CallStats CREATE_STATS = CallStats.get("create");
+	private static final CallStats GET_STATS = CallStats.get("get");
+	private static final CallStats LIST_STATS = CallStats.get("list");
+	private static final CallStats CLASSIFY_STATS = CallStats.get("classify");
+	private static final CallStats DELETE_STATS = CallStats.get("delete");
+
+	// Time taken by the service to answer the last attempt of each thread, in ms
+	private static final ThreadLocal<Long> LAST_SERVICE_TIME = new ThreadLocal<Long>() {
+		@Override
+		protected Long initialValue() {
+			return -1L;
+		}
+	};
+
+	// The instance of each classifier, as far as known
+	private final Map<String, NLCClient> owners = new ConcurrentHashMap<String, NLCClient>();
+
+	public String getName() {
+		return "watson";
+	}
+
+	public boolean isRemote() {
+		return true;
+	}
+
+	public ClassifierInfo train(final String name, final String language, final File trainingSet) {
+		final NLCClient client = NLCClient.getLeastBusyClient();
+		// Tells apart a classifier created by an attempt that got no answer
+		final Set<String> existingIds = getClassifierIds(name, client);
+		CREATE_STATS.recordPayload(0, trainingSet.length());
+		ClassifierInfo info = toInfo(call("Creating classifier " + name, client, CREATE_STATS,
+				new ServiceCallFactory<Classifier>() {
+					public ServiceCall<Classifier> create(NaturalLanguageClassifier service) {
+						try {
+							return service.createClassifier(name, language, trainingSet);
+						} catch (RuntimeException e) {
+							throw e;
+						} catch (Exception e) {
+							// The training set was checked by the BatchClassifier
+							throw new IllegalStateException(e);
+						}
+					}
+				}, new Recovery<Classifier>() {
+					public Classifier recover() {
+						// Creating a classifier again would create a second one
+						for (Classifier classifier : listClassifiers(client).getClassifiers()) {
+							if (classifier.getName().equals(name) && !existingIds.contains(classifier.getClassifierId())) {
+								System.err.println("Classifier " + classifier.getClassifierId()
+										+ " was created by the failed attempt, using it");
+								return classifier;
+							}
+						}
+						return null;
+					}
+				}));
+		setOwner(info.getClassifierId(), client);
+		return info;
+	}
+
+	/**
+	 * @return the ids of the classifiers with the given name on an instance
+	 */
+	private Set<String> getClassifierIds(String name, final NLCClient client) {
+		ClassifierList classifiers = call("Listing classifiers", client, LIST_STATS,
+				new ServiceCallFactory<ClassifierList>() {
+					public ServiceCall<ClassifierList> create(NaturalLanguageClassifier service) {
+						return service.listClassifiers();
+					}
+				}, null);
+		Set<String> classifierIds = new HashSet<String>();
+		for (Classifier classifier : classifiers.getClassifiers()) {
+			if (classifier.getName().equals(name)) {
+				classifierIds.add(classifier.getClassifierId());
+			}
+		}
+		return classifierIds;
+	}
+
+	/**
+	 * Lists the classifiers of an instance in a single attempt, within a call
+	 * retried by the <code>RetryingCaller</code>
+	 */
+	private static ClassifierList listClassifiers(NLCClient client) {
+		NLCQuota.acquireRequest(client.getUsername());
+		long attemptStart = System.nanoTime();
+		boolean failed = true;
+		try {
+			ClassifierList classifiers = client.getService().listClassifiers().execute();
+			LIST_STATS.recordAttempt((System.nanoTime() - attemptStart) / 1000, null);
+			failed = false;
+			return classifiers;
+		} catch (RuntimeException e) {
+			LIST_STATS.recordAttempt((System.nanoTime() - attemptStart) / 1000, e);
+			throw e;
+		} finally {
+			LIST_STATS.recordCall((System.nanoTime() - attemptStart) / 1000, failed);
+		}
+	}
+
+	public ClassifierInfo get(final String classifierId) {
+		NLCClient owner = owners.get(classifierId);
+		if (owner != null) {
+			ClassifierInfo info = get(classifierId, owner);
+			if (info == null) {
+				removeOwner(classifierId);
+			}
+			return info;
+		}
+
+		// Look for the classifier on each instance
+		for (NLCClient client : NLCClient.getClients()) {
+			ClassifierInfo info = get(classifierId, client);
+			if (info != null) {
+				setOwner(classifierId, client);
+				return info;
+			}
+		}
+		return null;
+	}
+
+	private ClassifierInfo get(final String classifierId, NLCClient client) {
+		try {
+			return toInfo(call("Retrieving classifier " + classifierId, client, GET_STATS,
+					new ServiceCallFactory<Classifier>() {
+						public ServiceCall<Classifier> create(NaturalLanguageClassifier service) {
+							return service.getClassifier(classifierId);
+						}
+					}, null));
+		} catch (ServiceResponseException e) {
+			if (e.getStatusCode() == 404) {
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	public List<ClassifierInfo> list() {
+		List<ClassifierInfo> infos = new ArrayList<ClassifierInfo>();
+		for (NLCClient client : NLCClient.getClients()) {
+			if (client.getBreaker().isOpen() && NLCClient.getClients().size() > 1) {
+				// Out of rotation: Its classifiers are listed once it is back
+				System.err.println("Not listing the classifiers of " + client + ", its circuit breaker is open");
+				continue;
+			}
+			ClassifierList classifiers = call("Listing classifiers", client, LIST_STATS,
+					new ServiceCallFactory<ClassifierList>() {
+						public ServiceCall<ClassifierList> create(NaturalLanguageClassifier service) {
+							return service.listClassifiers();
+						}
+					}, null);
+			for (Classifier classifier : classifiers.getClassifiers()) {
+				setOwner(classifier.getClassifierId(), client);
+				infos.add(toInfo(classifier));
+			}
+		}
+		return infos;
+	}
+
+	/**
+	 * @return the time taken by the service to answer the last attempt of the
+	 *         last call of the current thread, in ms, or -1 if it made none. The
+	 *         waits for the request quota and the circuit breaker aren't included.
+	 */
+	static long getLastServiceTime() {
+		return LAST_SERVICE_TIME.get();
+	}
+
+	public List<Classification> classify(String classifierId, List<String> texts) {
+		final ClassifyCollectionOptions.Builder parameters = new ClassifyCollectionOptions.Builder()
+				.classifierId(classifierId);
+		int bytes = 0;
+		for (String text : texts) {
+			ClassifyInput classifyInput = new ClassifyInput();
+			classifyInput.setText(text);
+			parameters.addClassifyInput(classifyInput);
+			bytes += BatchSizer.getSize(text);
+		}
+
+		CLASSIFY_STATS.recordPayload(texts.size(), bytes);
+		ClassificationCollection response = call(
+				"Classifying a batch of " + texts.size() + " samples (" + bytes + " bytes)", getOwner(classifierId),
+				CLASSIFY_STATS, new ServiceCallFactory<ClassificationCollection>() {
+					public ServiceCall<ClassificationCollection> create(NaturalLanguageClassifier service) {
+						return service.classifyCollection(parameters.build());
+					}
+				}, null);
+
+		List<Classification> results = new ArrayList<Classification>(texts.size());
+		for (CollectionItem item : response.getCollection()) {
+			results.add(toClassification(item));
+		}
+		return results;
+	}
+
+	public boolean delete(final String classifierId) {
+		if (!owners.containsKey(classifierId) && get(classifierId) == null) {
+			return false;
+		}
+		try {
+			call("Deleting classifier " + classifierId, getOwner(classifierId), DELETE_STATS,
+					new ServiceCallFactory<Void>() {
+						public ServiceCall<Void> create(NaturalLanguageClassifier service) {
+							return service.deleteClassifier(classifierId);
+						}
+					}, null);
+			return true;
+		} catch (ServiceResponseException e) {
+			if (e.getStatusCode() == 404) {
+				return false;
+			}
+			throw e;
+		} finally {
+			removeOwner(classifierId);
+		}
+	}
+
+	/**
+	 * @return the instance of the classifier
+	 * @throws IllegalArgumentException
+	 *             if no instance knows the classifier
+	 */
+	private NLCClient getOwner(String classifierId) {
+		NLCClient owner = owners.get(classifierId);
+		if (owner == null && get(classifierId) != null) {
+			owner = owners.get(classifierId);
+		}
+		if (owner == null) {
+			throw new IllegalArgumentException("Classifier " + classifierId + " doesn't exist");
+		}
+		return owner;
+	}
+
+	private void setOwner(String classifierId, NLCClient client) {
+		NLCClient previous = owners.put(classifierId, client);
+		if (previous != client) {
+			client.classifierAdded();
+			if (previous != null) {
+				previous.classifierRemoved();
+			}
+		}
+	}
+
+	private void removeOwner(String classifierId) {
+		NLCClient previous = owners.remove(classifierId);
+		if (previous != null) {
+			previous.classifierRemoved();
+		}
+	}
+
+	private static ClassifierInfo toInfo(Classifier classifier) {
+		return new ClassifierInfo(classifier.getClassifierId(), classifier.getName(), classifier.getStatus());
+	}
+
+	private static Classification toClassification(CollectionItem item) {
+		List<ClassifiedClass> classes = item.getClasses();
+		String[] classNames = new String[classes.size()];
+		double[] confidences = new double[classes.size()];
+		for (int i = 0; i < classes.size(); i++) {
+			classNames[i] = classes.get(i).getClassName();
+			confidences[i] = classes.get(i).getConfidence();
+		}
+		return new Classification(item.getText(), classNames, confidences);
+	}
+
+	/**
+	 * Creates and executes a service call on an instance, with retries (see
+	 * <code>RetryingCaller</code>). Each attempt waits for the request quota,
+	 * and only the time taken by the service is measured. Idle connections are
+	 * closed if the service shut a connection down.
+	 *
+	 * @param stats
+	 *            records the latency of each attempt, and the outcome of the
+	 *            call
+	 * @param recovery
+	 *            for a call that must not be repeated once carried out: Looks
+	 *            for its result before each retry of an attempt that got no
+	 *            answer (e.g. a timeout), as the service may have carried it out.
+	 *            Null if the call can simply be repeated.
+	 */
+	private <T> T call(String description, final NLCClient client, final CallStats stats,
+			final ServiceCallFactory<T> factory, final Recovery<T> recovery) {
+		if (NLCClient.getClients().size() > 1) {
+			description += " on " + client;
+		}
+		long callStart = System.nanoTime();
+		LAST_SERVICE_TIME.set(-1L);
+		boolean failed = true;
+		try {
+			T result = RetryingCaller.call(description, client.getBreaker(), new RetryingCaller.Call<T>() {
+				private boolean unanswered = false;
+
+				public T execute() {
+					if (unanswered) {
+						T recovered = recovery.recover();
+						if (recovered != null) {
+							return recovered;
+						}
+					}
+					NLCQuota.acquireRequest(client.getUsername());
+					client.callStarted();
+					long attemptStart = System.nanoTime();
+					try {
+						T result = factory.create(client.getService()).execute();
+						recordAttempt(stats, attemptStart, null);
+						return result;
+					} catch (RuntimeException e) {
+						recordAttempt(stats, attemptStart, e);
+						if (e.getCause() instanceof ConnectionShutdownException) {
+							NLCClient.connectionShutdown();
+						}
+						unanswered = recovery != null && !(e instanceof ServiceResponseException);
+						throw e;
+					} finally {
+						client.callFinished();
+					}
+				}
+			});
+			failed = false;
+			return result;
+		} finally {
+			stats.recordCall((System.nanoTime() - callStart) / 1000, failed);
+		}
+	}
+
+	private static void recordAttempt(CallStats stats, long attemptStart, RuntimeException failure) {
+		long latency = (System.nanoTime() - attemptStart) / 1000;
+		stats.recordAttempt(latency, failure);
+		LAST_SERVICE_TIME.set(latency / 1000);
+	}
+
+	/**
+	 * Creates a service call on the client of an instance
+	 */
+	private interface ServiceCallFactory<T> {
+		ServiceCall<T> create(NaturalLanguageClassifier service);
+	}
+
+	/**
+	 * Looks for the result of a call that may have been carried out
+	 */
+	private interface Recovery<T> {
+		/**
+		 * @return the result, or null if the call wasn't carried out
+		 */
+		T recover();
+	}
+}
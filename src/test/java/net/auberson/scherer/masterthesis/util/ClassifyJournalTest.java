@@ -0,0 +1,206 @@
+package net.auberson.scherer.masterthesis.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.auberson.scherer.masterthesis.model.ClassifierResult;
+
+/**
+ * Interrupts classify runs at various points, and checks what the next run
+ * resumes from the journal: The samples to skip, the results kept in the
+ * output, and the samples to replay from the dead-letter file.
+ */
+public class ClassifyJournalTest {
+
+	private static final String CLASSIFIER = "classifier-1";
+	private static final String INPUT = "input-1";
+	private static final String ROW_1 = "\"first text\", foo, foo, 0.9\n";
+	private static final String ROW_2 = "\"second text\", bar, foo, 0.6\n";
+	private static final String ROW_3 = "\"third text\", bar, bar, 0.8\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testNewRun() throws IOException {
+		File output = new File(folder.getRoot(), "results.csv");
+		ClassifyJournal journal = ClassifyJournal.open(output, CLASSIFIER, INPUT);
+		assertEquals(0, journal.getResumedSamples());
+		assertTrue(journal.readResumedResults().isEmpty());
+		assertTrue(journal.getFailedTexts().isEmpty());
+
+		PrintWriter out = journal.openOutput();
+		out.print(ROW_1);
+		journal.batchDone(1);
+		journal.close();
+		assertTrue(ClassifyJournal.getFile(output).exists());
+
+		journal.delete();
+		assertFalse(ClassifyJournal.getFile(output).exists());
+		assertEquals(ROW_1, read(output));
+	}
+
+	/**
+	 * The rows written after the last checkpoint are cut off, and classified
+	 * again
+	 */
+	@Test
+	public void testResume() throws IOException {
+		File output = new File(folder.getRoot(), "results.csv");
+		ClassifyJournal journal = ClassifyJournal.open(output, CLASSIFIER, INPUT);
+		PrintWriter out = journal.openOutput();
+		out.print(ROW_1 + ROW_2);
+		journal.batchDone(2);
+		journal.checkpoint();
+		// Interrupted after writing another batch
+		out.print(ROW_3);
+		journal.batchDone(1);
+		out.close();
+
+		journal = ClassifyJournal.open(output, CLASSIFIER, INPUT);
+		assertEquals(2, journal.getResumedSamples());
+		List<ClassifierResult> results = journal.readResumedResults();
+		assertEquals(2, results.size());
+		assertEquals("first text", results.get(0).getText());
+		assertEquals("foo", results.get(0).getClassLabel());
+		assertEquals("second text", results.get(1).getText());
+		assertEquals("bar", results.get(1).getClassLabel());
+		assertEquals("foo", results.get(1).getDetectedClassLabel());
+
+		out = journal.openOutput();
+		assertEquals(ROW_1 + ROW_2, read(output));
+		out.print(ROW_3);
+		journal.batchDone(1);
+		journal.close();
+		assertEquals(ROW_1 + ROW_2 + ROW_3, read(output));
+	}
+
+	/**
+	 * A row only partly written when the run was interrupted is cut off
+	 */
+	@Test
+	public void testResumeAfterTruncatedLastLine() throws IOException {
+		File output = new File(folder.getRoot(), "results.csv");
+		ClassifyJournal journal = ClassifyJournal.open(output, CLASSIFIER, INPUT);
+		PrintWriter out = journal.openOutput();
+		out.print(ROW_1);
+		journal.batchDone(1);
+		journal.checkpoint();
+		out.print("\"second te");
+		out.close();
+
+		journal = ClassifyJournal.open(output, CLASSIFIER, INPUT);
+		assertEquals(1, journal.getResumedSamples());
+		assertEquals(1, journal.readResumedResults().size());
+		journal.openOutput();
+		assertEquals(ROW_1, read(output));
+		journal.close();
+	}
+
+	/**
+	 * A journal of another classifier is discarded, along with the rows of its
+	 * run. The rows written before its run are kept.
+	 */
+	@Test
+	public void testStaleJournalOfAnotherClassifier() throws IOException {
+		assertStaleJournalDiscarded("classifier-2", INPUT);
+	}
+
+	@Test
+	public void testStaleJournalOfAnotherInput() throws IOException {
+		assertStaleJournalDiscarded(CLASSIFIER, "input-2");
+	}
+
+	/**
+	 * The output was cut short since the checkpoint: The journal doesn't match
+	 * it anymore
+	 */
+	@Test
+	public void testOutputShorterThanJournal() throws IOException {
+		File output = new File(folder.getRoot(), "results.csv");
+		ClassifyJournal journal = ClassifyJournal.open(output, CLASSIFIER, INPUT);
+		PrintWriter out = journal.openOutput();
+		out.print(ROW_1 + ROW_2);
+		journal.batchDone(2);
+		journal.close();
+		write(output, ROW_1);
+
+		journal = ClassifyJournal.open(output, CLASSIFIER, INPUT);
+		assertEquals(0, journal.getResumedSamples());
+		assertFalse(ClassifyJournal.getFile(output).exists());
+	}
+
+	/**
+	 * The samples of the failed batches are replayed once the resumed run is
+	 * over, a text once per sample
+	 */
+	@Test
+	public void testFailedTextsResumed() throws IOException {
+		File output = new File(folder.getRoot(), "results.csv");
+		ClassifyJournal journal = ClassifyJournal.open(output, CLASSIFIER, INPUT);
+		PrintWriter out = journal.openOutput();
+		out.print(ROW_1);
+		journal.batchDone(1);
+		List<String> failed = Arrays.asList("a = b", "multi\nline", "a = b");
+		journal.batchFailed(failed);
+		journal.batchDone(3);
+		journal.checkpoint();
+		out.close();
+
+		journal = ClassifyJournal.open(output, CLASSIFIER, INPUT);
+		assertEquals(4, journal.getResumedSamples());
+		assertEquals(failed, journal.getFailedTexts());
+
+		// Another batch fails after resuming
+		journal.openOutput();
+		journal.batchFailed(Arrays.asList("c"));
+		journal.batchDone(1);
+		journal.close();
+		assertEquals(Arrays.asList("a = b", "multi\nline", "a = b", "c"),
+				ClassifyJournal.open(output, CLASSIFIER, INPUT).getFailedTexts());
+	}
+
+	private void assertStaleJournalDiscarded(String classifierId, String inputFingerprint) throws IOException {
+		File output = new File(folder.getRoot(), "results.csv");
+		write(output, ROW_1);
+		ClassifyJournal journal = ClassifyJournal.open(output, CLASSIFIER, INPUT);
+		PrintWriter out = journal.openOutput();
+		out.print(ROW_2);
+		journal.batchDone(1);
+		journal.close();
+
+		journal = ClassifyJournal.open(output, classifierId, inputFingerprint);
+		assertEquals(0, journal.getResumedSamples());
+		assertTrue(journal.readResumedResults().isEmpty());
+		assertFalse(ClassifyJournal.getFile(output).exists());
+		assertEquals(ROW_1, read(output));
+
+		// The new run appends after the rows kept
+		out = journal.openOutput();
+		out.print(ROW_3);
+		journal.batchDone(1);
+		journal.close();
+		assertEquals(ROW_1 + ROW_3, read(output));
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+	private static void write(File file, String content) throws IOException {
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,95 @@
+package net.auberson.scherer.masterthesis.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Compares the output of the TextNormalizer to golden files, in
+ * <code>src/test/resources/normalizer</code>: Each <code>.html</code> input
+ * has the expected result in the <code>.txt</code> file of the same name. The
+ * expected results were produced by the original cleanup of the Extract step
+ * (tag removal, <code>StringEscapeUtils.unescapeHtml4</code>, whitespace
+ * collapsing, <code>Project.NLC_FORMAT</code> filter, then the cut at 1024
+ * characters).
+ */
+public class TextNormalizerTest {
+
+	@Test
+	public void testEntities() throws IOException {
+		assertNormalized("entities");
+	}
+
+	@Test
+	public void testTags() throws IOException {
+		assertNormalized("tags");
+	}
+
+	@Test
+	public void testNonAscii() throws IOException {
+		assertNormalized("non-ascii");
+	}
+
+	@Test
+	public void testTruncationAtSentenceEnd() throws IOException {
+		assertNormalized("truncation");
+	}
+
+	@Test
+	public void testTruncationAtWhitespace() throws IOException {
+		assertNormalized("truncation-whitespace");
+	}
+
+	@Test
+	public void testTruncationWithoutWhitespace() throws IOException {
+		assertNormalized("truncation-none");
+	}
+
+	/**
+	 * A post as written by the Extract step: The title, a separator, and the body
+	 */
+	@Test
+	public void testPost() throws IOException {
+		TextNormalizer normalizer = new TextNormalizer();
+		normalizer.append(read("post-title.html"));
+		normalizer.appendRaw(" \\r ");
+		normalizer.append(read("post-body.html"));
+		assertEquals(read("post.txt"), normalizer.toString());
+	}
+
+	/**
+	 * The normalizer is reused for every post of an archive
+	 */
+	@Test
+	public void testReset() throws IOException {
+		TextNormalizer normalizer = new TextNormalizer();
+		normalizer.append(read("truncation.html"));
+		normalizer.reset();
+		normalizer.append(read("tags.html"));
+		assertEquals(read("tags.txt"), normalizer.toString());
+	}
+
+	private static void assertNormalized(String name) throws IOException {
+		TextNormalizer normalizer = new TextNormalizer();
+		normalizer.append(read(name + ".html"));
+		assertEquals(read(name + ".txt"), normalizer.toString());
+		assertEquals(normalizer.toString().length(), normalizer.getLength());
+	}
+
+	private static String read(String fileName) throws IOException {
+		InputStream in = TextNormalizerTest.class.getResourceAsStream("/normalizer/" + fileName);
+		assertNotNull("Missing golden file " + fileName, in);
+		try {
+			return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+		} finally {
+			in.close();
+		}
+	}
+}